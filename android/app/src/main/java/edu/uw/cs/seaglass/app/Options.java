@@ -47,6 +47,9 @@ public class Options {
     private static final String SYNC_ENABLED = "SYNC_ENABLED";
     private static final String METERED_SYNC_ALLOWED = "METERED_SYNC_ALLOWED";
     private static final String SERVER_HOSTNAME = "SERVER_HOSTNAME";
+    private static final String GSMTAP_FILTER = "GSMTAP_FILTER";
+    private static final String GSMTAP_RELAY_DESTINATIONS = "GSMTAP_RELAY_DESTINATIONS";
+    private static final String CELL_LOG_BINARY_FORMAT = "CELL_LOG_BINARY_FORMAT";
 
     private static final String OSMOCOM_VERSION = "OSMOCOM_VERSION";
     private static final String SEEN_ONBOARDING = "SEEN_ONBOARDING";
@@ -219,6 +222,41 @@ public class Options {
         editor.apply();
     }
 
+    // See GsmtapFilter for the syntax; empty keeps every packet. Read when scanning starts.
+    public String getGsmtapFilter() {
+        return sharedPreferences.getString(GSMTAP_FILTER, "");
+    }
+
+    public void setGsmtapFilter(String filter) {
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+        editor.putString(GSMTAP_FILTER, filter);
+        editor.apply();
+    }
+
+    // Comma-separated host:port list to forward GSMTAP packets to; empty disables the relay
+    public String getGsmtapRelayDestinations() {
+        return sharedPreferences.getString(GSMTAP_RELAY_DESTINATIONS, "");
+    }
+
+    public void setGsmtapRelayDestinations(String destinations) {
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+        editor.putString(GSMTAP_RELAY_DESTINATIONS, destinations);
+        editor.apply();
+    }
+
+    // Whether to ask cell_log for binary records instead of text on its FIFO. Read when scanning
+    // starts, and only honoured if the installed cell_log supports -B; text is easier to follow
+    // when debugging.
+    public boolean getCellLogBinaryFormat() {
+        return sharedPreferences.getBoolean(CELL_LOG_BINARY_FORMAT, false);
+    }
+
+    public void setCellLogBinaryFormat(boolean binaryFormat) {
+        SharedPreferences.Editor editor = sharedPreferences.edit();
+        editor.putBoolean(CELL_LOG_BINARY_FORMAT, binaryFormat);
+        editor.apply();
+    }
+
     public void initializeUUID(){
         if (sharedPreferences.getString(APP_UUID, null) == null) {
             resetUUID();
@@ -96,12 +96,28 @@ public class Utils {
         }
 
         byte[] hdlcBuf = new byte[hdlcLen];
-        hdlcBuf[0] = 0x7e; // FLAG
-        hdlcBuf[1] = dlci;
-        hdlcBuf[2] = 3;
-        hdlcBuf[hdlcLen - 1] = 0x7e;
-        int hdlcOffset = 3;
-        for (int i = 0; i < payload.length; i++) {
+        rawToHDLC(dlci, payload, hdlcBuf, 0);
+        return hdlcBuf;
+    }
+
+    // Largest number of bytes rawToHDLC() can produce for a payload of the given length
+    public static int maxHDLCLength(int payloadLen) {
+        return 4 + 2 * payloadLen;
+    }
+
+    // Encodes into hdlcBuf starting at hdlcOffset, which must have room for
+    // maxHDLCLength(payload.length) bytes. Returns the offset just past the closing flag.
+    public static int rawToHDLC(byte dlci, byte[] payload, byte[] hdlcBuf, int hdlcOffset) {
+        return rawToHDLC(dlci, payload, 0, payload.length, hdlcBuf, hdlcOffset);
+    }
+
+    // As above, for the payload at [payloadOffset, payloadOffset + payloadLength) of payload
+    public static int rawToHDLC(byte dlci, byte[] payload, int payloadOffset, int payloadLength,
+                                byte[] hdlcBuf, int hdlcOffset) {
+        hdlcBuf[hdlcOffset++] = 0x7e; // FLAG
+        hdlcBuf[hdlcOffset++] = dlci;
+        hdlcBuf[hdlcOffset++] = 3;
+        for (int i = payloadOffset; i < payloadOffset + payloadLength; i++) {
             if (payload[i] == 0x7d || payload[i] == 0x7e || payload[i] == 0x00) {
                 hdlcBuf[hdlcOffset++] = 0x7d; // ESCAPE
                 hdlcBuf[hdlcOffset++] = (byte)(payload[i] ^ 0x20);
@@ -109,8 +125,9 @@ public class Utils {
                 hdlcBuf[hdlcOffset++] = payload[i];
             }
         }
+        hdlcBuf[hdlcOffset++] = 0x7e;
 
-        return hdlcBuf;
+        return hdlcOffset;
     }
 
     public static byte[] hdlcToRaw(byte[] hdlcBuf) {
@@ -16,16 +16,118 @@
 
 package edu.uw.cs.seaglass.app.db;
 
+import androidx.annotation.NonNull;
 import androidx.room.Database;
 import androidx.room.RoomDatabase;
 import androidx.room.TypeConverters;
+import androidx.room.migration.Migration;
+import androidx.sqlite.db.SupportSQLiteDatabase;
 
 @Database(entities = {CellObservation.class, GSMPacket.class,
-        SpectrumMeasurement.class, LocationMeasurement.class}, version = 2, exportSchema = false)
+        SpectrumMeasurement.class, LocationMeasurement.class, SpectrumSweep.class,
+        SyncCursor.class}, version = 5, exportSchema = false)
 @TypeConverters({Converters.class})
 public abstract class AppDatabase extends RoomDatabase {
     public abstract CellObservationDAO cellObservationDAO();
     public abstract GSMPacketDAO gsmPacketDAO();
     public abstract SpectrumMeasurementDAO spectrumMeasurementDAO();
     public abstract LocationMeasurementDAO locationMeasurementDAO();
+    public abstract SpectrumSweepDAO spectrumSweepDAO();
+    public abstract SyncCursorDAO syncCursorDAO();
+
+    // GSMPacket gained repeatCount and lastSeen; existing rows were each seen once
+    static final Migration MIGRATION_2_3 = new Migration(2, 3) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("ALTER TABLE GSMPacket ADD COLUMN repeatCount INTEGER NOT NULL DEFAULT 1");
+            database.execSQL("ALTER TABLE GSMPacket ADD COLUMN lastSeen INTEGER NOT NULL DEFAULT 0");
+            database.execSQL("UPDATE GSMPacket SET lastSeen = timestamp");
+        }
+    };
+
+    // Power readings are stored a sweep per row from now on. SpectrumMeasurement stays for rows
+    // recorded before, which are still synced.
+    static final Migration MIGRATION_3_4 = new Migration(3, 4) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `SpectrumSweep` (" +
+                    "`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+                    "`synced` INTEGER NOT NULL, `timestamp` INTEGER NOT NULL, " +
+                    "`band` INTEGER, `startArfcn` INTEGER NOT NULL, `dBm` BLOB)");
+        }
+    };
+
+    // Syncing moves from the per-row synced flag to a cursor per table. Each cursor starts just
+    // below the first row still unsynced, or at the last row if everything has been synced.
+    // Nothing sets the synced flag after that, so the column is dropped rather than left to go
+    // stale.
+    static final Migration MIGRATION_4_5 = new Migration(4, 5) {
+        @Override
+        public void migrate(@NonNull SupportSQLiteDatabase database) {
+            database.execSQL("CREATE TABLE IF NOT EXISTS `SyncCursor` (" +
+                    "`tableName` TEXT NOT NULL, `lastSyncedId` INTEGER NOT NULL, " +
+                    "PRIMARY KEY(`tableName`))");
+            for (String table : SYNCED_TABLES) {
+                database.execSQL("INSERT INTO SyncCursor (tableName, lastSyncedId) SELECT '" +
+                        table + "', IFNULL((SELECT MIN(id) - 1 FROM " + table +
+                        " WHERE synced = 0), IFNULL((SELECT MAX(id) FROM " + table + "), 0))");
+            }
+
+            dropSyncedColumn(database, "CellObservation",
+                    "`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+                    "`bsic` INTEGER NOT NULL, `ta` INTEGER NOT NULL, `si1` BLOB, `si2` BLOB, " +
+                    "`si2quat` BLOB, `si3` BLOB, `si4` BLOB, `si13` BLOB, " +
+                    "`timestamp` INTEGER NOT NULL, `band` INTEGER, `arfcn` INTEGER NOT NULL, " +
+                    "`dBm` INTEGER NOT NULL",
+                    "id, bsic, ta, si1, si2, si2quat, si3, si4, si13, timestamp, band, arfcn, dBm");
+            dropSyncedColumn(database, "GSMPacket",
+                    "`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+                    "`type` INTEGER NOT NULL, `subtype` INTEGER NOT NULL, " +
+                    "`timeslot` INTEGER NOT NULL, `frameNumber` INTEGER NOT NULL, " +
+                    "`payload` BLOB, `repeatCount` INTEGER NOT NULL, " +
+                    "`lastSeen` INTEGER NOT NULL, `timestamp` INTEGER NOT NULL, " +
+                    "`band` INTEGER, `arfcn` INTEGER NOT NULL, `dBm` INTEGER NOT NULL",
+                    "id, type, subtype, timeslot, frameNumber, payload, repeatCount, lastSeen, " +
+                    "timestamp, band, arfcn, dBm");
+            dropSyncedColumn(database, "SpectrumMeasurement",
+                    "`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+                    "`timestamp` INTEGER NOT NULL, `band` INTEGER, `arfcn` INTEGER NOT NULL, " +
+                    "`dBm` INTEGER NOT NULL",
+                    "id, timestamp, band, arfcn, dBm");
+            dropSyncedColumn(database, "SpectrumSweep",
+                    "`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+                    "`timestamp` INTEGER NOT NULL, `band` INTEGER, " +
+                    "`startArfcn` INTEGER NOT NULL, `dBm` BLOB",
+                    "id, timestamp, band, startArfcn, dBm");
+            dropSyncedColumn(database, "LocationMeasurement",
+                    "`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+                    "`timestamp` INTEGER NOT NULL, `latitude` REAL NOT NULL, " +
+                    "`longitude` REAL NOT NULL, `altitude` REAL NOT NULL, " +
+                    "`bearing` REAL NOT NULL, `speed` REAL NOT NULL, " +
+                    "`horizontalAccuracy` REAL NOT NULL",
+                    "id, timestamp, latitude, longitude, altitude, bearing, speed, " +
+                    "horizontalAccuracy");
+        }
+    };
+
+    // SQLite on these devices has no DROP COLUMN, so the table is copied into a new one with the
+    // given schema, less the column. The AUTOINCREMENT sequence moves across with the rows, so
+    // ids below a sync cursor are never handed out again.
+    private static void dropSyncedColumn(SupportSQLiteDatabase database, String table,
+                                         String columnDefs, String columns) {
+        String old = table + "_v4";
+        database.execSQL("ALTER TABLE `" + table + "` RENAME TO `" + old + "`");
+        database.execSQL("CREATE TABLE `" + table + "` (" + columnDefs + ")");
+        database.execSQL("INSERT INTO `" + table + "` (" + columns + ") SELECT " + columns +
+                " FROM `" + old + "`");
+        database.execSQL("DELETE FROM sqlite_sequence WHERE name = '" + table + "'");
+        database.execSQL("UPDATE sqlite_sequence SET name = '" + table + "' WHERE name = '" +
+                old + "'");
+        database.execSQL("DROP TABLE `" + old + "`");
+    }
+
+    static final String[] SYNCED_TABLES = {
+            "CellObservation", "GSMPacket", "SpectrumMeasurement", "SpectrumSweep",
+            "LocationMeasurement"
+    };
 }
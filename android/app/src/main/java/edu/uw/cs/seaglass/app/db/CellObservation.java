@@ -45,11 +45,8 @@ public class CellObservation {
     public byte[] si4;
     public byte[] si13;
 
-    public boolean synced = false;
-
     public static JSONObject getJson(CellObservation co) throws JSONException {
         JSONObject cellObsJson = new JSONObject(Utils.gson.toJson(co));
-        cellObsJson.remove("synced");
         return cellObsJson;
     }
 }
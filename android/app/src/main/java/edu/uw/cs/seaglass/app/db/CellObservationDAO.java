@@ -28,12 +28,10 @@ public interface CellObservationDAO {
     @Insert
     void insert(CellObservation observation);
 
-    @Query("SELECT * FROM CellObservation WHERE synced IS 0 LIMIT :limit")
-    List<CellObservation> getUnsynced(int limit);
-
-    @Query("UPDATE CellObservation SET synced = 1 WHERE id IN (:ids)")
-    void markSynced(List<Integer> ids);
+    @Insert
+    void insertAll(List<CellObservation> observations);
 
-    @Query("UPDATE CellObservation SET synced = 1 WHERE id = :id")
-    void markSynced(int id);
+    // Range scan on the primary key, for the rows after a sync cursor
+    @Query("SELECT * FROM CellObservation WHERE id > :afterId ORDER BY id LIMIT :limit")
+    List<CellObservation> getAfter(int afterId, int limit);
 }
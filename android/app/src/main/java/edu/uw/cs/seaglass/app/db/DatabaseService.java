@@ -18,9 +18,11 @@ package edu.uw.cs.seaglass.app.db;
 
 import android.app.Service;
 import android.content.Intent;
+import android.database.Cursor;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.IBinder;
+import android.util.Log;
 
 import java.io.File;
 import java.io.FileInputStream;
@@ -33,6 +35,7 @@ import java.util.Arrays;
 
 import androidx.core.content.FileProvider;
 import androidx.room.Room;
+import androidx.room.RoomDatabase;
 import edu.uw.cs.seaglass.app.Utils;
 
 import java.util.List;
@@ -42,9 +45,15 @@ public class DatabaseService extends Service {
     private static final String DB_NAME = "seaglass-app-db";
 
     private static final int MARK_LIMIT = 500;
+    // How long onDestroy() waits for queued rows; it's on the main thread
+    private static final long WRITER_SHUTDOWN_TIMEOUT = 2000; // ms
+    // GSMPacket rows this old have had their final repeat counts written, with time to spare for
+    // the expiry tick and the writer's commit delay
+    static final long GSM_PACKET_SETTLE_TIME = GSMPacket.REPEAT_WINDOW + 10000;
 
     private final IBinder mBinder = new LocalBinder();
     private AppDatabase db;
+    private DatabaseWriter writer;
 
     public DatabaseService() {
     }
@@ -64,31 +73,68 @@ public class DatabaseService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
-        db = Room.databaseBuilder(this, AppDatabase.class, DB_NAME).build();
+        // With WAL, queries run on their own connections alongside DatabaseWriter's inserts
+        // instead of waiting for them, so a sync batch read doesn't hold up ingestion
+        db = Room.databaseBuilder(this, AppDatabase.class, DB_NAME)
+                .addMigrations(AppDatabase.MIGRATION_2_3, AppDatabase.MIGRATION_3_4,
+                        AppDatabase.MIGRATION_4_5)
+                .setJournalMode(RoomDatabase.JournalMode.WRITE_AHEAD_LOGGING)
+                .build();
+        writer = new DatabaseWriter(db);
+        writer.start();
     }
 
-    public void insertLocationMeasurement(LocationMeasurement locationMeasurement) {
-        synchronized (db) {
-            db.locationMeasurementDAO().insert(locationMeasurement);
+    @Override
+    public void onDestroy() {
+        writer.shutdown();
+        try {
+            writer.join(WRITER_SHUTDOWN_TIMEOUT);
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted waiting for queued rows to be written");
+        }
+        if (writer.isAlive()) {
+            // It carries on committing in the background for as long as the process lives
+            Log.w(TAG, "Queued rows still being written after " + WRITER_SHUTDOWN_TIMEOUT +
+                    " ms");
         }
+        super.onDestroy();
+    }
+
+    // The insert methods only queue the row; DatabaseWriter commits queued rows of every kind
+    // together, one transaction per batch. Use flush() to wait for them to be written.
+
+    public void insertLocationMeasurement(LocationMeasurement locationMeasurement) {
+        writer.enqueue(locationMeasurement);
     }
 
     public void insertSpectrumMeasurement(SpectrumMeasurement spectrumMeasurement) {
-        synchronized (db) {
-            db.spectrumMeasurementDAO().insert(spectrumMeasurement);
-        }
+        writer.enqueue(spectrumMeasurement);
+    }
+
+    public void insertSpectrumSweep(SpectrumSweep spectrumSweep) {
+        writer.enqueue(spectrumSweep);
     }
 
     public void insertCellObservation(CellObservation cellObservation) {
-        synchronized (db) {
-            db.cellObservationDAO().insert(cellObservation);
-        }
+        writer.enqueue(cellObservation);
     }
 
     public void insertGSMPacket(GSMPacket gsmPacket) {
-        synchronized (db) {
-            db.gsmPacketDAO().insert(gsmPacket);
-        }
+        writer.enqueue(gsmPacket);
+    }
+
+    public void insertGSMPackets(List<GSMPacket> gsmPackets) {
+        writer.enqueueGSMPackets(gsmPackets);
+    }
+
+    // Writes repeatCount and lastSeen of packets inserted earlier
+    public void updateGSMPacketRepeats(List<GSMPacketRepeats> gsmPacketRepeats) {
+        writer.enqueueGSMPacketRepeats(gsmPacketRepeats);
+    }
+
+    // Waits until every row inserted so far is in the database
+    public void flush() throws InterruptedException {
+        writer.flush();
     }
 
     private void copyFile(File src, File dest) throws IOException {
@@ -105,63 +151,126 @@ public class DatabaseService extends Service {
     public Uri getExportUri() throws IOException {
         File dbCache = new File(getCacheDir(), DB_NAME);
         dbCache.deleteOnExit();
-        // Hopefully this ensures that the DB is in a consistent state...
-        synchronized (db) {
-            copyFile(getDatabasePath(DB_NAME), dbCache);
+        try {
+            flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // Move everything committed out of the WAL file, so the main file on its own is a
+        // complete copy, then hold the write lock while copying so no checkpoint changes the
+        // file underneath us. Readers carry on meanwhile.
+        checkpoint();
+        final File dbFile = getDatabasePath(DB_NAME);
+        final File dest = dbCache;
+        final IOException[] copyError = new IOException[1];
+        db.runInTransaction(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    copyFile(dbFile, dest);
+                } catch (IOException e) {
+                    copyError[0] = e;
+                }
+            }
+        });
+        if (copyError[0] != null) {
+            throw copyError[0];
         }
         return FileProvider.getUriForFile(this,
                 "edu.uw.cs.seaglass.app.FileProvider", dbCache);
     }
 
+    private void checkpoint() {
+        Cursor cursor = db.getOpenHelper().getWritableDatabase()
+                .query("PRAGMA wal_checkpoint(TRUNCATE)");
+        try {
+            cursor.moveToFirst();
+            if (cursor.getInt(0) != 0) {
+                Log.w(TAG, "WAL checkpoint was blocked; the export may miss recent rows");
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
     public boolean deleteExportCache() {
         return new File(getCacheDir(), DB_NAME).delete();
     }
 
     public List<CellObservation> getUnsyncedCellObservations(int maxBatchSize){
-        synchronized (db) {
-            return db.cellObservationDAO().getUnsynced(maxBatchSize);
-        }
+        return db.cellObservationDAO().getAfter(getLastSyncedId("CellObservation"), maxBatchSize);
     }
 
     public List<GSMPacket> getUnsyncedGSMPackets(int maxBatchSize){
-        synchronized (db) {
-            return db.gsmPacketDAO().getUnsynced(maxBatchSize);
-        }
+        // Rows whose repeats are still being counted wait for the next sync
+        return db.gsmPacketDAO().getSettledAfter(getLastSyncedId("GSMPacket"),
+                System.currentTimeMillis() - GSM_PACKET_SETTLE_TIME, maxBatchSize);
     }
 
     public List<SpectrumMeasurement> getUnsyncedSpectrumMeasurements(int maxBatchSize){
-        synchronized (db) {
-            return db.spectrumMeasurementDAO().getUnsynced(maxBatchSize);
-        }
+        return db.spectrumMeasurementDAO().getAfter(getLastSyncedId("SpectrumMeasurement"),
+                maxBatchSize);
+    }
+
+    public List<SpectrumSweep> getUnsyncedSpectrumSweeps(int maxBatchSize){
+        return db.spectrumSweepDAO().getAfter(getLastSyncedId("SpectrumSweep"), maxBatchSize);
     }
 
     public List<LocationMeasurement> getUnsyncedLocationMeasurements(int maxBatchSize){
-        synchronized (db) {
-            return db.locationMeasurementDAO().getUnsynced(maxBatchSize);
-        }
+        return db.locationMeasurementDAO().getAfter(getLastSyncedId("LocationMeasurement"),
+                maxBatchSize);
     }
 
+    // Acknowledging a batch is one write that moves the table's cursor past its last row. The
+    // batches come from getUnsynced*, so they're in id order.
+
     public void markCellObservations(List<CellObservation> cellObservations) {
-        for (CellObservation cellObservation : cellObservations) {
-            db.cellObservationDAO().markSynced(cellObservation.id);
+        if (!cellObservations.isEmpty()) {
+            advanceSyncCursor("CellObservation",
+                    cellObservations.get(cellObservations.size() - 1).id);
         }
     }
 
     public void markGSMPackets(List<GSMPacket> gsmPackets) {
-        for (GSMPacket gsmPacket : gsmPackets) {
-            db.gsmPacketDAO().markSynced(gsmPacket.id);
+        if (!gsmPackets.isEmpty()) {
+            advanceSyncCursor("GSMPacket", gsmPackets.get(gsmPackets.size() - 1).id);
         }
     }
 
     public void markSpectrumMeasurements(List<SpectrumMeasurement> spectrumMeasurements) {
-        for (SpectrumMeasurement spectrumMeasurement : spectrumMeasurements) {
-            db.spectrumMeasurementDAO().markSynced(spectrumMeasurement.id);
+        if (!spectrumMeasurements.isEmpty()) {
+            advanceSyncCursor("SpectrumMeasurement",
+                    spectrumMeasurements.get(spectrumMeasurements.size() - 1).id);
+        }
+    }
+
+    public void markSpectrumSweeps(List<SpectrumSweep> spectrumSweeps) {
+        if (!spectrumSweeps.isEmpty()) {
+            advanceSyncCursor("SpectrumSweep", spectrumSweeps.get(spectrumSweeps.size() - 1).id);
         }
     }
 
     public void markLocationMeasurements(List<LocationMeasurement> locationMeasurements) {
-        for (LocationMeasurement locationMeasurement : locationMeasurements) {
-            db.locationMeasurementDAO().markSynced(locationMeasurement.id);
+        if (!locationMeasurements.isEmpty()) {
+            advanceSyncCursor("LocationMeasurement",
+                    locationMeasurements.get(locationMeasurements.size() - 1).id);
         }
     }
+
+    private int getLastSyncedId(String tableName) {
+        Integer lastSyncedId = db.syncCursorDAO().getLastSyncedId(tableName);
+        return lastSyncedId != null ? lastSyncedId : 0;
+    }
+
+    // The cursor never moves backwards, even if an older batch is acknowledged late
+    private void advanceSyncCursor(final String tableName, final int lastSyncedId) {
+        db.runInTransaction(new Runnable() {
+            @Override
+            public void run() {
+                if (lastSyncedId > getLastSyncedId(tableName)) {
+                    db.syncCursorDAO().set(new SyncCursor(tableName, lastSyncedId));
+                }
+            }
+        });
+    }
 }
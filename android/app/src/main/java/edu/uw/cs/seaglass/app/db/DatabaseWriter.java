@@ -0,0 +1,337 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.uw.cs.seaglass.app.db;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.uw.cs.seaglass.app.Utils;
+
+// Inserts rows from its own thread, grouping whatever has queued up into one transaction. A
+// commit happens once BATCH_ROWS rows are waiting or the oldest waiting row is
+// MAX_COMMIT_DELAY ms old, whichever comes first. Producers only take a lock long enough to add
+// to a list; they wait only if MAX_PENDING rows are already queued, so rows are never dropped
+// while the writer is running. A batch that fails to commit is tried once more before its rows
+// are given up on, and rows that arrive after shutdown() are refused; both are counted in
+// getFailedRows().
+//
+// Two batches are swapped between the producers and the writer, so in the steady state nothing
+// is allocated per commit.
+class DatabaseWriter extends Thread {
+    private static final String TAG = Utils.TAG_PREFIX + "DatabaseWriter";
+    static final int BATCH_ROWS = 512;
+    static final long MAX_COMMIT_DELAY = 250; // ms
+    private static final int MAX_PENDING = 16384;
+    static final long RETRY_DELAY = 100; // ms
+
+    static class Batch {
+        final List<CellObservation> cellObservations = new ArrayList<>();
+        final List<GSMPacket> gsmPackets = new ArrayList<>();
+        // Inserted in this batch or an earlier one; updated after the inserts
+        final List<GSMPacketRepeats> gsmPacketRepeats = new ArrayList<>();
+        final List<SpectrumMeasurement> spectrumMeasurements = new ArrayList<>();
+        final List<SpectrumSweep> spectrumSweeps = new ArrayList<>();
+        final List<LocationMeasurement> locationMeasurements = new ArrayList<>();
+        int size;
+
+        void clear() {
+            cellObservations.clear();
+            gsmPackets.clear();
+            gsmPacketRepeats.clear();
+            spectrumMeasurements.clear();
+            spectrumSweeps.clear();
+            locationMeasurements.clear();
+            size = 0;
+        }
+    }
+
+    private final AppDatabase db;
+    private final Object lock = new Object();
+    private Batch pending = new Batch();
+    private Batch committing = new Batch();
+    private long firstPendingTime;
+    // Rows handed to the writer so far, and rows it has finished with (committed or failed)
+    private long enqueuedRows;
+    private long completedRows;
+    private boolean flushRequested;
+    private boolean closed;
+
+    private volatile long transactions;
+    // Updated with lock held, by producers as well as the writer
+    private volatile long failedRows;
+
+    DatabaseWriter(AppDatabase db) {
+        super("DatabaseWriter");
+        this.db = db;
+    }
+
+    void enqueue(CellObservation cellObservation) {
+        synchronized (lock) {
+            if (!admit(1)) {
+                return;
+            }
+            pending.cellObservations.add(cellObservation);
+            added(1);
+        }
+    }
+
+    void enqueue(GSMPacket gsmPacket) {
+        synchronized (lock) {
+            if (!admit(1)) {
+                return;
+            }
+            pending.gsmPackets.add(gsmPacket);
+            added(1);
+        }
+    }
+
+    void enqueueGSMPackets(List<GSMPacket> gsmPackets) {
+        synchronized (lock) {
+            if (!admit(gsmPackets.size())) {
+                return;
+            }
+            pending.gsmPackets.addAll(gsmPackets);
+            added(gsmPackets.size());
+        }
+    }
+
+    void enqueueGSMPacketRepeats(List<GSMPacketRepeats> gsmPacketRepeats) {
+        synchronized (lock) {
+            if (!admit(gsmPacketRepeats.size())) {
+                return;
+            }
+            pending.gsmPacketRepeats.addAll(gsmPacketRepeats);
+            added(gsmPacketRepeats.size());
+        }
+    }
+
+    void enqueue(SpectrumMeasurement spectrumMeasurement) {
+        synchronized (lock) {
+            if (!admit(1)) {
+                return;
+            }
+            pending.spectrumMeasurements.add(spectrumMeasurement);
+            added(1);
+        }
+    }
+
+    void enqueue(SpectrumSweep spectrumSweep) {
+        synchronized (lock) {
+            if (!admit(1)) {
+                return;
+            }
+            pending.spectrumSweeps.add(spectrumSweep);
+            added(1);
+        }
+    }
+
+    void enqueue(LocationMeasurement locationMeasurement) {
+        synchronized (lock) {
+            if (!admit(1)) {
+                return;
+            }
+            pending.locationMeasurements.add(locationMeasurement);
+            added(1);
+        }
+    }
+
+    // Returns once every row enqueued before the call has been committed (or has failed)
+    void flush() throws InterruptedException {
+        synchronized (lock) {
+            long target = enqueuedRows;
+            flushRequested = true;
+            lock.notifyAll();
+            while (completedRows < target && isAlive()) {
+                lock.wait();
+            }
+        }
+    }
+
+    // Commits what's queued and stops the thread
+    void shutdown() {
+        synchronized (lock) {
+            closed = true;
+            lock.notifyAll();
+        }
+    }
+
+    long getTransactions() {
+        return transactions;
+    }
+
+    long getFailedRows() {
+        return failedRows;
+    }
+
+    public void run() {
+        for (;;) {
+            synchronized (lock) {
+                try {
+                    while (!readyToCommit()) {
+                        if (pending.size == 0) {
+                            if (closed) {
+                                lock.notifyAll();
+                                return;
+                            }
+                            lock.wait();
+                        } else {
+                            lock.wait(Math.max(1, firstPendingTime + MAX_COMMIT_DELAY -
+                                    System.currentTimeMillis()));
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Commit what's there and stop
+                    closed = true;
+                }
+                Batch batch = pending;
+                pending = committing;
+                committing = batch;
+                flushRequested = false;
+                // Producers waiting for room can go ahead
+                lock.notifyAll();
+            }
+
+            boolean committed = commitBatch();
+
+            synchronized (lock) {
+                completedRows += committing.size;
+                if (!committed) {
+                    failedRows += committing.size;
+                }
+                lock.notifyAll();
+            }
+            committing.clear();
+        }
+    }
+
+    // Called with lock held
+    private boolean readyToCommit() {
+        if (pending.size == 0) {
+            return false;
+        }
+        return closed || flushRequested || pending.size >= BATCH_ROWS ||
+                System.currentTimeMillis() - firstPendingTime >= MAX_COMMIT_DELAY;
+    }
+
+    // Called with lock held. Waits while MAX_PENDING rows are queued; returns false if the
+    // writer has been shut down, counting the rows as failed since nothing will commit them.
+    private boolean admit(int rows) {
+        boolean interrupted = false;
+        while (pending.size >= MAX_PENDING && !closed) {
+            try {
+                lock.wait();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        if (closed) {
+            failedRows += rows;
+            return false;
+        }
+        return true;
+    }
+
+    // Called with lock held
+    private void added(int rows) {
+        boolean wasEmpty = pending.size == 0;
+        if (wasEmpty) {
+            firstPendingTime = System.currentTimeMillis();
+        }
+        pending.size += rows;
+        enqueuedRows += rows;
+        // The writer has to hear about the first row to start the commit timer
+        if (wasEmpty || pending.size >= BATCH_ROWS) {
+            lock.notifyAll();
+        }
+    }
+
+    // Inserts the batch being committed; kept as a field so a commit doesn't allocate it
+    private final Runnable insertCommitting = new Runnable() {
+        @Override
+        public void run() {
+            Batch batch = committing;
+            if (!batch.cellObservations.isEmpty()) {
+                db.cellObservationDAO().insertAll(batch.cellObservations);
+            }
+            if (!batch.gsmPackets.isEmpty()) {
+                // Kept so the packet's repeat count can be written to its row later
+                long[] ids = db.gsmPacketDAO().insertAll(batch.gsmPackets);
+                for (int i = 0; i < ids.length; i++) {
+                    batch.gsmPackets.get(i).id = (int)ids[i];
+                }
+            }
+            if (!batch.spectrumMeasurements.isEmpty()) {
+                db.spectrumMeasurementDAO().insertAll(batch.spectrumMeasurements);
+            }
+            if (!batch.spectrumSweeps.isEmpty()) {
+                db.spectrumSweepDAO().insertAll(batch.spectrumSweeps);
+            }
+            if (!batch.locationMeasurements.isEmpty()) {
+                db.locationMeasurementDAO().insertAll(batch.locationMeasurements);
+            }
+            for (GSMPacketRepeats repeats : batch.gsmPacketRepeats) {
+                // An id of 0 means its insert failed
+                int id = repeats.gsmPacket.id;
+                if (id != 0) {
+                    db.gsmPacketDAO().updateRepeats(id, repeats.repeatCount, repeats.lastSeen);
+                }
+            }
+        }
+    };
+
+    // Inserts the batch in one transaction, throwing if it was rolled back. Tests override this
+    // to run without a database.
+    void writeBatch(Batch batch) {
+        db.runInTransaction(insertCommitting);
+    }
+
+    // Returns false if the batch couldn't be committed even on a second try
+    private boolean commitBatch() {
+        for (int attempt = 0; ; attempt++) {
+            try {
+                writeBatch(committing);
+                transactions++;
+                return true;
+            } catch (RuntimeException e) {
+                // SQLiteException and friends. Rolled back, so these ids may be handed out
+                // again.
+                for (GSMPacket pkt : committing.gsmPackets) {
+                    pkt.id = 0;
+                }
+                if (attempt > 0) {
+                    // The batch is lost but the writer carries on
+                    Log.e(TAG, "Couldn't commit " + committing.size + " rows", e);
+                    return false;
+                }
+                // Often transient, e.g. SQLITE_BUSY or a disk that was briefly full
+                Log.w(TAG, "Couldn't commit " + committing.size + " rows, retrying", e);
+                try {
+                    Thread.sleep(RETRY_DELAY);
+                } catch (InterruptedException ie) {
+                    // Retry now; the run loop sees the interrupt next time it waits
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
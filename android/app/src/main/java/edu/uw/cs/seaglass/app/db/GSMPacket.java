@@ -29,9 +29,12 @@ import edu.uw.cs.seaglass.app.Utils;
 
 @Entity
 public class GSMPacket {
+    // Repeats of a broadcast frame within this many ms of the first are folded into its row, so
+    // a row's repeatCount and lastSeen are final once it's this old
+    public static final long REPEAT_WINDOW = 60000;
+
     @PrimaryKey(autoGenerate = true)
     public int id;
-    public boolean synced = false;
 
     @Embedded
     public MeasurementHeader measurementHeader;
@@ -40,10 +43,13 @@ public class GSMPacket {
     public byte timeslot;
     public int frameNumber;
     public byte[] payload;
+    // Identical BCCH frames on the same ARFCN and timeslot are stored once;
+    // measurementHeader.timestamp is when the first of them was seen
+    public int repeatCount = 1;
+    public long lastSeen; // Unix time in ms
 
     public static JSONObject getJson(GSMPacket gp) throws JSONException {
         JSONObject gpJson = new JSONObject(Utils.gson.toJson(gp));
-        gpJson.remove("synced");
         return gpJson;
     }
 }
@@ -28,12 +28,23 @@ public interface GSMPacketDAO {
     @Insert
     void insert(GSMPacket pkt);
 
-    @Query("SELECT * FROM GSMPacket WHERE synced IS 0 LIMIT :limit")
-    List<GSMPacket> getUnsynced(int limit);
+    // Returns the new rows' ids, in order
+    @Insert
+    long[] insertAll(List<GSMPacket> pkts);
+
+    @Query("UPDATE GSMPacket SET repeatCount = :repeatCount, lastSeen = :lastSeen " +
+            "WHERE id = :id")
+    void updateRepeats(int id, int repeatCount, long lastSeen);
 
-    @Query("UPDATE GSMPacket SET synced = 1 WHERE id IN (:ids)")
-    void markSynced(List<Integer> ids);
+    // Range scan on the primary key, for the rows after a sync cursor
+    @Query("SELECT * FROM GSMPacket WHERE id > :afterId ORDER BY id LIMIT :limit")
+    List<GSMPacket> getAfter(int afterId, int limit);
 
-    @Query("UPDATE GSMPacket SET synced = 1 WHERE id = :id")
-    void markSynced(int id);
+    // As getAfter(), but stops short of the first row first seen after settledBefore, whose
+    // repeat count may still change. Rows after it aren't returned either, so the sync cursor
+    // never moves past it.
+    @Query("SELECT * FROM GSMPacket WHERE id > :afterId AND id < " +
+            "IFNULL((SELECT MIN(id) FROM GSMPacket WHERE id > :afterId " +
+            "AND timestamp > :settledBefore), 2147483647) ORDER BY id LIMIT :limit")
+    List<GSMPacket> getSettledAfter(int afterId, long settledBefore, int limit);
 }
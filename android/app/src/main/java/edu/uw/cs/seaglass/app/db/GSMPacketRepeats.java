@@ -0,0 +1,32 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.db;
+
+// The final repeatCount and lastSeen of a GSMPacket handed to the database earlier. The packet
+// itself isn't touched after it's handed over, since the DatabaseWriter reads it on its own
+// thread; only the writer uses it again, to find the id its insert was given.
+public class GSMPacketRepeats {
+    public final GSMPacket gsmPacket;
+    public final int repeatCount;
+    public final long lastSeen; // Unix time in ms
+
+    public GSMPacketRepeats(GSMPacket gsmPacket, int repeatCount, long lastSeen) {
+        this.gsmPacket = gsmPacket;
+        this.repeatCount = repeatCount;
+        this.lastSeen = lastSeen;
+    }
+}
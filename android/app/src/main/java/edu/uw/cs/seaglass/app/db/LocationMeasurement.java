@@ -30,7 +30,6 @@ import edu.uw.cs.seaglass.app.Utils;
 public class LocationMeasurement {
     @PrimaryKey(autoGenerate = true)
     public int id;
-    public boolean synced = false;
 
     public long timestamp;
     public double latitude;
@@ -42,7 +41,6 @@ public class LocationMeasurement {
 
     public static JSONObject getJson(LocationMeasurement lm) throws JSONException {
         JSONObject lmJson = new JSONObject(Utils.gson.toJson(lm));
-        lmJson.remove("synced");
         return lmJson;
     }
 }
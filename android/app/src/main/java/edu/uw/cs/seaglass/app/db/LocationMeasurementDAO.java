@@ -28,12 +28,10 @@ public interface LocationMeasurementDAO {
     @Insert
     void insert(LocationMeasurement measurement);
 
-    @Query("SELECT * FROM LocationMeasurement WHERE synced IS 0 LIMIT :limit")
-    List<LocationMeasurement> getUnsynced(int limit);
-
-    @Query("UPDATE LocationMeasurement SET synced = 1 WHERE id IN (:ids)")
-    void markSynced(List<Integer> ids);
+    @Insert
+    void insertAll(List<LocationMeasurement> measurements);
 
-    @Query("UPDATE LocationMeasurement SET synced = 1 WHERE id = :id")
-    void markSynced(int id);
+    // Range scan on the primary key, for the rows after a sync cursor
+    @Query("SELECT * FROM LocationMeasurement WHERE id > :afterId ORDER BY id LIMIT :limit")
+    List<LocationMeasurement> getAfter(int afterId, int limit);
 }
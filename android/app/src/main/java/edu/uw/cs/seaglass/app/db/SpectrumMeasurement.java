@@ -31,14 +31,12 @@ import edu.uw.cs.seaglass.app.Utils;
 public class SpectrumMeasurement {
     @PrimaryKey(autoGenerate = true)
     public int id;
-    public boolean synced = false;
 
     @Embedded
     public MeasurementHeader measurementHeader;
 
     public static JSONObject getJson(SpectrumMeasurement sm) throws JSONException {
         JSONObject smJson = new JSONObject(Utils.gson.toJson(sm));
-        smJson.remove("synced");
         return smJson;
     }
 }
@@ -28,12 +28,10 @@ public interface SpectrumMeasurementDAO {
     @Insert
     void insert(SpectrumMeasurement measurement);
 
-    @Query("SELECT * FROM SpectrumMeasurement WHERE synced IS 0 LIMIT :limit")
-    List<SpectrumMeasurement> getUnsynced(int limit);
-
-    @Query("UPDATE SpectrumMeasurement SET synced = 1 WHERE id IN (:ids)")
-    void markSynced(List<Integer> ids);
+    @Insert
+    void insertAll(List<SpectrumMeasurement> measurements);
 
-    @Query("UPDATE SpectrumMeasurement SET synced = 1 WHERE id = :id")
-    void markSynced(int id);
+    // Range scan on the primary key, for the rows after a sync cursor
+    @Query("SELECT * FROM SpectrumMeasurement WHERE id > :afterId ORDER BY id LIMIT :limit")
+    List<SpectrumMeasurement> getAfter(int afterId, int limit);
 }
@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.uw.cs.seaglass.app.db;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+import edu.uw.cs.seaglass.app.Utils;
+
+// One [power] line from cell_log: the power on consecutive ARFCNs of a band, starting at
+// startArfcn. dBm[i] is the reading for startArfcn + i.
+@Entity
+public class SpectrumSweep {
+    @PrimaryKey(autoGenerate = true)
+    public int id;
+
+    public long timestamp; // Unix time in ms
+    public Band band;
+    public short startArfcn; // ARFCN as defined by the band (i.e. without any band bits ORed in)
+    public byte[] dBm;
+
+    public static JSONObject getJson(SpectrumSweep ss) throws JSONException {
+        JSONObject ssJson = new JSONObject(Utils.gson.toJson(ss));
+        return ssJson;
+    }
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.uw.cs.seaglass.app.db;
+
+import java.util.List;
+
+import androidx.room.Dao;
+import androidx.room.Insert;
+import androidx.room.Query;
+
+@Dao
+public interface SpectrumSweepDAO {
+    @Insert
+    void insert(SpectrumSweep sweep);
+
+    @Insert
+    void insertAll(List<SpectrumSweep> sweeps);
+
+    // Range scan on the primary key, for the rows after a sync cursor
+    @Query("SELECT * FROM SpectrumSweep WHERE id > :afterId ORDER BY id LIMIT :limit")
+    List<SpectrumSweep> getAfter(int afterId, int limit);
+}
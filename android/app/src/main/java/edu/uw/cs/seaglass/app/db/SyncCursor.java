@@ -0,0 +1,38 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.uw.cs.seaglass.app.db;
+
+import androidx.annotation.NonNull;
+import androidx.room.Entity;
+import androidx.room.PrimaryKey;
+
+// How far syncing has got through one table: every row with an id up to lastSyncedId has been
+// accepted by the server. Ids only ever grow (they're AUTOINCREMENT) and rows are committed in id
+// order by the one writer, so nothing can appear below the cursor later.
+@Entity
+public class SyncCursor {
+    @PrimaryKey
+    @NonNull
+    public String tableName;
+    public int lastSyncedId;
+
+    public SyncCursor(@NonNull String tableName, int lastSyncedId) {
+        this.tableName = tableName;
+        this.lastSyncedId = lastSyncedId;
+    }
+}
@@ -58,6 +58,7 @@ public class SyncUploadWorker extends Worker {
     List<CellObservation> cellObsToSync;
     List<GSMPacket> gsmPktsToSync;
     List<SpectrumMeasurement> spectrumMeasToSync;
+    List<SpectrumSweep> spectrumSweepsToSync;
     List<LocationMeasurement> locationMeasToSync;
 
     private RequestQueue requestQueue;
@@ -106,16 +107,18 @@ public class SyncUploadWorker extends Worker {
             cellObsToSync = mDatabaseService.getUnsyncedCellObservations(DB_QUERY_LIMIT);
             gsmPktsToSync = mDatabaseService.getUnsyncedGSMPackets(DB_QUERY_LIMIT);
             spectrumMeasToSync = mDatabaseService.getUnsyncedSpectrumMeasurements(DB_QUERY_LIMIT);
+            spectrumSweepsToSync = mDatabaseService.getUnsyncedSpectrumSweeps(DB_QUERY_LIMIT);
             locationMeasToSync = mDatabaseService.getUnsyncedLocationMeasurements(DB_QUERY_LIMIT);
 
             if (cellObsToSync.isEmpty() && gsmPktsToSync.isEmpty() &&
-                    spectrumMeasToSync.isEmpty() && locationMeasToSync.isEmpty()) {
+                    spectrumMeasToSync.isEmpty() && spectrumSweepsToSync.isEmpty() &&
+                    locationMeasToSync.isEmpty()) {
                 return Result.success();
             }
 
             try {
                 String requestJson = getJson(cellObsToSync, gsmPktsToSync,
-                        spectrumMeasToSync, locationMeasToSync);
+                        spectrumMeasToSync, spectrumSweepsToSync, locationMeasToSync);
                if (!postRequest(requestJson)) {
                    Log.e(TAG, "postRequest failed");
                    return Result.failure();
@@ -123,6 +126,7 @@ public class SyncUploadWorker extends Worker {
                mDatabaseService.markCellObservations(cellObsToSync);
                mDatabaseService.markGSMPackets(gsmPktsToSync);
                mDatabaseService.markSpectrumMeasurements(spectrumMeasToSync);
+               mDatabaseService.markSpectrumSweeps(spectrumSweepsToSync);
                mDatabaseService.markLocationMeasurements(locationMeasToSync);
             } catch (JSONException e) {
                 Log.e(TAG, "Error constructing JSON for POST request");
@@ -132,7 +136,8 @@ public class SyncUploadWorker extends Worker {
     }
 
     private String getJson(List<CellObservation> cos, List<GSMPacket> gsmpkts,
-                           List<SpectrumMeasurement> sms, List<LocationMeasurement> lms)
+                           List<SpectrumMeasurement> sms, List<SpectrumSweep> sss,
+                           List<LocationMeasurement> lms)
                   throws JSONException
     {
 
@@ -161,6 +166,12 @@ public class SyncUploadWorker extends Worker {
         }
         postData.put("spectrumMeasurements", jsonArray);
 
+        jsonArray = new JSONArray();
+        for (SpectrumSweep ss : sss) {
+            jsonArray.put(SpectrumSweep.getJson(ss));
+        }
+        postData.put("spectrumSweeps", jsonArray);
+
         jsonArray = new JSONArray();
         for (LocationMeasurement lm : lms) {
             jsonArray.put(LocationMeasurement.getJson(lm));
@@ -18,6 +18,7 @@ package edu.uw.cs.seaglass.app.driver;
 
 import android.hardware.usb.UsbConstants;
 import android.hardware.usb.UsbDevice;
+import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbEndpoint;
 import android.hardware.usb.UsbInterface;
 import android.hardware.usb.UsbManager;
@@ -47,6 +48,7 @@ public class CP210xSerialPort extends USBSerialPort {
 
     private UsbEndpoint readEndpoint;
     private UsbEndpoint writeEndpoint;
+    private volatile boolean readPipelineActive;
 
     CP210xSerialPort(UsbManager usbManager, UsbDevice usbDevice) {
         super(usbManager, usbDevice);
@@ -116,22 +118,105 @@ public class CP210xSerialPort extends USBSerialPort {
     }
 
     @Override
-    public int write(byte[] data) throws IOException {
-       return usbConnection.bulkTransfer(writeEndpoint, data, data.length, 0);
+    public void readPipelined(int bufferSize, int numRequests, ReadCallback callback)
+            throws IOException {
+        UsbRequest[] requests = new UsbRequest[numRequests];
+        ByteBuffer[] buffers = new ByteBuffer[numRequests];
+        boolean[] completed = new boolean[numRequests];
+
+        try {
+            for (int i = 0; i < numRequests; i++) {
+                buffers[i] = ByteBuffer.allocateDirect(bufferSize);
+                requests[i] = newUsbRequest();
+                if (!requests[i].initialize(usbConnection, readEndpoint)) {
+                    throw new IOException("Cannot initialize read request");
+                }
+                // The index tells read completions apart from writeAsync() completions
+                requests[i].setClientData(i);
+                if (!requests[i].queue(buffers[i], bufferSize)) {
+                    throw new IOException("Cannot queue read request");
+                }
+            }
+            readPipelineActive = true;
+
+            int next = 0;
+            for (;;) {
+                UsbRequest usbRequest = waitForRequest();
+                if (usbRequest == null) {
+                    if (usbConnection == null) {
+                        return;
+                    }
+                    throw new IOException("requestWait() failed");
+                }
+
+                Object clientData = usbRequest.getClientData();
+                if (!(clientData instanceof Integer)) {
+                    usbRequest.close();
+                    continue;
+                }
+                completed[(Integer)clientData] = true;
+
+                // Bulk IN transfers on one endpoint complete in order, but hand them over
+                // strictly in queue order regardless
+                while (completed[next]) {
+                    ByteBuffer buf = buffers[next];
+                    buf.flip();
+                    callback.onDataRead(buf);
+                    buf.clear();
+                    completed[next] = false;
+                    if (!requests[next].queue(buf, bufferSize)) {
+                        throw new IOException("Cannot requeue read request");
+                    }
+                    next = (next + 1) % numRequests;
+                }
+            }
+        } finally {
+            readPipelineActive = false;
+            for (UsbRequest usbRequest : requests) {
+                if (usbRequest != null) {
+                    usbRequest.cancel();
+                    usbRequest.close();
+                }
+            }
+        }
+    }
+
+    @Override
+    public int write(byte[] data, int offset, int length) throws IOException {
+       return usbConnection.bulkTransfer(writeEndpoint, data, offset, length, 0);
     }
 
     @Override
     public void writeAsync(byte[] data) throws IOException {
         UsbRequest usbRequest = new UsbRequest();
         usbRequest.initialize(usbConnection, writeEndpoint);
-        ByteBuffer byteBuf = ByteBuffer.allocate(data.length);
-        byteBuf.put(data);
-        usbRequest.queue(byteBuf, data.length);
+        // data must not be modified until the transfer completes
+        usbRequest.queue(ByteBuffer.wrap(data), data.length);
     }
 
     @Override
     public void requestWait() {
-        usbConnection.requestWait();
+        // While readPipelined() is running it reaps every completed request itself, so waiting
+        // here could swallow a read
+        if (readPipelineActive) {
+            return;
+        }
+        waitForRequest();
+    }
+
+    // The two calls readPipelined() makes into the USB stack, split out so it can be driven by a
+    // fake port on the JVM
+    UsbRequest newUsbRequest() {
+        return new UsbRequest();
+    }
+
+    // Returns null once the port has been closed
+    UsbRequest waitForRequest() {
+        UsbDeviceConnection connection = usbConnection;
+        if (connection == null) {
+            return null;
+        }
+        return connection.requestWait();
     }
 
     @Override
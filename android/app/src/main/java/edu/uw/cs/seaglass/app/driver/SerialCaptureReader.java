@@ -0,0 +1,93 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.driver;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+
+// Reads serial captures. A capture is a header followed by one record per read from the port:
+//   header: u32 magic "SGSC", u16 version
+//   record: s64 timestamp (ns since the start of the capture), u32 length, data[length]
+// All fields are big-endian.
+public class SerialCaptureReader implements Closeable {
+    public static final int MAGIC = 0x53475343;
+    public static final short VERSION = 1;
+
+    private final DataInputStream in;
+    private byte[] data = new byte[4096];
+    private int length;
+    private long timestampNanos;
+
+    public SerialCaptureReader(File file) throws IOException {
+        in = new DataInputStream(new BufferedInputStream(new FileInputStream(file), 1 << 16));
+        try {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(file + " is not a serial capture");
+            }
+            short version = in.readShort();
+            if (version != VERSION) {
+                throw new IOException("Unsupported serial capture version " + version);
+            }
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+    }
+
+    // Advances to the next record; returns false at the end of the capture. A record cut short
+    // by the recorder dying is treated as the end.
+    public boolean next() throws IOException {
+        try {
+            timestampNanos = in.readLong();
+            length = in.readInt();
+            if (length < 0) {
+                throw new IOException("Corrupt serial capture record");
+            }
+            if (length > data.length) {
+                data = new byte[Math.max(length, data.length * 2)];
+            }
+            in.readFully(data, 0, length);
+            return true;
+        } catch (EOFException e) {
+            length = 0;
+            return false;
+        }
+    }
+
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    // Only valid until the next call to next()
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        in.close();
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.driver;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import edu.uw.cs.seaglass.app.Utils;
+
+// Records serial reads to a capture file in the format SerialCaptureReader documents. The caller
+// only appends records to an in-memory buffer; a background thread swaps that buffer out and
+// writes it to the end of the file, so recording never waits on storage. If the writer falls
+// more than MAX_PENDING_BYTES behind, reads are dropped from the capture and counted.
+public class SerialCaptureWriter extends Thread implements Closeable {
+    private static final String TAG = Utils.TAG_PREFIX + "SerialCapture";
+    private static final int RECORD_HEADER_LEN = 12;
+    private static final int INITIAL_BUF_SIZE = 64 * 1024;
+    private static final int MAX_PENDING_BYTES = 4 * 1024 * 1024;
+    private static final long FLUSH_INTERVAL = 1000;
+
+    private final DataOutputStream out;
+    private final long startNanos;
+    private byte[] pending = new byte[INITIAL_BUF_SIZE];
+    private int pendingLen;
+    private byte[] spare = new byte[INITIAL_BUF_SIZE];
+    private boolean closed;
+    private volatile long droppedReads;
+    private volatile IOException error;
+
+    public SerialCaptureWriter(File file) throws IOException {
+        out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 16));
+        out.writeInt(SerialCaptureReader.MAGIC);
+        out.writeShort(SerialCaptureReader.VERSION);
+        startNanos = System.nanoTime();
+        setName("SerialCaptureWriter");
+        start();
+    }
+
+    public void record(byte[] data, int offset, int length) {
+        long timestamp = System.nanoTime() - startNanos;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            int needed = pendingLen + RECORD_HEADER_LEN + length;
+            if (needed > MAX_PENDING_BYTES) {
+                droppedReads++;
+                return;
+            }
+            if (needed > pending.length) {
+                byte[] larger = new byte[Math.min(MAX_PENDING_BYTES,
+                        Math.max(needed, pending.length * 2))];
+                System.arraycopy(pending, 0, larger, 0, pendingLen);
+                pending = larger;
+            }
+            putLong(timestamp);
+            putInt(length);
+            System.arraycopy(data, offset, pending, pendingLen, length);
+            pendingLen += length;
+            if (pendingLen >= pending.length / 2) {
+                notify();
+            }
+        }
+    }
+
+    private void putLong(long v) {
+        putInt((int)(v >>> 32));
+        putInt((int)v);
+    }
+
+    private void putInt(int v) {
+        pending[pendingLen++] = (byte)(v >>> 24);
+        pending[pendingLen++] = (byte)(v >>> 16);
+        pending[pendingLen++] = (byte)(v >>> 8);
+        pending[pendingLen++] = (byte)v;
+    }
+
+    public long getDroppedReads() {
+        return droppedReads;
+    }
+
+    public void run() {
+        try {
+            for (;;) {
+                byte[] buf;
+                int len;
+                boolean done;
+                synchronized (this) {
+                    if (!closed && pendingLen < pending.length / 2) {
+                        wait(FLUSH_INTERVAL);
+                    }
+                    buf = pending;
+                    len = pendingLen;
+                    if (spare.length < pending.length) {
+                        spare = new byte[pending.length];
+                    }
+                    pending = spare;
+                    pendingLen = 0;
+                    spare = buf;
+                    done = closed;
+                }
+                out.write(buf, 0, len);
+                out.flush();
+                if (done) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            Log.w(TAG, e);
+            error = e;
+        } catch (InterruptedException e) {
+            // Fall through and close the file
+        } finally {
+            try {
+                out.close();
+            } catch (IOException e) {
+                Log.w(TAG, e);
+            }
+        }
+    }
+
+    // Writes out whatever is still buffered and closes the file
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            closed = true;
+            notify();
+        }
+        try {
+            join();
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while closing capture", e);
+        }
+        if (error != null) {
+            throw error;
+        }
+    }
+}
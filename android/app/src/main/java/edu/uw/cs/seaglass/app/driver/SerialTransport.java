@@ -0,0 +1,44 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.driver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// The byte stream the osmocon code talks to the phone over. USBSerialPort is the real one; the
+// unit tests have loopback, pty and replay transports so the same code runs on a plain JVM
+// without a phone.
+public interface SerialTransport {
+    interface ReadCallback {
+        // buf holds the bytes read between its position and limit. It is reused for a later
+        // transfer as soon as this returns, so the data must be consumed or copied out.
+        void onDataRead(ByteBuffer buf) throws IOException;
+    }
+
+    void open() throws IOException;
+    void close();
+    void setBaudRate(int baudRate) throws IOException;
+
+    // Reads until the transport is closed (or runs out of data), handing every chunk to the
+    // callback in the order it was received
+    void readPipelined(int bufferSize, int numRequests, ReadCallback callback) throws IOException;
+
+    int write(byte[] data) throws IOException;
+    int write(byte[] data, int offset, int length) throws IOException;
+    void writeAsync(byte[] data) throws IOException;
+    void requestWait();
+}
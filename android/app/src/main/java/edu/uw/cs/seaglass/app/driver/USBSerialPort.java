@@ -22,8 +22,9 @@ import android.hardware.usb.UsbDeviceConnection;
 import android.hardware.usb.UsbManager;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
-public abstract class USBSerialPort {
+public abstract class USBSerialPort implements SerialTransport {
     protected UsbManager usbManager;
     protected UsbDevice usbDevice;
     protected UsbDeviceConnection usbConnection;
@@ -41,10 +42,12 @@ public abstract class USBSerialPort {
         usbManager.requestPermission(usbDevice, pendingIntent);
     }
 
+    @Override
     public void open() throws IOException {
         usbConnection = usbManager.openDevice(usbDevice);
     }
 
+    @Override
     public void close() {
         if (usbConnection != null) {
             usbConnection.close();
@@ -56,9 +59,24 @@ public abstract class USBSerialPort {
         return usbDevice.getDeviceName();
     }
 
+    // This default just loops over read(); drivers can override it to keep several transfers in
+    // flight so the device FIFO is drained while the callback is running.
+    @Override
+    public void readPipelined(int bufferSize, int numRequests, ReadCallback callback)
+            throws IOException {
+        for (;;) {
+            callback.onDataRead(ByteBuffer.wrap(read(bufferSize)));
+        }
+    }
+
     abstract public void setBaudRate(int baudRate) throws IOException;
     abstract public byte[] read(int length) throws IOException;
-    abstract public int write(byte[] data) throws IOException;
+    @Override
+    public int write(byte[] data) throws IOException {
+        return write(data, 0, data.length);
+    }
+
+    abstract public int write(byte[] data, int offset, int length) throws IOException;
     abstract public void writeAsync(byte[] data) throws IOException;
     abstract public void requestWait();
 }
@@ -0,0 +1,232 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.uw.cs.seaglass.app.logging;
+
+import edu.uw.cs.seaglass.app.Utils;
+import edu.uw.cs.seaglass.app.db.CellObservation;
+import edu.uw.cs.seaglass.app.db.MeasurementHeader;
+import edu.uw.cs.seaglass.app.db.SpectrumSweep;
+
+// Decodes the binary record format cell_log writes when started with -B. Each record is a
+// 4 byte header followed by the body, all multi-byte fields big-endian:
+//
+//   0 magic (0xCE), 1 record type, 2 body length (u16)
+//
+// RECORD_POWER, one sweep (the same as a [power] line):
+//   0 arfcn (u16, with the PCS flag), 2.. one signed dBm byte per ARFCN from arfcn on
+//
+// RECORD_SYSINFO, one cell (the same as a [sysinfo] section):
+//   0 arfcn (u16, with the PCS flag), 2 rxlev (s8), 3 bsic (ncc << 4 | bcc),
+//   4 ta (0xff if not known), 5.. SI messages, each as type (SI_*), length (u8), bytes
+//
+// Records come whole from the writer but may be split across reads, so a partial one is carried
+// over. A byte where a magic byte should be starts a resync: bytes are skipped up to the next
+// magic byte and the skipped run is counted as one malformed record.
+class CellLogBinaryDecoder implements CellLogDecoder {
+    static final byte MAGIC = (byte)0xCE;
+    static final byte RECORD_POWER = 1;
+    static final byte RECORD_SYSINFO = 2;
+
+    static final byte SI_1 = 1;
+    static final byte SI_2 = 2;
+    static final byte SI_2QUATER = 3;
+    static final byte SI_3 = 4;
+    static final byte SI_4 = 5;
+    static final byte SI_13 = 6;
+
+    static final int HEADER_LEN = 4;
+    private static final int POWER_FIXED_LEN = 2;
+    private static final int SYSINFO_FIXED_LEN = 5;
+
+    private final CellObservationReceiver cellObservationReceiver;
+    private final SpectrumSweepReceiver spectrumSweepReceiver;
+
+    // Partial record left over from the previous read; always starts with a magic byte
+    private final byte[] carry = new byte[HEADER_LEN + 0xffff];
+    private int carryLength;
+    private boolean resyncing;
+
+    private long recordCount;
+    private long malformedRecords;
+
+    CellLogBinaryDecoder(CellObservationReceiver cellObservationReceiver,
+                         SpectrumSweepReceiver spectrumSweepReceiver) {
+        this.cellObservationReceiver = cellObservationReceiver;
+        this.spectrumSweepReceiver = spectrumSweepReceiver;
+    }
+
+    @Override
+    public void feed(byte[] buf, int off, int len, long timestamp) {
+        int pos = off;
+        int end = off + len;
+
+        // Finish the carried over record first, taking no more than it needs
+        while (carryLength > 0 && pos < end) {
+            int want = (carryLength < HEADER_LEN ? HEADER_LEN :
+                    HEADER_LEN + bodyLength(carry, 0)) - carryLength;
+            int n = Math.min(want, end - pos);
+            System.arraycopy(buf, pos, carry, carryLength, n);
+            carryLength += n;
+            pos += n;
+            if (carryLength >= HEADER_LEN &&
+                    carryLength == HEADER_LEN + bodyLength(carry, 0)) {
+                decodeRecord(carry, 0, timestamp);
+                carryLength = 0;
+            }
+        }
+
+        while (pos < end) {
+            if (buf[pos] != MAGIC) {
+                if (!resyncing) {
+                    resyncing = true;
+                    malformedRecords++;
+                }
+                pos++;
+                continue;
+            }
+            resyncing = false;
+            if (end - pos < HEADER_LEN) {
+                break;
+            }
+            int recordLen = HEADER_LEN + bodyLength(buf, pos);
+            if (end - pos < recordLen) {
+                break;
+            }
+            decodeRecord(buf, pos, timestamp);
+            pos += recordLen;
+        }
+
+        if (pos < end) {
+            System.arraycopy(buf, pos, carry, 0, end - pos);
+            carryLength = end - pos;
+        }
+    }
+
+    @Override
+    public void reset() {
+        carryLength = 0;
+        resyncing = false;
+    }
+
+    @Override
+    public long getRecordCount() {
+        return recordCount;
+    }
+
+    @Override
+    public long getMalformedRecords() {
+        return malformedRecords;
+    }
+
+    private static int bodyLength(byte[] b, int recordStart) {
+        return ((b[recordStart + 2] & 0xff) << 8) | (b[recordStart + 3] & 0xff);
+    }
+
+    private void decodeRecord(byte[] b, int recordStart, long timestamp) {
+        recordCount++;
+        int body = recordStart + HEADER_LEN;
+        int bodyLen = bodyLength(b, recordStart);
+        try {
+            switch (b[recordStart + 1]) {
+                case RECORD_POWER:
+                    decodePower(b, body, bodyLen, timestamp);
+                    break;
+                case RECORD_SYSINFO:
+                    decodeSysinfo(b, body, bodyLen, timestamp);
+                    break;
+                default:
+                    // Newer record types are skipped over by their length
+                    break;
+            }
+        } catch (IllegalArgumentException e) {
+            // Truncated body, or an ARFCN outside every band
+            malformedRecords++;
+        }
+    }
+
+    private void decodePower(byte[] b, int body, int bodyLen, long timestamp)
+            throws IllegalArgumentException {
+        if (bodyLen < POWER_FIXED_LEN) {
+            throw new IllegalArgumentException("Short power record");
+        }
+        short arfcn = (short)(((b[body] & 0xff) << 8) | (b[body + 1] & 0xff));
+
+        SpectrumSweep sweep = new SpectrumSweep();
+        sweep.timestamp = timestamp;
+        sweep.band = Utils.bandFromARFCN(arfcn, Utils.isPCS(arfcn));
+        sweep.startArfcn = (short)(arfcn & 0x3fff);
+        sweep.dBm = new byte[bodyLen - POWER_FIXED_LEN];
+        System.arraycopy(b, body + POWER_FIXED_LEN, sweep.dBm, 0, sweep.dBm.length);
+        spectrumSweepReceiver.onSpectrumSweepReceived(sweep);
+    }
+
+    private void decodeSysinfo(byte[] b, int body, int bodyLen, long timestamp)
+            throws IllegalArgumentException {
+        if (bodyLen < SYSINFO_FIXED_LEN) {
+            throw new IllegalArgumentException("Short sysinfo record");
+        }
+        short arfcn = (short)(((b[body] & 0xff) << 8) | (b[body + 1] & 0xff));
+
+        MeasurementHeader measurementHeader = new MeasurementHeader();
+        measurementHeader.timestamp = timestamp;
+        measurementHeader.band = Utils.bandFromARFCN(arfcn, Utils.isPCS(arfcn));
+        measurementHeader.arfcn = (short)(arfcn & 0x3fff);
+        measurementHeader.dBm = b[body + 2];
+
+        CellObservation cellObservation = new CellObservation();
+        cellObservation.measurementHeader = measurementHeader;
+        cellObservation.bsic = b[body + 3];
+        cellObservation.ta = b[body + 4];
+
+        int pos = body + SYSINFO_FIXED_LEN;
+        int end = body + bodyLen;
+        while (pos < end) {
+            if (end - pos < 2 || end - pos - 2 < (b[pos + 1] & 0xff)) {
+                throw new IllegalArgumentException("Truncated SI message");
+            }
+            byte siType = b[pos];
+            byte[] payload = new byte[b[pos + 1] & 0xff];
+            System.arraycopy(b, pos + 2, payload, 0, payload.length);
+            pos += 2 + payload.length;
+
+            switch (siType) {
+                case SI_1:
+                    cellObservation.si1 = payload;
+                    break;
+                case SI_2:
+                    cellObservation.si2 = payload;
+                    break;
+                case SI_2QUATER:
+                    cellObservation.si2quat = payload;
+                    break;
+                case SI_3:
+                    cellObservation.si3 = payload;
+                    break;
+                case SI_4:
+                    cellObservation.si4 = payload;
+                    break;
+                case SI_13:
+                    cellObservation.si13 = payload;
+                    break;
+                default:
+                    break;
+            }
+        }
+        cellObservationReceiver.onCellObservationReceived(cellObservation);
+    }
+}
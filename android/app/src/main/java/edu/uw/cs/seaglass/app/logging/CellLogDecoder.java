@@ -0,0 +1,33 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.uw.cs.seaglass.app.logging;
+
+// Turns the bytes cell_log writes to its FIFO into observations and sweeps. cell_log can write
+// either line-oriented text (CellLogParser) or length-prefixed binary records
+// (CellLogBinaryDecoder); CellLogProvider picks one from the first byte it reads.
+interface CellLogDecoder {
+    // Decodes every complete record in buf[off, off + len); timestamp is when it was read
+    void feed(byte[] buf, int off, int len, long timestamp);
+
+    // Forgets any partial record, e.g. when the writer has gone away
+    void reset();
+
+    long getRecordCount();
+
+    long getMalformedRecords();
+}
@@ -0,0 +1,333 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.uw.cs.seaglass.app.logging;
+
+import java.nio.charset.StandardCharsets;
+
+import edu.uw.cs.seaglass.app.Utils;
+import edu.uw.cs.seaglass.app.db.CellObservation;
+import edu.uw.cs.seaglass.app.db.MeasurementHeader;
+import edu.uw.cs.seaglass.app.db.SpectrumSweep;
+
+// Parses cell_log output straight from the bytes read off the FIFO. Lines are tokenized and
+// numbers and SI hex decoded in place, so the only allocations are the entities themselves and
+// the SI and power arrays they keep. A line split across reads is carried over in a small buffer.
+//
+// The format is sections of lines like:
+//   [power]                      [sysinfo]
+//   time 1546300800              time 1546300800
+//   arfcn 128 -110 -98 -105      arfcn 128
+//                                bsic 3,5
+//                                rxlev -71
+//                                si1 55 06 19 ...
+//                                (blank line ends the observation)
+class CellLogParser implements CellLogDecoder {
+    private enum LogSection {
+        NONE,
+        POWER,
+        SYSINFO
+    }
+
+    private static final int MAX_LINE_LENGTH = 4096;
+
+    private static final byte[] POWER_SECTION = ascii("[power]");
+    private static final byte[] SYSINFO_SECTION = ascii("[sysinfo]");
+    private static final byte[] TIME = ascii("time");
+    private static final byte[] ARFCN = ascii("arfcn");
+    private static final byte[] RXLEV = ascii("rxlev");
+    private static final byte[] TA = ascii("ta");
+    private static final byte[] BSIC = ascii("bsic");
+    private static final byte[] SI1 = ascii("si1");
+    private static final byte[] SI2 = ascii("si2");
+    private static final byte[] SI2QUATER = ascii("si2quater");
+    private static final byte[] SI3 = ascii("si3");
+    private static final byte[] SI4 = ascii("si4");
+    private static final byte[] SI13 = ascii("si13");
+
+    private final CellObservationReceiver cellObservationReceiver;
+    private final SpectrumSweepReceiver spectrumSweepReceiver;
+
+    private LogSection currentSection = LogSection.NONE;
+    private MeasurementHeader measurementHeader;
+    private CellObservation cellObservation;
+
+    // Partial line left over from the previous read
+    private byte[] carry = new byte[256];
+    private int carryLength;
+    private boolean discardingLine;
+    // Read position of the token currently being parsed
+    private int pos;
+
+    private long lineCount;
+    private long malformedLines;
+
+    CellLogParser(CellObservationReceiver cellObservationReceiver,
+                  SpectrumSweepReceiver spectrumSweepReceiver) {
+        this.cellObservationReceiver = cellObservationReceiver;
+        this.spectrumSweepReceiver = spectrumSweepReceiver;
+    }
+
+    @Override
+    public void feed(byte[] buf, int off, int len, long timestamp) {
+        int end = off + len;
+        int start = off;
+        for (int i = off; i < end; i++) {
+            if (buf[i] != '\n') {
+                continue;
+            }
+            if (carryLength == 0 && !discardingLine) {
+                parseLine(buf, start, i, timestamp);
+            } else {
+                appendCarry(buf, start, i);
+                if (!discardingLine) {
+                    parseLine(carry, 0, carryLength, timestamp);
+                }
+                carryLength = 0;
+                discardingLine = false;
+            }
+            start = i + 1;
+        }
+        appendCarry(buf, start, end);
+    }
+
+    @Override
+    public void reset() {
+        carryLength = 0;
+        discardingLine = false;
+        currentSection = LogSection.NONE;
+    }
+
+    @Override
+    public long getRecordCount() {
+        return lineCount;
+    }
+
+    @Override
+    public long getMalformedRecords() {
+        return malformedLines;
+    }
+
+    private void appendCarry(byte[] buf, int start, int end) {
+        int n = end - start;
+        if (n == 0 || discardingLine) {
+            return;
+        }
+        if (carryLength + n > MAX_LINE_LENGTH) {
+            // Not something cell_log writes; skip to the next newline
+            carryLength = 0;
+            discardingLine = true;
+            malformedLines++;
+            return;
+        }
+        if (carryLength + n > carry.length) {
+            byte[] grown = new byte[Math.min(MAX_LINE_LENGTH,
+                    Math.max(carry.length * 2, carryLength + n))];
+            System.arraycopy(carry, 0, grown, 0, carryLength);
+            carry = grown;
+        }
+        System.arraycopy(buf, start, carry, carryLength, n);
+        carryLength += n;
+    }
+
+    private void parseLine(byte[] b, int start, int end, long timestamp) {
+        lineCount++;
+        if (end > start && b[end - 1] == '\r') {
+            end--;
+        }
+        try {
+            parseLineUnchecked(b, start, end, timestamp);
+        } catch (IllegalArgumentException e) {
+            // Bad number, or an ARFCN outside every band
+            malformedLines++;
+        }
+    }
+
+    private void parseLineUnchecked(byte[] b, int start, int end, long timestamp)
+            throws IllegalArgumentException {
+        if (start == end) {
+            if (currentSection == LogSection.SYSINFO) {
+                cellObservationReceiver.onCellObservationReceived(cellObservation);
+            }
+            return;
+        }
+
+        int keywordEnd = start;
+        while (keywordEnd < end && b[keywordEnd] != ' ') {
+            keywordEnd++;
+        }
+
+        if (matches(b, start, keywordEnd, POWER_SECTION)) {
+            currentSection = LogSection.POWER;
+            measurementHeader = new MeasurementHeader();
+            return;
+        } else if (matches(b, start, keywordEnd, SYSINFO_SECTION)) {
+            currentSection = LogSection.SYSINFO;
+            measurementHeader = new MeasurementHeader();
+            cellObservation = new CellObservation();
+
+            // Need to initialize the TA (since sometimes it isn't specified)
+            cellObservation.ta = CellObservation.NO_TA;
+            cellObservation.measurementHeader = measurementHeader;
+            return;
+        } else if (currentSection == LogSection.NONE) {
+            return;
+        }
+
+        pos = keywordEnd;
+        if (matches(b, start, keywordEnd, TIME)) {
+            measurementHeader.timestamp = parseNumber(b, end) * 1000;
+        } else if (matches(b, start, keywordEnd, ARFCN)) {
+            measurementHeader.arfcn = (short)parseNumber(b, end);
+            measurementHeader.band = Utils.bandFromARFCN(measurementHeader.arfcn,
+                    Utils.isPCS(measurementHeader.arfcn));
+            measurementHeader.arfcn = (short)(measurementHeader.arfcn & 0x3fff);
+            measurementHeader.timestamp = timestamp;
+            if (currentSection == LogSection.POWER) {
+                // The rest of the line is the power on this and the following ARFCNs
+                SpectrumSweep sweep = new SpectrumSweep();
+                sweep.timestamp = timestamp;
+                sweep.band = measurementHeader.band;
+                sweep.startArfcn = measurementHeader.arfcn;
+                sweep.dBm = new byte[countTokens(b, pos, end)];
+                for (int i = 0; i < sweep.dBm.length; i++) {
+                    sweep.dBm[i] = (byte)parseNumber(b, end);
+                }
+                spectrumSweepReceiver.onSpectrumSweepReceived(sweep);
+            }
+        } else if (matches(b, start, keywordEnd, RXLEV)) {
+            measurementHeader.dBm = (byte)parseNumber(b, end);
+        } else if (currentSection != LogSection.SYSINFO) {
+            return;
+        } else if (matches(b, start, keywordEnd, TA)) {
+            cellObservation.ta = (byte)parseNumber(b, end);
+        } else if (matches(b, start, keywordEnd, BSIC)) {
+            // "ncc,bcc", one digit each
+            if (keywordEnd + 3 >= end) {
+                throw new NumberFormatException("Short bsic line");
+            }
+            cellObservation.bsic = (byte)(((b[keywordEnd + 1] - '0') << 4) |
+                    (b[keywordEnd + 3] - '0'));
+        } else if (keywordEnd - start >= 2 && b[start] == 's' && b[start + 1] == 'i') {
+            byte[] payload = parseHexBytes(b, keywordEnd, end);
+            if (matches(b, start, keywordEnd, SI1)) {
+                cellObservation.si1 = payload;
+            } else if (matches(b, start, keywordEnd, SI2)) {
+                cellObservation.si2 = payload;
+            } else if (matches(b, start, keywordEnd, SI2QUATER)) {
+                cellObservation.si2quat = payload;
+            } else if (matches(b, start, keywordEnd, SI3)) {
+                cellObservation.si3 = payload;
+            } else if (matches(b, start, keywordEnd, SI4)) {
+                cellObservation.si4 = payload;
+            } else if (matches(b, start, keywordEnd, SI13)) {
+                cellObservation.si13 = payload;
+            }
+        }
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static boolean matches(byte[] b, int start, int end, byte[] keyword) {
+        if (end - start != keyword.length) {
+            return false;
+        }
+        for (int i = 0; i < keyword.length; i++) {
+            if (b[start + i] != keyword[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Skips spaces; true if another token follows
+    private boolean hasToken(byte[] b, int end) {
+        while (pos < end && b[pos] == ' ') {
+            pos++;
+        }
+        return pos < end;
+    }
+
+    // Parses the next token as a signed decimal number
+    private long parseNumber(byte[] b, int end) throws NumberFormatException {
+        if (!hasToken(b, end)) {
+            throw new NumberFormatException("Missing number");
+        }
+        boolean negative = false;
+        if (b[pos] == '-') {
+            negative = true;
+            pos++;
+        }
+        int digitsStart = pos;
+        long value = 0;
+        while (pos < end && b[pos] != ' ') {
+            int digit = b[pos] - '0';
+            if (digit < 0 || digit > 9) {
+                throw new NumberFormatException("Bad digit");
+            }
+            value = value * 10 + digit;
+            pos++;
+        }
+        if (pos == digitsStart) {
+            throw new NumberFormatException("Missing digits");
+        }
+        return negative ? -value : value;
+    }
+
+    private static int countTokens(byte[] b, int start, int end) {
+        int count = 0;
+        boolean inToken = false;
+        for (int i = start; i < end; i++) {
+            boolean space = b[i] == ' ';
+            if (!space && !inToken) {
+                count++;
+            }
+            inToken = !space;
+        }
+        return count;
+    }
+
+    // Decodes the hex byte tokens in b[start, end); the array is sized by counting them first
+    private static byte[] parseHexBytes(byte[] b, int start, int end)
+            throws NumberFormatException {
+        byte[] payload = new byte[countTokens(b, start, end)];
+        int n = 0;
+        int value = 0;
+        boolean inToken = false;
+        for (int i = start; i < end; i++) {
+            if (b[i] == ' ') {
+                if (inToken) {
+                    payload[n++] = (byte)value;
+                    inToken = false;
+                }
+                continue;
+            }
+            int digit = Character.digit(b[i], 16);
+            if (digit < 0) {
+                throw new NumberFormatException("Bad hex digit");
+            }
+            value = inToken ? (value << 4) | digit : digit;
+            inToken = true;
+        }
+        if (inToken) {
+            payload[n] = (byte)value;
+        }
+        return payload;
+    }
+}
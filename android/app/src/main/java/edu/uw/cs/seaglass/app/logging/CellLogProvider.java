@@ -18,142 +18,113 @@ package edu.uw.cs.seaglass.app.logging;
 
 import android.util.Log;
 
-import java.io.BufferedReader;
-import java.io.FileNotFoundException;
-import java.io.FileReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 
 import edu.uw.cs.seaglass.app.Utils;
-import edu.uw.cs.seaglass.app.db.CellObservation;
-import edu.uw.cs.seaglass.app.db.MeasurementHeader;
-import edu.uw.cs.seaglass.app.db.SpectrumMeasurement;
 
 public class CellLogProvider extends Thread {
-    private enum LogSection {
-        NONE,
-        POWER,
-        SYSINFO
-    }
-
-    private LogSection currentSection = LogSection.NONE;
-    private String logName;
     private static final String TAG = Utils.TAG_PREFIX + "CellLogProvider";
+    private static final int READ_BUF_SIZE = 8192;
 
-    private MeasurementHeader measurementHeader;
-    private CellObservation cellObservation;
-    private CellObservationReceiver cellObservationReceiver;
-    private SpectrumMeasurement spectrumMeasurement;
-    private SpectrumMeasurementReceiver spectrumMeasurementReceiver;
-    private BufferedReader log;
+    private FifoAttacher attacher;
+    private CellLogDecoder textDecoder;
+    private CellLogDecoder binaryDecoder;
+    // Chosen from the first byte cell_log writes after each attach, since whether it was started
+    // with -B depends on what the installed cell_log supports (see OsmocomBinaries)
+    private CellLogDecoder decoder;
+    private FileInputStream log;
 
     public CellLogProvider(String logName,
                            CellObservationReceiver cellObservationReceiver,
-                           SpectrumMeasurementReceiver spectrumMeasurementReceiver)
+                           SpectrumSweepReceiver spectrumSweepReceiver)
             throws IOException {
-        this.logName = logName;
-        this.cellObservationReceiver = cellObservationReceiver;
-        this.spectrumMeasurementReceiver = spectrumMeasurementReceiver;
+        attacher = new FifoAttacher(new File(logName));
+        textDecoder = new CellLogParser(cellObservationReceiver, spectrumSweepReceiver);
+        binaryDecoder = new CellLogBinaryDecoder(cellObservationReceiver, spectrumSweepReceiver);
+    }
+
+    // Binary records start with a magic byte that text never contains
+    static CellLogDecoder pickDecoder(byte firstByte, CellLogDecoder textDecoder,
+                                      CellLogDecoder binaryDecoder) {
+        return firstByte == CellLogBinaryDecoder.MAGIC ? binaryDecoder : textDecoder;
     }
 
     public void run() {
-        // Loop until we open the fifo
+        byte[] buf = new byte[READ_BUF_SIZE];
         for (;;) {
+            if (log == null) {
+                try {
+                    log = attacher.attach();
+                } catch (InterruptedException e) {
+                    Log.d(TAG, "CellLogProvider interrupted");
+                    break;
+                }
+            }
+
+            int len;
             try {
-                log = new BufferedReader(new FileReader(logName));
+                len = log.read(buf);
+            } catch (IOException e) {
+                Log.e(TAG, "Got IOException reading cell log", e);
                 break;
-            } catch (FileNotFoundException e) {
-                //Log.e(TAG, "Log file not ready yet...", e);
             }
-        }
 
-        for (;;) {
             if (Thread.interrupted()){
                 Log.d(TAG, "CellLogProvider interrupted");
                 break;
             }
-
-            try {
-                String line = log.readLine();
-                long lineTimestamp = System.currentTimeMillis();
-
-                if (line == null) {
-                    break;
-                } else if (line.equals("[power]")) {
-                    currentSection = LogSection.POWER;
-                    measurementHeader = new MeasurementHeader();
-                    spectrumMeasurement = new SpectrumMeasurement();
-                    spectrumMeasurement.measurementHeader = measurementHeader;
-                } else if (line.equals("[sysinfo]")) {
-                    currentSection = LogSection.SYSINFO;
-                    measurementHeader = new MeasurementHeader();
-                    cellObservation = new CellObservation();
-
-                    // Need to initialize the TA (since sometimes it isn't specified)
-                    cellObservation.ta = CellObservation.NO_TA;
-                    cellObservation.measurementHeader = measurementHeader;
-                } else if (line.equals("") && currentSection == LogSection.SYSINFO) {
-                    cellObservationReceiver.onCellObservationReceived(cellObservation);
-                } else {
-                    String[] tokens = line.split(" ");
-                    if (tokens[0].equals("time")) {
-                        measurementHeader.timestamp = Long.parseLong(tokens[1] + "000");
-                    } else if (tokens[0].equals("arfcn")) {
-                        measurementHeader.arfcn = (short)Integer.parseInt(tokens[1]);
-                        measurementHeader.band = Utils.bandFromARFCN(measurementHeader.arfcn,
-                                Utils.isPCS(measurementHeader.arfcn));
-                        measurementHeader.arfcn = (short) (measurementHeader.arfcn & 0x3fff);
-                        measurementHeader.timestamp = lineTimestamp;
-                        if (currentSection == LogSection.POWER) {
-                            for (int i = 2; i < tokens.length; i++) {
-                                measurementHeader.dBm = Byte.parseByte(tokens[i]);
-                                spectrumMeasurementReceiver.
-                                        onSpectrumMeasurementReceived(spectrumMeasurement);
-                                measurementHeader.arfcn++;
-                            }
-                        }
-                    } else if (tokens[0].equals("rxlev")) {
-                        measurementHeader.dBm = Byte.parseByte(tokens[1]);
-                    } else if (tokens[0].equals("ta")) {
-                        cellObservation.ta = Byte.parseByte(tokens[1]);
-                    } else if (tokens[0].equals("bsic")) {
-                        cellObservation.bsic = (byte)(((tokens[1].charAt(0) - 0x30) << 4) |
-                                (tokens[1].charAt(2) - 0x30));
-                    } else if (tokens[0].startsWith("si")) {
-                        byte[] payload = new byte[tokens.length - 1];
-                        for (int i = 0; i < payload.length; i++) {
-                            // Java sucks and doesn't have unsigned bytes so this is a dumb hack
-                            payload[i] = (byte)Short.parseShort(tokens[i + 1], 16);
-                        }
-                        if (tokens[0].equals("si1")) {
-                            cellObservation.si1 = payload;
-                        } else if (tokens[0].equals("si2")) {
-                            cellObservation.si2 = payload;
-                        } else if (tokens[0].equals("si2quater")) {
-                            cellObservation.si2quat = payload;
-                        } else if (tokens[0].equals("si3")) {
-                            cellObservation.si3 = payload;
-                        } else if (tokens[0].equals("si4")) {
-                            cellObservation.si4 = payload;
-                        } else if (tokens[0].equals("si13")) {
-                            cellObservation.si13 = payload;
-                        }
-
-                    }
+            if (attacher.isStale() || len < 0) {
+                // cell_log was restarted with a new pipe. Whatever was left in the old one is
+                // from the process that was killed.
+                Log.d(TAG, "Cell log pipe recreated, reattaching");
+                close();
+                if (decoder != null) {
+                    decoder.reset();
+                    decoder = null;
                 }
-                Log.d(TAG, line);
-            } catch (IOException e) {
-                Log.e(TAG, "Got IOException reading cell log", e);
-                break;
+                continue;
+            }
+            if (len == 0) {
+                continue;
+            }
+            if (decoder == null) {
+                decoder = pickDecoder(buf[0], textDecoder, binaryDecoder);
+                Log.d(TAG, "cell log is " + (decoder == binaryDecoder ? "binary" : "text"));
             }
+            decoder.feed(buf, 0, len, System.currentTimeMillis());
         }
 
+        Log.d(TAG, "Decoded " +
+                (textDecoder.getRecordCount() + binaryDecoder.getRecordCount()) +
+                " cell log records, " +
+                (textDecoder.getMalformedRecords() + binaryDecoder.getMalformedRecords()) +
+                " malformed; attached " +
+                attacher.getAttachCount() + " times, slowest " +
+                attacher.getMaxAttachLatency() + " ms");
         close();
         return;
     }
 
+    // Stops the thread even while it's blocked reading the FIFO
+    public void shutdown() {
+        interrupt();
+        attacher.wake();
+    }
+
+    // How long the last attach to the FIFO took, in ms
+    public long getLastAttachLatency() {
+        return attacher.getLastAttachLatency();
+    }
+
+    public long getMaxAttachLatency() {
+        return attacher.getMaxAttachLatency();
+    }
+
     private void close(){
-        try {
-            log.close();
-        } catch (IOException e){}
+        // The stream shares the attacher's descriptor, which detach() closes
+        attacher.detach();
+        log = null;
     }
 }
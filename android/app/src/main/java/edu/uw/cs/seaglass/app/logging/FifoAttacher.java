@@ -0,0 +1,173 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.uw.cs.seaglass.app.logging;
+
+import android.os.FileObserver;
+import android.os.ParcelFileDescriptor;
+import android.util.Log;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import edu.uw.cs.seaglass.app.Utils;
+
+// Attaches to a FIFO that another process creates, without spinning while it doesn't exist yet.
+// The directory is watched for the FIFO being created; in case that notification is missed (the
+// watch starts just after the file appears, or inotify isn't available) the file is also checked
+// again on a backoff that starts at MIN_BACKOFF and doubles up to MAX_BACKOFF.
+//
+// The FIFO is opened read-write. That open never blocks waiting for a writer, and the reader
+// never sees EOF when the writer exits, so a restarted writer reusing the same FIFO just carries
+// on. If the FIFO is recreated instead, the watch marks this attachment stale and writes a byte
+// into the old FIFO to wake the reader, which should then detach and attach again.
+//
+// Attach latency (from asking to attach until the FIFO is open) is kept for the last attach and
+// as a running maximum.
+class FifoAttacher {
+    private static final String TAG = Utils.TAG_PREFIX + "FifoAttacher";
+    private static final long MIN_BACKOFF = 10; // ms
+    private static final long MAX_BACKOFF = 1000; // ms
+
+    private final File fifo;
+    private final FileObserver observer;
+    private final Object lock = new Object();
+    private boolean created;
+    private volatile boolean stale;
+    private ParcelFileDescriptor fd;
+    private FileOutputStream wakeStream;
+
+    private volatile long attachCount;
+    private volatile long lastAttachLatency; // ms
+    private volatile long maxAttachLatency; // ms
+
+    FifoAttacher(File fifo) {
+        this.fifo = fifo;
+        observer = new FileObserver(fifo.getAbsoluteFile().getParent(),
+                FileObserver.CREATE | FileObserver.MOVED_TO) {
+            @Override
+            public void onEvent(int event, String path) {
+                if (FifoAttacher.this.fifo.getName().equals(path)) {
+                    synchronized (lock) {
+                        created = true;
+                        lock.notifyAll();
+                        if (fd != null) {
+                            stale = true;
+                        }
+                    }
+                    if (stale) {
+                        wake();
+                    }
+                }
+            }
+        };
+    }
+
+    // Blocks until the FIFO exists and is open; returns a stream to read it from
+    FileInputStream attach() throws InterruptedException {
+        long start = System.nanoTime();
+        synchronized (lock) {
+            created = false;
+        }
+        // Watch before the first look, so a FIFO created in between still wakes us
+        observer.startWatching();
+        long backoff = MIN_BACKOFF;
+        for (;;) {
+            try {
+                ParcelFileDescriptor opened = ParcelFileDescriptor.open(fifo,
+                        ParcelFileDescriptor.MODE_READ_WRITE);
+                synchronized (lock) {
+                    fd = opened;
+                    stale = false;
+                    wakeStream = new FileOutputStream(opened.getFileDescriptor());
+                }
+                recordAttach(System.nanoTime() - start);
+                return new FileInputStream(opened.getFileDescriptor());
+            } catch (FileNotFoundException e) {
+                // Not created yet
+            }
+            synchronized (lock) {
+                if (!created) {
+                    lock.wait(backoff);
+                }
+                created = false;
+            }
+            if (Thread.interrupted()) {
+                observer.stopWatching();
+                throw new InterruptedException();
+            }
+            backoff = Math.min(backoff * 2, MAX_BACKOFF);
+        }
+    }
+
+    // True once the FIFO has been recreated since it was attached
+    boolean isStale() {
+        return stale;
+    }
+
+    // Wakes a reader blocked on the attached FIFO; it will read a single newline
+    void wake() {
+        synchronized (lock) {
+            if (wakeStream == null) {
+                return;
+            }
+            try {
+                wakeStream.write('\n');
+            } catch (IOException e) {
+                Log.d(TAG, "Couldn't wake reader: " + e);
+            }
+        }
+    }
+
+    void detach() {
+        observer.stopWatching();
+        synchronized (lock) {
+            if (fd != null) {
+                try {
+                    fd.close();
+                } catch (IOException e) {}
+            }
+            fd = null;
+            wakeStream = null;
+        }
+    }
+
+    long getAttachCount() {
+        return attachCount;
+    }
+
+    long getLastAttachLatency() {
+        return lastAttachLatency;
+    }
+
+    long getMaxAttachLatency() {
+        return maxAttachLatency;
+    }
+
+    private void recordAttach(long latencyNanos) {
+        long latency = latencyNanos / 1000000;
+        attachCount++;
+        lastAttachLatency = latency;
+        if (latency > maxAttachLatency) {
+            maxAttachLatency = latency;
+        }
+        Log.d(TAG, "Attached to " + fifo.getName() + " in " + latency + " ms");
+    }
+}
@@ -16,8 +16,18 @@
 
 package edu.uw.cs.seaglass.app.logging;
 
+import java.util.List;
+
 import edu.uw.cs.seaglass.app.db.GSMPacket;
+import edu.uw.cs.seaglass.app.db.GSMPacketRepeats;
 
 public interface GSMPacketReceiver {
     void onGSMPacketReceived(GSMPacket pkt);
+
+    // Everything read from the socket in one wakeup. The list is reused for the next batch.
+    void onGSMPacketsReceived(List<GSMPacket> pkts);
+
+    // Final repeat counts of packets already received that have been seen again since. The
+    // list is reused too.
+    void onGSMPacketRepeatsUpdated(List<GSMPacketRepeats> repeats);
 }
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.logging;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.uw.cs.seaglass.app.db.GSMPacket;
+import edu.uw.cs.seaglass.app.db.GSMPacketRepeats;
+
+// Collapses repeated BCCH frames (system information repeats every few 51-multiframes) into one
+// GSMPacket with a repeat count and first/last-seen times. Other channels, CCCH paging in
+// particular, carry frames that matter each time they're sent and pass straight through.
+// Frames are keyed on ARFCN, timeslot, type, subtype and a hash of the payload; a hit is
+// confirmed byte for byte against the stored payload, so only distinct frames are ever copied
+// out of the receive buffer.
+//
+// The first occurrence is handed back for storing straight away, with a repeatCount of 1, and
+// held for a window; later repeats are only counted here, never in the packet, which the database
+// writer may be reading by then. Once the window is over, or it's the least recently seen entry
+// when the table is full, a packet that was repeated is handed back again as GSMPacketRepeats so
+// its count and lastSeen can be written to its row. Only the GSMTAP thread uses this.
+class GsmtapDeduplicator {
+    private static class Key {
+        int arfcn; // includes the PCS flag
+        byte timeslot;
+        byte type;
+        byte subtype;
+        int payloadLength;
+        int payloadHash;
+
+        Key copy() {
+            Key key = new Key();
+            key.arfcn = arfcn;
+            key.timeslot = timeslot;
+            key.type = type;
+            key.subtype = subtype;
+            key.payloadLength = payloadLength;
+            key.payloadHash = payloadHash;
+            return key;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key)o;
+            return arfcn == other.arfcn && timeslot == other.timeslot && type == other.type &&
+                    subtype == other.subtype && payloadLength == other.payloadLength &&
+                    payloadHash == other.payloadHash;
+        }
+
+        @Override
+        public int hashCode() {
+            return (((arfcn * 31 + timeslot) * 31 + type) * 31 + subtype) * 31 + payloadHash;
+        }
+    }
+
+    private static class Entry {
+        // Handed to the database; only its payload, which nothing changes, is read here
+        final GSMPacket pkt;
+        final long firstSeen;
+        int repeatCount = 1;
+        long lastSeen;
+
+        Entry(GSMPacket pkt, long timestamp) {
+            this.pkt = pkt;
+            firstSeen = timestamp;
+            lastSeen = timestamp;
+        }
+    }
+
+    private final int maxEntries;
+    private final long window;
+    private final LinkedHashMap<Key, Entry> entries;
+    private final Key probe = new Key();
+    private List<GSMPacketRepeats> evicted;
+    private long repeatsCollapsed;
+
+    GsmtapDeduplicator(final int maxEntries, long window) {
+        this.maxEntries = maxEntries;
+        this.window = window;
+        // Access order, so the entry evicted when full is the one seen least recently
+        entries = new LinkedHashMap<Key, Entry>(maxEntries * 4 / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, Entry> eldest) {
+                if (size() > GsmtapDeduplicator.this.maxEntries) {
+                    release(eldest.getValue(), evicted);
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    static boolean isRepeating(GsmtapView view) {
+        return view.getType() == GsmtapView.GSMTAP_TYPE_UM &&
+                view.getSubtype() == GsmtapView.GSMTAP_CHANNEL_BCCH;
+    }
+
+    // Either counts the frame as a repeat of a held packet, or adds it to stored as a new packet.
+    // Held packets pushed out to make room that need their repeats written go in updated.
+    void add(GsmtapView view, long timestamp, List<GSMPacket> stored,
+             List<GSMPacketRepeats> updated) throws IllegalArgumentException {
+        if (!isRepeating(view)) {
+            stored.add(view.toGSMPacket(timestamp));
+            return;
+        }
+
+        probe.arfcn = view.getArfcn() | (view.isPCS() ? 0x8000 : 0);
+        probe.timeslot = view.getTimeslot();
+        probe.type = view.getType();
+        probe.subtype = view.getSubtype();
+        probe.payloadLength = view.getPayloadLength();
+        probe.payloadHash = hashPayload(view);
+
+        Entry held = entries.get(probe);
+        if (held != null) {
+            if (samePayload(held.pkt, view)) {
+                held.repeatCount++;
+                held.lastSeen = timestamp;
+                repeatsCollapsed++;
+                return;
+            }
+            // Hash collision; let the old packet go and hold the new one instead
+            entries.remove(probe);
+            release(held, updated);
+        }
+
+        GSMPacket pkt = view.toGSMPacket(timestamp);
+        pkt.lastSeen = timestamp;
+        stored.add(pkt);
+        evicted = updated;
+        entries.put(probe.copy(), new Entry(pkt, timestamp));
+        evicted = null;
+    }
+
+    // Stops holding every packet first seen a whole window before now; those that were repeated
+    // go in updated
+    void expire(long now, List<GSMPacketRepeats> updated) {
+        Iterator<Entry> it = entries.values().iterator();
+        while (it.hasNext()) {
+            Entry entry = it.next();
+            if (now - entry.firstSeen >= window) {
+                release(entry, updated);
+                it.remove();
+            }
+        }
+    }
+
+    // Stops holding everything; packets that were repeated go in updated
+    void flush(List<GSMPacketRepeats> updated) {
+        for (Entry entry : entries.values()) {
+            release(entry, updated);
+        }
+        entries.clear();
+    }
+
+    int getHeldCount() {
+        return entries.size();
+    }
+
+    long getRepeatsCollapsed() {
+        return repeatsCollapsed;
+    }
+
+    private static void release(Entry entry, List<GSMPacketRepeats> updated) {
+        if (entry.repeatCount > 1) {
+            updated.add(new GSMPacketRepeats(entry.pkt, entry.repeatCount, entry.lastSeen));
+        }
+    }
+
+    private static int hashPayload(GsmtapView view) {
+        int hash = 1;
+        int length = view.getPayloadLength();
+        for (int i = 0; i < length; i++) {
+            hash = 31 * hash + view.getPayloadByte(i);
+        }
+        return hash;
+    }
+
+    private static boolean samePayload(GSMPacket pkt, GsmtapView view) {
+        for (int i = 0; i < pkt.payload.length; i++) {
+            if (pkt.payload[i] != view.getPayloadByte(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.uw.cs.seaglass.app.logging;
+
+import java.util.BitSet;
+
+// Decides whether a GSMTAP datagram is worth keeping by looking at its header in place, before
+// anything is copied out of the receive buffer. A filter is written as clauses separated by ';',
+// each a key and a comma-separated list of values or inclusive ranges:
+//
+//   type=1,3;subtype=1-15;timeslot=0;arfcn=128-251,512-810;sample=3:10
+//
+// type, subtype, timeslot and arfcn restrict those header fields to the listed values; a key
+// that isn't given accepts anything. sample=<type>:<n> keeps only one in every n frames of that
+// GSMTAP type that get past the other checks. An empty filter accepts everything.
+//
+// accept() is only called from the GSMTAP thread; the counters can be read from anywhere.
+public class GsmtapFilter {
+    private static final int MAX_ARFCN = 0x3fff;
+
+    private final BitSet types;
+    private final BitSet subtypes;
+    private final BitSet timeslots;
+    private final BitSet arfcns;
+    private final int[] sampleEvery;
+    private final int[] sampleCounters = new int[256];
+
+    private volatile long accepted;
+    private volatile long rejected;
+    private volatile long sampledOut;
+
+    private GsmtapFilter(BitSet types, BitSet subtypes, BitSet timeslots, BitSet arfcns,
+                         int[] sampleEvery) {
+        this.types = types;
+        this.subtypes = subtypes;
+        this.timeslots = timeslots;
+        this.arfcns = arfcns;
+        this.sampleEvery = sampleEvery;
+    }
+
+    public static GsmtapFilter acceptAll() {
+        return new GsmtapFilter(null, null, null, null, new int[256]);
+    }
+
+    public static GsmtapFilter parse(String spec) throws IllegalArgumentException {
+        BitSet types = null;
+        BitSet subtypes = null;
+        BitSet timeslots = null;
+        BitSet arfcns = null;
+        int[] sampleEvery = new int[256];
+
+        if (spec != null) {
+            for (String clause : spec.split(";")) {
+                clause = clause.trim();
+                if (clause.isEmpty()) {
+                    continue;
+                }
+                int eq = clause.indexOf('=');
+                if (eq < 0) {
+                    throw new IllegalArgumentException("Missing '=' in GSMTAP filter clause: " +
+                            clause);
+                }
+                String key = clause.substring(0, eq).trim();
+                String values = clause.substring(eq + 1);
+                switch (key) {
+                    case "type":
+                        types = parseSet(values, 0xff);
+                        break;
+                    case "subtype":
+                        subtypes = parseSet(values, 0xff);
+                        break;
+                    case "timeslot":
+                        timeslots = parseSet(values, 0xff);
+                        break;
+                    case "arfcn":
+                        arfcns = parseSet(values, MAX_ARFCN);
+                        break;
+                    case "sample":
+                        parseSampling(values, sampleEvery);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown GSMTAP filter key: " + key);
+                }
+            }
+        }
+
+        return new GsmtapFilter(types, subtypes, timeslots, arfcns, sampleEvery);
+    }
+
+    // Checks the datagram the view is wrapped around and counts the outcome
+    public boolean accept(GsmtapView view) {
+        int type = view.getType() & 0xff;
+        if ((types != null && !types.get(type)) ||
+                (subtypes != null && !subtypes.get(view.getSubtype() & 0xff)) ||
+                (timeslots != null && !timeslots.get(view.getTimeslot() & 0xff)) ||
+                (arfcns != null && !arfcns.get(view.getArfcn()))) {
+            rejected++;
+            return false;
+        }
+
+        int every = sampleEvery[type];
+        if (every > 1) {
+            int n = sampleCounters[type] + 1;
+            if (n < every) {
+                sampleCounters[type] = n;
+                sampledOut++;
+                return false;
+            }
+            sampleCounters[type] = 0;
+        }
+
+        accepted++;
+        return true;
+    }
+
+    public long getAccepted() {
+        return accepted;
+    }
+
+    // Frames dropped because a header field wasn't in the filter
+    public long getRejected() {
+        return rejected;
+    }
+
+    // Frames that passed the field checks but were skipped by sampling
+    public long getSampledOut() {
+        return sampledOut;
+    }
+
+    public String summarize() {
+        return "GSMTAP filter: accepted " + accepted + ", rejected " + rejected +
+                ", sampled out " + sampledOut;
+    }
+
+    private static BitSet parseSet(String values, int max) throws IllegalArgumentException {
+        BitSet set = new BitSet(max + 1);
+        for (String value : values.split(",")) {
+            value = value.trim();
+            if (value.isEmpty()) {
+                continue;
+            }
+            int dash = value.indexOf('-');
+            int low;
+            int high;
+            if (dash < 0) {
+                low = high = parseValue(value, max);
+            } else {
+                low = parseValue(value.substring(0, dash), max);
+                high = parseValue(value.substring(dash + 1), max);
+            }
+            if (low > high) {
+                throw new IllegalArgumentException("Empty range in GSMTAP filter: " + value);
+            }
+            set.set(low, high + 1);
+        }
+        return set;
+    }
+
+    private static void parseSampling(String values, int[] sampleEvery)
+            throws IllegalArgumentException {
+        for (String value : values.split(",")) {
+            value = value.trim();
+            if (value.isEmpty()) {
+                continue;
+            }
+            int colon = value.indexOf(':');
+            if (colon < 0) {
+                throw new IllegalArgumentException("Expected <type>:<n> in GSMTAP filter: " +
+                        value);
+            }
+            int type = parseValue(value.substring(0, colon), 0xff);
+            int every = parseValue(value.substring(colon + 1), Integer.MAX_VALUE);
+            if (every == 0) {
+                throw new IllegalArgumentException("Sampling rate must be at least 1: " + value);
+            }
+            sampleEvery[type] = every;
+        }
+    }
+
+    private static int parseValue(String value, int max) throws IllegalArgumentException {
+        int n;
+        try {
+            n = Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Bad number in GSMTAP filter: " + value, e);
+        }
+        if (n < 0 || n > max) {
+            throw new IllegalArgumentException("Value out of range in GSMTAP filter: " + value);
+        }
+        return n;
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package edu.uw.cs.seaglass.app.logging;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.uw.cs.seaglass.app.Utils;
+
+// Forwards GSMTAP datagrams to one or more UDP collectors (Wireshark, a logging box) from its
+// own thread. The GSMTAP thread copies each datagram into a preallocated slot and moves on; if
+// the slots are all in use the datagram is dropped and counted rather than waited for. Sends go
+// out on a non-blocking channel, so a collector that's slow or unreachable costs drops on that
+// destination, never a stall in ingestion.
+public class GsmtapRelay extends Thread {
+    private static final String TAG = Utils.TAG_PREFIX + "GsmtapRelay";
+    // GSMTAP datagrams from layer 1 are well under this; anything bigger is dropped
+    private static final int SLOT_SIZE = 1024;
+    private static final int SOCKET_SEND_BUF_SIZE = 1 << 18;
+
+    private final List<InetSocketAddress> destinations;
+    private final ByteBuffer[] slots;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // next slot to send
+    private final AtomicLong tail = new AtomicLong(); // next slot to fill
+    private DatagramChannel channel;
+    private volatile boolean waiting;
+    private volatile boolean closed;
+
+    // Producer side state, only touched by the GSMTAP thread
+    private ByteBuffer lastSource;
+    private ByteBuffer sourceView;
+
+    private volatile long queueDrops;
+    private volatile long oversizeDrops;
+    private final AtomicLongArray sent;
+    private final AtomicLongArray destinationDrops;
+
+    // Destinations may be unresolved; they're looked up on the relay thread
+    public GsmtapRelay(List<InetSocketAddress> destinations, int capacity) throws IOException {
+        super("GsmtapRelay");
+        this.destinations = new ArrayList<>(destinations);
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        slots = new ByteBuffer[size];
+        for (int i = 0; i < size; i++) {
+            slots[i] = ByteBuffer.allocateDirect(SLOT_SIZE);
+        }
+        mask = size - 1;
+        sent = new AtomicLongArray(destinations.size());
+        destinationDrops = new AtomicLongArray(destinations.size());
+
+        channel = DatagramChannel.open();
+        channel.socket().setSendBufferSize(SOCKET_SEND_BUF_SIZE);
+        channel.configureBlocking(false);
+    }
+
+    // Parses "host:port" entries separated by commas. Hosts aren't resolved here.
+    public static List<InetSocketAddress> parseDestinations(String spec)
+            throws IllegalArgumentException {
+        List<InetSocketAddress> destinations = new ArrayList<>();
+        if (spec == null) {
+            return destinations;
+        }
+        for (String entry : spec.split(",")) {
+            entry = entry.trim();
+            if (entry.isEmpty()) {
+                continue;
+            }
+            int colon = entry.lastIndexOf(':');
+            if (colon <= 0) {
+                throw new IllegalArgumentException("Expected host:port, got " + entry);
+            }
+            int port;
+            try {
+                port = Integer.parseInt(entry.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Bad port in " + entry, e);
+            }
+            destinations.add(InetSocketAddress.createUnresolved(entry.substring(0, colon), port));
+        }
+        return destinations;
+    }
+
+    // Called from the GSMTAP thread only. Copies the datagram at [offset, offset + length) of buf
+    // into the next free slot; returns false if it had to be dropped.
+    public boolean offer(ByteBuffer buf, int offset, int length) {
+        if (length > SLOT_SIZE) {
+            oversizeDrops++;
+            return false;
+        }
+        long t = tail.get();
+        if (t - head.get() == slots.length || closed) {
+            queueDrops++;
+            return false;
+        }
+
+        // The receive buffer is the same every time, so one duplicate of it does for copying
+        if (buf != lastSource) {
+            lastSource = buf;
+            sourceView = buf.duplicate();
+        }
+        sourceView.limit(offset + length).position(offset);
+        ByteBuffer slot = slots[(int)t & mask];
+        slot.clear();
+        slot.put(sourceView);
+        slot.flip();
+        tail.set(t + 1);
+
+        if (waiting) {
+            LockSupport.unpark(this);
+        }
+        return true;
+    }
+
+    public void run() {
+        InetSocketAddress[] resolved = new InetSocketAddress[destinations.size()];
+        for (int i = 0; i < resolved.length; i++) {
+            InetSocketAddress destination = destinations.get(i);
+            resolved[i] = new InetSocketAddress(destination.getHostString(),
+                    destination.getPort());
+            if (resolved[i].isUnresolved()) {
+                Log.w(TAG, "Couldn't resolve GSMTAP relay destination " + destination);
+            }
+        }
+
+        while (!closed) {
+            long h = head.get();
+            if (h == tail.get()) {
+                waiting = true;
+                if (h == tail.get() && !closed) {
+                    LockSupport.park(this);
+                }
+                waiting = false;
+                continue;
+            }
+
+            ByteBuffer slot = slots[(int)h & mask];
+            for (int i = 0; i < resolved.length; i++) {
+                if (resolved[i].isUnresolved()) {
+                    destinationDrops.incrementAndGet(i);
+                    continue;
+                }
+                slot.position(0);
+                try {
+                    // Nothing is sent when the socket buffer is full
+                    if (channel.send(slot, resolved[i]) == 0) {
+                        destinationDrops.incrementAndGet(i);
+                    } else {
+                        sent.incrementAndGet(i);
+                    }
+                } catch (IOException ex) {
+                    // E.g. ICMP port unreachable from an earlier send; drop and carry on
+                    destinationDrops.incrementAndGet(i);
+                }
+            }
+            head.set(h + 1);
+        }
+
+        try {
+            channel.close();
+        } catch (IOException ex) {}
+        Log.d(TAG, summarize());
+    }
+
+    public void shutdown() {
+        closed = true;
+        LockSupport.unpark(this);
+    }
+
+    public int getQueueDepth() {
+        return (int)(tail.get() - head.get());
+    }
+
+    // Datagrams dropped because every slot was waiting to be sent
+    public long getQueueDrops() {
+        return queueDrops;
+    }
+
+    public long getOversizeDrops() {
+        return oversizeDrops;
+    }
+
+    public long getSent(int destination) {
+        return sent.get(destination);
+    }
+
+    public long getDestinationDrops(int destination) {
+        return destinationDrops.get(destination);
+    }
+
+    public String summarize() {
+        StringBuilder sb = new StringBuilder("GSMTAP relay: queue drops ");
+        sb.append(queueDrops).append(", oversize drops ").append(oversizeDrops);
+        for (int i = 0; i < destinations.size(); i++) {
+            InetSocketAddress destination = destinations.get(i);
+            sb.append("; ").append(destination.getHostString()).append(':')
+                    .append(destination.getPort()).append(" sent ").append(sent.get(i))
+                    .append(" dropped ").append(destinationDrops.get(i));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,152 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.logging;
+
+import java.nio.ByteBuffer;
+
+import edu.uw.cs.seaglass.app.Utils;
+import edu.uw.cs.seaglass.app.db.GSMPacket;
+import edu.uw.cs.seaglass.app.db.MeasurementHeader;
+
+// Reusable read-only view of a GSMTAP v2 datagram sitting in a receive buffer. wrap() only
+// records where the datagram is; each accessor reads its field in place, so looking at a packet
+// (to filter or deduplicate it) costs no allocation. toGSMPacket() copies it out into an entity
+// once it's actually going to be stored.
+//
+// Header layout (struct gsmtap_hdr), all multi-byte fields big-endian:
+//   0 version, 1 hdr_len (in 32-bit words), 2 type, 3 timeslot, 4 arfcn (with PCS and uplink
+//   flags), 6 signal_dbm, 7 snr_db, 8 frame_number, 12 sub_type, 13 antenna_nr, 14 sub_slot,
+//   15 reserved
+public class GsmtapView {
+    public static final int GSMTAP_VERSION = 2;
+    public static final int MIN_HEADER_LEN = 16;
+    // From gsmtap.h
+    public static final int GSMTAP_TYPE_UM = 0x01;
+    public static final int GSMTAP_CHANNEL_BCCH = 0x01;
+
+    private static final int ARFCN_F_PCS = 0x8000;
+    private static final int ARFCN_F_UPLINK = 0x4000;
+    private static final int ARFCN_MASK = 0x3fff;
+
+    private ByteBuffer buf;
+    private int offset;
+    private int length;
+    // Duplicate of buf for bulk payload copies. The receive buffer is the same every time, so
+    // this is only made once.
+    private ByteBuffer copySource;
+    private ByteBuffer copyView;
+
+    // Points the view at buf[offset, offset + length); returns false if that isn't a GSMTAP v2
+    // packet with a sane header length
+    public boolean wrap(ByteBuffer buf, int offset, int length) {
+        this.buf = buf;
+        this.offset = offset;
+        this.length = length;
+        return length >= MIN_HEADER_LEN && getVersion() == GSMTAP_VERSION &&
+                getHeaderLength() >= MIN_HEADER_LEN && getHeaderLength() <= length;
+    }
+
+    public int getVersion() {
+        return buf.get(offset) & 0xff;
+    }
+
+    // In bytes
+    public int getHeaderLength() {
+        return (buf.get(offset + 1) & 0xff) * 4;
+    }
+
+    public byte getType() {
+        return buf.get(offset + 2);
+    }
+
+    public byte getTimeslot() {
+        return buf.get(offset + 3);
+    }
+
+    // Without the PCS and uplink flags
+    public short getArfcn() {
+        return (short)(buf.getShort(offset + 4) & ARFCN_MASK);
+    }
+
+    public boolean isPCS() {
+        return (buf.getShort(offset + 4) & ARFCN_F_PCS) != 0;
+    }
+
+    public boolean isUplink() {
+        return (buf.getShort(offset + 4) & ARFCN_F_UPLINK) != 0;
+    }
+
+    public byte getSignalDbm() {
+        return buf.get(offset + 6);
+    }
+
+    public byte getSnrDb() {
+        return buf.get(offset + 7);
+    }
+
+    public int getFrameNumber() {
+        return buf.getInt(offset + 8);
+    }
+
+    public byte getSubtype() {
+        return buf.get(offset + 12);
+    }
+
+    public byte getAntenna() {
+        return buf.get(offset + 13);
+    }
+
+    public byte getSubSlot() {
+        return buf.get(offset + 14);
+    }
+
+    // The payload starts after hdr_len words, not at a fixed offset
+    public int getPayloadLength() {
+        return length - getHeaderLength();
+    }
+
+    public byte getPayloadByte(int index) {
+        return buf.get(offset + getHeaderLength() + index);
+    }
+
+    public void copyPayload(byte[] dst, int dstOffset) {
+        if (copySource != buf) {
+            copySource = buf;
+            copyView = buf.duplicate();
+        }
+        int payloadOffset = offset + getHeaderLength();
+        int payloadLength = getPayloadLength();
+        copyView.limit(payloadOffset + payloadLength).position(payloadOffset);
+        copyView.get(dst, dstOffset, payloadLength);
+    }
+
+    public GSMPacket toGSMPacket(long timestamp) throws IllegalArgumentException {
+        GSMPacket pkt = new GSMPacket();
+        pkt.measurementHeader = new MeasurementHeader();
+        pkt.measurementHeader.timestamp = timestamp;
+        pkt.measurementHeader.arfcn = getArfcn();
+        pkt.measurementHeader.band = Utils.bandFromARFCN(getArfcn(), isPCS());
+        pkt.measurementHeader.dBm = getSignalDbm();
+        pkt.type = getType();
+        pkt.subtype = getSubtype();
+        pkt.timeslot = getTimeslot();
+        pkt.frameNumber = getFrameNumber();
+        pkt.payload = new byte[getPayloadLength()];
+        copyPayload(pkt.payload, 0);
+        return pkt;
+    }
+}
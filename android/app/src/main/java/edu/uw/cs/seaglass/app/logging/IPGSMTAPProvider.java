@@ -19,77 +19,103 @@ package edu.uw.cs.seaglass.app.logging;
 import android.util.Log;
 
 import java.io.IOException;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.nio.channels.ClosedByInterruptException;
 import java.nio.channels.DatagramChannel;
-import java.util.Arrays;
-import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.List;
 
 import edu.uw.cs.seaglass.app.Utils;
 import edu.uw.cs.seaglass.app.db.GSMPacket;
-import edu.uw.cs.seaglass.app.db.MeasurementHeader;
+import edu.uw.cs.seaglass.app.db.GSMPacketRepeats;
 
+// Receives the GSMTAP datagrams cell_log sends to 127.0.0.1:4729. Every wakeup drains all the
+// datagrams queued on the socket into one large direct buffer and hands them downstream as a
+// single batch, so bursts of BCCH/CCCH frames don't overflow the socket's receive buffer while
+// the previous packet is being stored.
 public class IPGSMTAPProvider extends Thread {
     private static String IP = "127.0.0.1";
     //private static final String IP = "0.0.0.0";
     private static final int PORT = 4729;
     private static final String TAG = Utils.TAG_PREFIX + "IPGSMTAPProvider";
 
-    private DatagramSocket socket;
+    private static final int SOCKET_RECV_BUF_SIZE = 1 << 20;
+    private static final int RECV_BUF_SIZE = 1 << 18;
+    // Room left in the receive buffer for the largest possible UDP payload, so a datagram is
+    // never truncated
+    private static final int MAX_DATAGRAM_LEN = 0xffff;
+    private static final int MAX_BATCH_SIZE = 512;
+    private static final int DEDUP_MAX_ENTRIES = 4096;
+    private static final long DEDUP_EXPIRY_INTERVAL = 1000;
+
     private DatagramChannel channel;
+    private Selector selector;
     private GSMPacketReceiver receiver;
+    private int[] datagramOffsets = new int[MAX_BATCH_SIZE];
+    private int[] datagramLengths = new int[MAX_BATCH_SIZE];
+    private GsmtapView gsmtapView = new GsmtapView();
+    private GsmtapFilter filter;
+    private GsmtapRelay relay;
+    private GsmtapDeduplicator deduplicator =
+            new GsmtapDeduplicator(DEDUP_MAX_ENTRIES, GSMPacket.REPEAT_WINDOW);
 
     public IPGSMTAPProvider(GSMPacketReceiver receiver) throws
             UnknownHostException, SocketException {
+        this(receiver, GsmtapFilter.acceptAll());
+    }
+
+    public IPGSMTAPProvider(GSMPacketReceiver receiver, GsmtapFilter filter) throws
+            UnknownHostException, SocketException {
         this.receiver = receiver;
-        InetSocketAddress addr = new InetSocketAddress(IP, PORT);
+        this.filter = filter;
 
         try {
             channel = DatagramChannel.open();
+            channel.socket().setReceiveBufferSize(SOCKET_RECV_BUF_SIZE);
             channel.socket().bind(new InetSocketAddress(IP, PORT));
+            channel.configureBlocking(false);
+            selector = Selector.open();
+            channel.register(selector, SelectionKey.OP_READ);
         } catch(IOException e){
             Log.e(TAG, "Problem opening the empty datagram channel", e);
         }
-        //socket = new DatagramSocket(PORT, InetAddress.getByName(IP));
     }
 
     private void close(){
         try {
+            if (selector != null) {
+                selector.close();
+            }
             channel.close();
         } catch(IOException e){}
     }
 
-    private GSMPacket gsmPktFromGSMTAP(byte[] gsmtapPktBuf) throws IllegalArgumentException {
-        GSMPacket pkt = new GSMPacket();
-        pkt.measurementHeader = new MeasurementHeader();
-        if (gsmtapPktBuf[0] != 0x02) {
-            throw new IllegalArgumentException("Unexpected GSMTAP version");
+    // Reads every datagram currently queued, up to the batch limit; returns how many were read
+    private int drainSocket(ByteBuffer recvBuf) throws IOException {
+        int count = 0;
+        recvBuf.clear();
+        while (count < MAX_BATCH_SIZE && recvBuf.remaining() >= MAX_DATAGRAM_LEN) {
+            int start = recvBuf.position();
+            if (channel.receive(recvBuf) == null) {
+                break;
+            }
+            datagramOffsets[count] = start;
+            datagramLengths[count] = recvBuf.position() - start;
+            count++;
         }
-        pkt.measurementHeader.timestamp = System.currentTimeMillis();
-        pkt.measurementHeader.arfcn =
-                (short)(((gsmtapPktBuf[4] & 0xff) << 8) |
-                         (gsmtapPktBuf[5] & 0xff));
-        pkt.measurementHeader.arfcn = (short) (pkt.measurementHeader.arfcn & 0x3fff);
-        pkt.measurementHeader.band = Utils.bandFromARFCN(pkt.measurementHeader.arfcn,
-                Utils.isPCS(pkt.measurementHeader.arfcn));
-        pkt.measurementHeader.dBm = gsmtapPktBuf[7];
-        pkt.type = gsmtapPktBuf[2];
-        pkt.subtype = gsmtapPktBuf[12];
-        pkt.timeslot = gsmtapPktBuf[3];
-        pkt.frameNumber = ((gsmtapPktBuf[8] & 0xff) << 24) | ((gsmtapPktBuf[9] & 0xff) << 16) |
-                          ((gsmtapPktBuf[10] & 0xff) << 8) | (gsmtapPktBuf[11] & 0xff);
-        pkt.payload = Arrays.copyOfRange(gsmtapPktBuf, 16 , gsmtapPktBuf.length);
-        return pkt;
+        return count;
     }
 
     public void run() {
-        byte[] rawBuf = new byte[39];
-        ByteBuffer gsmtapPktBuf = ByteBuffer.wrap(rawBuf);
-        //byte[] gsmtapPktBuf = new byte[39];
-        // gsmtapPkt = new DatagramPacket(gsmtapPktBuf, gsmtapPktBuf.length);
+        ByteBuffer recvBuf = ByteBuffer.allocateDirect(RECV_BUF_SIZE);
+        List<GSMPacket> batch = new ArrayList<>(MAX_BATCH_SIZE);
+        List<GSMPacketRepeats> updated = new ArrayList<>();
+        long lastExpiry = System.currentTimeMillis();
 
         for (;;) {
             if (Thread.interrupted()){
@@ -97,9 +123,13 @@ public class IPGSMTAPProvider extends Thread {
                 break;
             }
 
-            gsmtapPktBuf.clear();
+            int count;
             try {
-                channel.receive(gsmtapPktBuf);
+                // Interrupting the thread wakes the selector up. The timeout lets repeat counts
+                // be written out even when nothing is arriving.
+                selector.select(DEDUP_EXPIRY_INTERVAL);
+                selector.selectedKeys().clear();
+                count = drainSocket(recvBuf);
             } catch (ClosedByInterruptException e){
                 // Thread interrupt, don't do anything
                 Log.d(TAG, "ISPGSMTAPProvider interrupted");
@@ -109,12 +139,38 @@ public class IPGSMTAPProvider extends Thread {
                 break;
             }
 
+            batch.clear();
+            updated.clear();
+            long timestamp = System.currentTimeMillis();
+            for (int i = 0; i < count; i++) {
+                if (!gsmtapView.wrap(recvBuf, datagramOffsets[i], datagramLengths[i])) {
+                    Log.e(TAG, "Unexpected GSMTAP version or header length");
+                    continue;
+                }
+                if (!filter.accept(gsmtapView)) {
+                    continue;
+                }
+                if (relay != null) {
+                    relay.offer(recvBuf, datagramOffsets[i], datagramLengths[i]);
+                }
+                try {
+                    deduplicator.add(gsmtapView, timestamp, batch, updated);
+                } catch (IllegalArgumentException e) {
+                    Log.e(TAG, e.toString(), e);
+                }
+            }
+            if (timestamp - lastExpiry >= DEDUP_EXPIRY_INTERVAL) {
+                deduplicator.expire(timestamp, updated);
+                lastExpiry = timestamp;
+            }
+
             try {
-                GSMPacket pkt = gsmPktFromGSMTAP(gsmtapPktBuf.array());
-                receiver.onGSMPacketReceived(pkt);
-            } catch (IllegalArgumentException e) {
-                Log.e(TAG, e.toString(), e);
-                break;
+                if (!batch.isEmpty()) {
+                    receiver.onGSMPacketsReceived(batch);
+                }
+                if (!updated.isEmpty()) {
+                    receiver.onGSMPacketRepeatsUpdated(updated);
+                }
             } catch (Exception e){
                 // It is possible that when closing the logging service that the
                 // receive may not exist. Just return.
@@ -123,7 +179,36 @@ public class IPGSMTAPProvider extends Thread {
             }
         }
 
+        // Write out the repeat counts of the packets still being held
+        updated.clear();
+        deduplicator.flush(updated);
+        if (!updated.isEmpty()) {
+            try {
+                receiver.onGSMPacketRepeatsUpdated(updated);
+            } catch (Exception e) {
+                Log.w(TAG, "Couldn't store GSMTAP repeat counts", e);
+            }
+        }
+
+        Log.d(TAG, filter.summarize());
         close();
         return;
     }
+
+    // Stops the thread and waits up to timeoutMillis for it to hand over the last repeat counts;
+    // returns whether it finished
+    public boolean shutdown(long timeoutMillis) throws InterruptedException {
+        interrupt();
+        join(timeoutMillis);
+        return !isAlive();
+    }
+
+    // Accepted datagrams are also handed to the relay, if there is one. Call before start().
+    public void setRelay(GsmtapRelay relay) {
+        this.relay = relay;
+    }
+
+    public GsmtapFilter getFilter() {
+        return filter;
+    }
 }
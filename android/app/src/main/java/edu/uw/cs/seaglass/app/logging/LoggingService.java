@@ -46,27 +46,34 @@ import com.google.android.gms.location.LocationRequest;
 import com.google.android.gms.location.LocationResult;
 import com.google.android.gms.location.LocationServices;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.util.List;
 import java.util.concurrent.TimeUnit;
 
 import edu.uw.cs.seaglass.app.Options;
 import edu.uw.cs.seaglass.app.Utils;
 import edu.uw.cs.seaglass.app.db.DatabaseService;
 import edu.uw.cs.seaglass.app.db.SyncUploadWorker;
+import edu.uw.cs.seaglass.app.osmocom.FirmwareImage;
 import edu.uw.cs.seaglass.app.osmocom.OsmocomBinaries;
 import edu.uw.cs.seaglass.app.osmocom.OsmoconService;
+import edu.uw.cs.seaglass.app.osmocom.PhoneType;
+import edu.uw.cs.seaglass.app.ui.BuildConfig;
 import edu.uw.cs.seaglass.app.db.CellObservation;
 import edu.uw.cs.seaglass.app.db.GSMPacket;
+import edu.uw.cs.seaglass.app.db.GSMPacketRepeats;
 import edu.uw.cs.seaglass.app.db.LocationMeasurement;
-import edu.uw.cs.seaglass.app.db.SpectrumMeasurement;
+import edu.uw.cs.seaglass.app.db.SpectrumSweep;
 import edu.uw.cs.seaglass.app.ui.MainActivity;
 import edu.uw.cs.seaglass.app.ui.R;
 
 public class LoggingService extends Service implements
-        SpectrumMeasurementReceiver, GSMPacketReceiver, CellObservationReceiver {
-    public static final String CELL_LOG_POWER_MEASUREMENT = "CELL_LOG_POWER_MEASUREMENT";
+        SpectrumSweepReceiver, GSMPacketReceiver, CellObservationReceiver {
+    public static final String CELL_LOG_SPECTRUM_SWEEP = "CELL_LOG_SPECTRUM_SWEEP";
     public static final String CELL_LOG_CELL_OBSERVATION = "CELL_LOG_CELL_OBSERVATION";
     public static final String CELL_LOG_ARFCN = "edu.uw.cs.seaglass.app.logging.ARFCN";
     public static final String CELL_LOG_BAND = "edu.uw.cs.seaglass.app.logging.BAND";
@@ -87,6 +94,7 @@ public class LoggingService extends Service implements
     private DatabaseService mDatabaseService;
 
     private IPGSMTAPProvider gsmPktProviderThread;
+    private GsmtapRelay gsmtapRelay;
     private CellLogProvider cellLogProviderThread;
 
     private final IBinder mBinder = new LocalBinder();
@@ -94,6 +102,8 @@ public class LoggingService extends Service implements
     private static final int ONGOING_NOTIFICATION_ID = 1;
     private static final String TAG = Utils.TAG_PREFIX + "LoggingService";
     private static final int SYNC_REPEAT_INTERVAL = 15;     //in minutes
+    private static final int GSMTAP_RELAY_CAPACITY = 512;
+    private static final long GSMTAP_SHUTDOWN_TIMEOUT = 2000; // ms
 
     public LoggingService() {
         localBroadcastManager = LocalBroadcastManager.getInstance(this);
@@ -182,13 +192,8 @@ public class LoggingService extends Service implements
                 new IntentFilter(Options.CELL_LOG_RESTART));
 
         try {
-            // FIXME: Don't hardcode phone type
-            InputStream inStream = getAssets().open("arm-calypso/compal_e86/layer1.highram.bin");
-            byte[] appPayload = new byte[inStream.available()];
-            inStream.read(appPayload);
-            inStream.close();
             os = new OsmoconService(localBroadcastManager,"osmocom_l2",
-                    options.getUSBPort(), options.getPhoneType(), appPayload);
+                    options.getUSBPort(), loadFirmwareImage(options.getPhoneType()));
             //os.start();
         } catch (IOException ex) {
             Log.e(TAG, "Error starting OsmoconService", ex);
@@ -202,7 +207,8 @@ public class LoggingService extends Service implements
         ob.start();
 
         try {
-            gsmPktProviderThread = new IPGSMTAPProvider(this);
+            gsmPktProviderThread = new IPGSMTAPProvider(this, loadGsmtapFilter());
+            startGsmtapRelay();
             gsmPktProviderThread.start();
         } catch (Exception e) {
             Log.e(TAG, "Exception thrown while creating IPGSMTAPProvider", e);
@@ -211,10 +217,8 @@ public class LoggingService extends Service implements
         }
 
         try {
-            // FIXME: This will fail the first time because cell_log hasn't created the pipe yet
             cellLogProviderThread = new CellLogProvider(
-                    new File(getFilesDir(), "cell_log_fifo").getAbsolutePath(),
-                    this, this);
+                    new File(getFilesDir(), "cell_log_fifo").getAbsolutePath(), this, this);
             cellLogProviderThread.start();
         } catch (Exception e) {
             Log.e(TAG, "Exception thrown while creating CellLogProvider", e);
@@ -225,6 +229,73 @@ public class LoggingService extends Service implements
 
     }
 
+    private GsmtapFilter loadGsmtapFilter() {
+        try {
+            return GsmtapFilter.parse(options.getGsmtapFilter());
+        } catch (IllegalArgumentException ex) {
+            Log.e(TAG, "Ignoring invalid GSMTAP filter", ex);
+            return GsmtapFilter.acceptAll();
+        }
+    }
+
+    private void startGsmtapRelay() {
+        List<InetSocketAddress> destinations;
+        try {
+            destinations = GsmtapRelay.parseDestinations(options.getGsmtapRelayDestinations());
+        } catch (IllegalArgumentException ex) {
+            Log.e(TAG, "Ignoring invalid GSMTAP relay destinations", ex);
+            return;
+        }
+        if (destinations.isEmpty()) {
+            return;
+        }
+        try {
+            gsmtapRelay = new GsmtapRelay(destinations, GSMTAP_RELAY_CAPACITY);
+        } catch (IOException ex) {
+            Log.e(TAG, "Couldn't open GSMTAP relay channel", ex);
+            return;
+        }
+        gsmtapRelay.start();
+        gsmPktProviderThread.setRelay(gsmtapRelay);
+    }
+
+    // The prepared chainloader and romloader blocks are cached per osmocom build, phone type and
+    // layer1 asset length, so the asset only has to be read and framed the first time
+    private FirmwareImage loadFirmwareImage(PhoneType phoneType) throws IOException {
+        File cacheFile = FirmwareImage.getCacheFile(getCacheDir(),
+                BuildConfig.OsmocomVersion, phoneType);
+        // FIXME: Don't hardcode phone type
+        InputStream inStream = getAssets().open("arm-calypso/compal_e86/layer1.highram.bin");
+        ByteArrayOutputStream appPayload = new ByteArrayOutputStream();
+        try {
+            // An asset stream knows its whole length up front, so a replaced asset misses the
+            // cache without being read
+            FirmwareImage firmwareImage = FirmwareImage.readFrom(cacheFile,
+                    BuildConfig.OsmocomVersion, phoneType, inStream.available());
+            if (firmwareImage != null) {
+                Log.d(TAG, "Loaded firmware image from cache");
+                return firmwareImage;
+            }
+
+            byte[] buf = new byte[8192];
+            int len;
+            while ((len = inStream.read(buf)) > 0) {
+                appPayload.write(buf, 0, len);
+            }
+        } finally {
+            inStream.close();
+        }
+
+        FirmwareImage firmwareImage = new FirmwareImage(phoneType, appPayload.toByteArray(),
+                FirmwareImage.DEFAULT_MAX_BLOCK_SIZE);
+        try {
+            firmwareImage.writeTo(cacheFile, BuildConfig.OsmocomVersion);
+        } catch (IOException ex) {
+            Log.w(TAG, "Couldn't cache firmware image", ex);
+        }
+        return firmwareImage;
+    }
+
     private BroadcastReceiver restartCellLogIntentReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
@@ -280,10 +351,6 @@ public class LoggingService extends Service implements
     }
 
     public void stopScan() {
-        if (mDatabaseService!= null) {
-            unbindService(mDatabaseConnection);
-            mDatabaseService = null;
-        }
         if (ob != null) {
             ob.close();
             ob = null;
@@ -296,14 +363,30 @@ public class LoggingService extends Service implements
             mFusedLocationClient.removeLocationUpdates(loggerLocationCallback);
             mFusedLocationClient = null;
         }
+        // The provider hands its last repeat counts to the database on the way out, so it has to
+        // be finished before the database is unbound
         if (gsmPktProviderThread != null){
-            gsmPktProviderThread.interrupt();
+            try {
+                if (!gsmPktProviderThread.shutdown(GSMTAP_SHUTDOWN_TIMEOUT)) {
+                    Log.w(TAG, "IPGSMTAPProvider didn't stop in time");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
             gsmPktProviderThread = null;
         }
+        if (gsmtapRelay != null) {
+            gsmtapRelay.shutdown();
+            gsmtapRelay = null;
+        }
         if (cellLogProviderThread != null){
-            cellLogProviderThread.interrupt();
+            cellLogProviderThread.shutdown();
             cellLogProviderThread = null;
         }
+        if (mDatabaseService!= null) {
+            unbindService(mDatabaseConnection);
+            mDatabaseService = null;
+        }
         stopForeground(true);
         stopSelf();
     }
@@ -313,16 +396,18 @@ public class LoggingService extends Service implements
         stopScan();
     }
 
-    public void onSpectrumMeasurementReceived(SpectrumMeasurement measurement) {
-        Intent intent = new Intent(CELL_LOG_POWER_MEASUREMENT);
-        intent.putExtra(CELL_LOG_ARFCN, measurement.measurementHeader.arfcn);
-        intent.putExtra(CELL_LOG_BAND, measurement.measurementHeader.band);
-        intent.putExtra(CELL_LOG_DBM, measurement.measurementHeader.dBm);
-        intent.putExtra(CELL_LOG_TIMESTAMP, measurement.measurementHeader.timestamp);
+    // One broadcast and one row for the whole sweep. CELL_LOG_ARFCN is the first ARFCN and
+    // CELL_LOG_DBM the array of readings from there on.
+    public void onSpectrumSweepReceived(SpectrumSweep sweep) {
+        Intent intent = new Intent(CELL_LOG_SPECTRUM_SWEEP);
+        intent.putExtra(CELL_LOG_ARFCN, sweep.startArfcn);
+        intent.putExtra(CELL_LOG_BAND, sweep.band);
+        intent.putExtra(CELL_LOG_DBM, sweep.dBm);
+        intent.putExtra(CELL_LOG_TIMESTAMP, sweep.timestamp);
         localBroadcastManager.sendBroadcast(intent);
 
         if (mDatabaseService != null) {
-            mDatabaseService.insertSpectrumMeasurement(measurement);
+            mDatabaseService.insertSpectrumSweep(sweep);
         }
     }
 
@@ -332,6 +417,18 @@ public class LoggingService extends Service implements
         }
     }
 
+    public void onGSMPacketsReceived(List<GSMPacket> pkts) {
+        if (mDatabaseService != null) {
+            mDatabaseService.insertGSMPackets(pkts);
+        }
+    }
+
+    public void onGSMPacketRepeatsUpdated(List<GSMPacketRepeats> repeats) {
+        if (mDatabaseService != null) {
+            mDatabaseService.updateGSMPacketRepeats(repeats);
+        }
+    }
+
     public void onCellObservationReceived(CellObservation observation) {
         if (observation.si3 != null) {
             CellInfo ci;
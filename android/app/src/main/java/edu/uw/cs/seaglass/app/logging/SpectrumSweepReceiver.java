@@ -16,8 +16,8 @@
 
 package edu.uw.cs.seaglass.app.logging;
 
-import edu.uw.cs.seaglass.app.db.SpectrumMeasurement;
+import edu.uw.cs.seaglass.app.db.SpectrumSweep;
 
-public interface SpectrumMeasurementReceiver {
-    void onSpectrumMeasurementReceived(SpectrumMeasurement measurement);
+public interface SpectrumSweepReceiver {
+    void onSpectrumSweepReceived(SpectrumSweep sweep);
 }
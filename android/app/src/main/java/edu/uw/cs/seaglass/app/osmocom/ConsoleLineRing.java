@@ -0,0 +1,87 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.osmocom;
+
+// Bounded ring of console lines from the phone. The serial thread appends raw console bytes; the
+// console flusher takes everything out in one go. When the ring is full the oldest lines are
+// overwritten and counted, so a chatty firmware costs memory and CPU up to a fixed bound only.
+class ConsoleLineRing {
+    private static final int MAX_LINE_LENGTH = 1024;
+
+    private final String[] lines;
+    private int head;
+    private int count;
+    private final StringBuilder partialLine = new StringBuilder();
+    private long droppedLines;
+
+    ConsoleLineRing(int capacity) {
+        lines = new String[capacity];
+    }
+
+    // Returns the number of complete lines waiting
+    synchronized int append(byte[] buf, int offset, int length) {
+        for (int i = offset; i < offset + length; i++) {
+            // Same mapping as decoding US-ASCII
+            char c = buf[i] >= 0 ? (char)buf[i] : '\ufffd';
+            partialLine.append(c);
+            if (c == '\n' || partialLine.length() >= MAX_LINE_LENGTH) {
+                push(partialLine.toString());
+                partialLine.setLength(0);
+            }
+        }
+        return count;
+    }
+
+    private void push(String line) {
+        int tail = head + count;
+        if (tail >= lines.length) {
+            tail -= lines.length;
+        }
+        lines[tail] = line;
+        if (count == lines.length) {
+            head = tail + 1 == lines.length ? 0 : tail + 1;
+            droppedLines++;
+        } else {
+            count++;
+        }
+    }
+
+    synchronized int size() {
+        return count;
+    }
+
+    // Appends every waiting line, plus any unterminated text, to out and empties the ring.
+    // Returns false if there was nothing to take.
+    synchronized boolean drainTo(StringBuilder out) {
+        if (count == 0 && partialLine.length() == 0) {
+            return false;
+        }
+        while (count > 0) {
+            out.append(lines[head]);
+            lines[head] = null;
+            head = head + 1 == lines.length ? 0 : head + 1;
+            count--;
+        }
+        out.append(partialLine);
+        partialLine.setLength(0);
+        return true;
+    }
+
+    synchronized long getDroppedLines() {
+        return droppedLines;
+    }
+}
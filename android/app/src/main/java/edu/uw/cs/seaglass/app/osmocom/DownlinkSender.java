@@ -0,0 +1,23 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.osmocom;
+
+// Takes frames from the layer 2 clients' reader threads for the phone. The frame is copied
+// before returning; waits, rather than dropping it, while the phone is behind.
+interface DownlinkSender {
+    void sendToPhone(byte dlci, byte[] buf, int offset, int length) throws InterruptedException;
+}
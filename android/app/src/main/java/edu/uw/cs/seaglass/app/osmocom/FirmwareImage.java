@@ -0,0 +1,349 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.osmocom;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+// Everything written to the phone while loading the layer1 app: the chainloader sent to the
+// Compal bootloader and the romloader "<w" blocks (with the running checksum) built from the app
+// payload. It is prepared up front so the upload itself only has to write out ready-made blocks,
+// and can be cached on disk so later scans don't have to rebuild it from the app asset at all.
+public class FirmwareImage {
+    // What the Calypso romloader reports in its parameter ACK. If the phone asks for something
+    // else the blocks are rebuilt with withMaxBlockSize().
+    public static final int DEFAULT_MAX_BLOCK_SIZE = 0x400;
+
+    private static final int BLOCK_HEADER_LEN = 10;
+    private static final int CACHE_MAGIC = 0x53474657; // "SGFW"
+    private static final int CACHE_FORMAT_VERSION = 1;
+    private static final String CACHE_FILE_SUFFIX = ".fwcache";
+    private static final int APP_LOAD_ADDRESS = 0x820000;
+
+    private static final byte[] MAGIC = { '1', '0', '0', '3' };
+    private static final byte[] HDR_C123 = { (byte)0xee, 0x4c, (byte)0x9f, 0x63 };
+    private static final byte[] HDR_C155 = { 0x78, 0x47, (byte)0xc0, 0x46 };
+
+    private static final short MAGIC_OFFSET = 0x3be2;
+
+    private static final byte[] CHAINLOADER = {
+            0x0a, 0x18, (byte)0xa0, (byte)0xe3, 0x01, 0x10, 0x51, (byte)0xe2,
+            (byte)0xfd, (byte)0xff, (byte)0xff, 0x1a, 0x08, 0x10, (byte)0x9f, (byte)0xe5,
+            0x01, 0x2c, (byte)0xa0, (byte)0xe3, (byte)0xb0, 0x20, (byte)0xc1, (byte)0xe1,
+            0x00, (byte)0xf0, (byte)0xa0, (byte)0xe3, 0x10, (byte)0xfb, (byte)0xff, (byte)0xff
+    };
+
+    private PhoneType phoneType;
+    private byte[] appPayload;
+    private byte[] chainloaderPayload;
+    private int maxBlockSize;
+    private byte[][] blocks;
+    private int[] blockEndOffsets;
+    private byte appChecksum;
+
+    public FirmwareImage(PhoneType phoneType, byte[] appPayload, int maxBlockSize)
+            throws IOException {
+        if (appPayload.length == 0) {
+            throw new IOException("Firmware payload is empty");
+        }
+        if (maxBlockSize <= BLOCK_HEADER_LEN) {
+            throw new IOException("Romloader block size " + maxBlockSize + " is too small");
+        }
+        this.phoneType = phoneType;
+        this.appPayload = appPayload;
+        this.chainloaderPayload = buildChainloader(phoneType);
+        this.maxBlockSize = maxBlockSize;
+        buildBlocks();
+    }
+
+    private FirmwareImage() {
+    }
+
+    FirmwareImage withMaxBlockSize(int maxBlockSize) throws IOException {
+        return new FirmwareImage(phoneType, getAppPayload(), maxBlockSize);
+    }
+
+    // Images loaded from the cache don't keep the raw payload around since the blocks hold it
+    private byte[] getAppPayload() {
+        if (appPayload == null) {
+            byte[] payload = new byte[getAppPayloadLength()];
+            int offset = 0;
+            for (byte[] block : blocks) {
+                int payloadLen = block.length - BLOCK_HEADER_LEN;
+                System.arraycopy(block, BLOCK_HEADER_LEN, payload, offset, payloadLen);
+                offset += payloadLen;
+            }
+            appPayload = payload;
+        }
+        return appPayload;
+    }
+
+    PhoneType getPhoneType() {
+        return phoneType;
+    }
+
+    byte[] getChainloaderPayload() {
+        return chainloaderPayload;
+    }
+
+    int getMaxBlockSize() {
+        return maxBlockSize;
+    }
+
+    int getBlockCount() {
+        return blocks.length;
+    }
+
+    byte[] getBlock(int index) {
+        return blocks[index];
+    }
+
+    // Number of app payload bytes sent once block `index` has been written
+    int getBlockEndOffset(int index) {
+        return blockEndOffsets[index];
+    }
+
+    byte getAppChecksum() {
+        return appChecksum;
+    }
+
+    int getAppPayloadLength() {
+        return blocks.length == 0 ? 0 : blockEndOffsets[blocks.length - 1];
+    }
+
+    // The cache file name encodes the osmocom build and phone type, so a new build or a
+    // different phone type simply misses the cache. readFrom() also checks the app payload's
+    // length, which catches an app asset replaced within the same build.
+    public static File getCacheFile(File cacheDir, String osmocomVersion, PhoneType phoneType) {
+        return new File(cacheDir, "layer1-" + osmocomVersion + "-" + phoneType.name() +
+                CACHE_FILE_SUFFIX);
+    }
+
+    // Returns null if the file is missing, doesn't match the expected version, phone type and
+    // app payload length, or holds anything but well-formed blocks
+    public static FirmwareImage readFrom(File cacheFile, String osmocomVersion,
+                                         PhoneType phoneType, int appPayloadLength)
+            throws IOException {
+        if (!cacheFile.isFile()) {
+            return null;
+        }
+
+        FileChannel channel = new FileInputStream(cacheFile).getChannel();
+        try {
+            MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buf.getInt() != CACHE_MAGIC || buf.getInt() != CACHE_FORMAT_VERSION) {
+                return null;
+            }
+            byte[] versionBytes = new byte[buf.getShort() & 0xffff];
+            buf.get(versionBytes);
+            if (!osmocomVersion.equals(new String(versionBytes, StandardCharsets.UTF_8)) ||
+                    buf.getInt() != phoneType.getValue()) {
+                return null;
+            }
+
+            FirmwareImage image = new FirmwareImage();
+            image.phoneType = phoneType;
+            image.maxBlockSize = buf.getInt();
+            image.appChecksum = buf.get();
+            if (image.maxBlockSize <= BLOCK_HEADER_LEN) {
+                return null;
+            }
+            image.chainloaderPayload = new byte[buf.getInt()];
+            buf.get(image.chainloaderPayload);
+            int blockCount = buf.getInt();
+            if (blockCount <= 0) {
+                return null;
+            }
+            image.blocks = new byte[blockCount][];
+            image.blockEndOffsets = new int[blockCount];
+            int appPayloadPtr = 0;
+            byte appChecksum = 0;
+            for (int n = 0; n < blockCount; n++) {
+                int blockLen = buf.getInt();
+                if (blockLen <= BLOCK_HEADER_LEN || blockLen > image.maxBlockSize) {
+                    return null;
+                }
+                byte[] block = new byte[blockLen];
+                buf.get(block);
+                int payloadLen = blockLen - BLOCK_HEADER_LEN;
+                if (block[0] != '<' || block[1] != 'w' ||
+                        (((block[4] & 0xff) << 8) | (block[5] & 0xff)) != payloadLen) {
+                    return null;
+                }
+                appChecksum += (~blockChecksum(block)) & 0xff;
+                appPayloadPtr += payloadLen;
+                image.blocks[n] = block;
+                image.blockEndOffsets[n] = appPayloadPtr;
+            }
+            if (appPayloadPtr != appPayloadLength || appChecksum != image.appChecksum) {
+                return null;
+            }
+            return image;
+        } catch (BufferUnderflowException | NegativeArraySizeException ex) {
+            // Truncated or corrupt; it will be rebuilt
+            return null;
+        } finally {
+            channel.close();
+        }
+    }
+
+    // Writes to a temporary file first so a crash can never leave a partial cache entry behind
+    public void writeTo(File cacheFile, String osmocomVersion) throws IOException {
+        byte[] versionBytes = osmocomVersion.getBytes(StandardCharsets.UTF_8);
+        int size = 4 + 4 + 2 + versionBytes.length + 4 + 4 + 1 + 4 + chainloaderPayload.length + 4;
+        for (byte[] block : blocks) {
+            size += 4 + block.length;
+        }
+
+        ByteBuffer buf = ByteBuffer.allocate(size);
+        buf.putInt(CACHE_MAGIC);
+        buf.putInt(CACHE_FORMAT_VERSION);
+        buf.putShort((short)versionBytes.length);
+        buf.put(versionBytes);
+        buf.putInt(phoneType.getValue());
+        buf.putInt(maxBlockSize);
+        buf.put(appChecksum);
+        buf.putInt(chainloaderPayload.length);
+        buf.put(chainloaderPayload);
+        buf.putInt(blocks.length);
+        for (byte[] block : blocks) {
+            buf.putInt(block.length);
+            buf.put(block);
+        }
+
+        File tmpFile = new File(cacheFile.getPath() + ".tmp");
+        FileOutputStream outStream = new FileOutputStream(tmpFile);
+        try {
+            outStream.write(buf.array());
+            outStream.getFD().sync();
+        } finally {
+            outStream.close();
+        }
+        if (!tmpFile.renameTo(cacheFile)) {
+            tmpFile.delete();
+            throw new IOException("Cannot move firmware cache into place");
+        }
+
+        // Entries for older osmocom builds will never be hit again
+        File[] cacheFiles = cacheFile.getParentFile().listFiles();
+        if (cacheFiles != null) {
+            for (File f : cacheFiles) {
+                if (f.getName().endsWith(CACHE_FILE_SUFFIX) &&
+                        !f.getName().contains("-" + osmocomVersion + "-")) {
+                    f.delete();
+                }
+            }
+        }
+    }
+
+    private void buildBlocks() {
+        int blockPayloadSize = maxBlockSize - BLOCK_HEADER_LEN;
+        int blockCount = (appPayload.length + blockPayloadSize - 1) / blockPayloadSize;
+        blocks = new byte[blockCount][];
+        blockEndOffsets = new int[blockCount];
+        appChecksum = 0;
+
+        int appPayloadPtr = 0;
+        int blockMemPtr = APP_LOAD_ADDRESS;
+        for (int n = 0; n < blockCount; n++) {
+            int payloadLen = Math.min(appPayload.length - appPayloadPtr, blockPayloadSize);
+            byte[] block = new byte[payloadLen + BLOCK_HEADER_LEN];
+            block[0] = '<';
+            block[1] = 'w';
+            block[2] = 0x01;
+            block[3] = 0x01;
+            block[4] = (byte)((payloadLen >> 8) & 0xff);
+            block[5] = (byte)(payloadLen & 0xff);
+            block[6] = (byte)((blockMemPtr >> 24) & 0xff);
+            block[7] = (byte)((blockMemPtr >> 16) & 0xff);
+            block[8] = (byte)((blockMemPtr >> 8) & 0xff);
+            block[9] = (byte)(blockMemPtr & 0xff);
+            System.arraycopy(appPayload, appPayloadPtr, block, BLOCK_HEADER_LEN, payloadLen);
+
+            appChecksum += (~blockChecksum(block)) & 0xff;
+
+            appPayloadPtr += payloadLen;
+            blockMemPtr += payloadLen;
+            blocks[n] = block;
+            blockEndOffsets[n] = appPayloadPtr;
+        }
+    }
+
+    // The romloader's sum over a block: from the low length byte on, seeded with 5
+    private static byte blockChecksum(byte[] block) {
+        byte blockChecksum = 5;
+        for (int i = 5; i < block.length; i++) {
+            blockChecksum += block[i];
+        }
+        return blockChecksum;
+    }
+
+    private static byte computeXorChkSum(byte[] data) {
+        byte xorChkSum = 0;
+        for (byte b : data) {
+            xorChkSum ^= b;
+        }
+        return xorChkSum;
+    }
+
+    private static byte[] buildChainloader(PhoneType phoneType) {
+        int payloadSize = CHAINLOADER.length;
+        boolean useXor = (phoneType == PhoneType.C123xor || phoneType == PhoneType.C140xor);
+        boolean useMagic = (phoneType == PhoneType.C140 || phoneType == PhoneType.C140xor);
+        if (useMagic) {
+            if (payloadSize <= MAGIC_OFFSET) {
+                payloadSize = MAGIC_OFFSET + MAGIC.length;
+            }
+        }
+        byte[] dnloadData = new byte[(useXor ? 2 : 0) + 2 + HDR_C123.length + payloadSize];
+        int offset = 0;
+        if (useXor) {
+            dnloadData[offset++] = 0x02;
+        }
+        dnloadData[offset++] = (byte)(((HDR_C123.length + payloadSize) >> 8) & 0xff);
+        dnloadData[offset++] = (byte)((HDR_C123.length + payloadSize) & 0xff);
+        switch (phoneType) {
+            case C123:
+            case C123xor:
+            case C140:
+            case C140xor:
+                System.arraycopy(HDR_C123, 0, dnloadData, offset, HDR_C123.length);
+                offset += HDR_C123.length;
+                break;
+            case C155:
+                System.arraycopy(HDR_C123, 0, dnloadData, offset, HDR_C123.length);
+                offset += HDR_C123.length;
+                break;
+        }
+        System.arraycopy(CHAINLOADER, 0, dnloadData, offset, CHAINLOADER.length);
+        if (useMagic) {
+            System.arraycopy(MAGIC, 0,
+                    dnloadData, MAGIC_OFFSET + (useXor ? 1 : 0), MAGIC.length);
+        }
+        if (useXor) {
+            dnloadData[dnloadData.length - 1] = computeXorChkSum(dnloadData);
+        }
+        return dnloadData;
+    }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.osmocom;
+
+import java.util.Arrays;
+
+// Streaming deframer for the sercomm HDLC frames sent by the phone. Bytes are unescaped straight
+// out of the serial read buffer into a single reusable frame buffer, so handing a frame to the
+// rest of the stack doesn't require any intermediate copies. The frame buffer grows on demand up
+// to a cap; a frame longer than that is dropped and the deframer waits for the next flag.
+class HDLCDeframer {
+    static final byte HDLC_FLAG = 0x7e;
+    static final byte HDLC_ESCAPE = 0x7d;
+    static final int PAYLOAD_OFFSET = 2; // dlci + control
+
+    private byte[] frameBuf;
+    private final int maxFrameLen;
+    private int frameLen;
+    private boolean escaped;
+    private boolean discarding;
+    private SerialLinkStats stats;
+
+    HDLCDeframer(int initialFrameLen, int maxFrameLen, SerialLinkStats stats) {
+        frameBuf = new byte[initialFrameLen];
+        this.maxFrameLen = maxFrameLen;
+        this.stats = stats;
+    }
+
+    // Called once the opening flag has been seen
+    void reset() {
+        frameLen = 0;
+        escaped = false;
+        discarding = false;
+    }
+
+    // Consumes bytes from buf[offset, end) until the closing flag is found. Returns the index just
+    // past the closing flag, or -1 if every byte was consumed without completing the frame.
+    int feed(byte[] buf, int offset, int end) {
+        for (int i = offset; i < end; i++) {
+            byte b = buf[i];
+            if (discarding) {
+                // Skip the rest of an oversized frame; its closing flag opens the next one
+                if (b == HDLC_FLAG) {
+                    reset();
+                }
+                continue;
+            }
+            if (escaped && (b == HDLC_FLAG || b == HDLC_ESCAPE)) {
+                // The sender never escapes these, so something got lost on the wire
+                stats.unescapeError();
+            }
+            if (b == HDLC_FLAG) {
+                if (frameLen < PAYLOAD_OFFSET) {
+                    // Back-to-back flags; treat this one as the opening flag of the next frame
+                    reset();
+                    continue;
+                }
+                return i + 1;
+            } else if (b == HDLC_ESCAPE) {
+                escaped = true;
+                continue;
+            }
+
+            if (escaped) {
+                b ^= 0x20;
+                escaped = false;
+            }
+            if (frameLen == frameBuf.length) {
+                if (frameBuf.length >= maxFrameLen) {
+                    stats.bufferOverflow();
+                    discarding = true;
+                    continue;
+                }
+                frameBuf = Arrays.copyOf(frameBuf, Math.min(frameBuf.length * 2, maxFrameLen));
+            }
+            frameBuf[frameLen++] = b;
+        }
+        return -1;
+    }
+
+    byte getDLCI() {
+        return frameBuf[0];
+    }
+
+    byte[] getBuffer() {
+        return frameBuf;
+    }
+
+    int getPayloadLength() {
+        return frameLen - PAYLOAD_OFFSET;
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.osmocom;
+
+// Read-only view of an L1CTL message straight out of the serial thread's frame buffer. Nothing is
+// copied or parsed up front; the accessors read the fields in place. A view is only valid for the
+// duration of the listener callback it's passed to, so copy out whatever needs to outlive it.
+// Reading past the end of the message, e.g. the info_dl of one too short to have it, throws
+// IndexOutOfBoundsException rather than returning whatever is left in the buffer.
+//
+// Layouts follow osmocom-bb's include/l1ctl_proto.h; multi-byte fields are big-endian.
+public class L1CTLMessage {
+    public static final int L1CTL_FBSB_REQ = 1;
+    public static final int L1CTL_FBSB_CONF = 2;
+    public static final int L1CTL_DATA_IND = 3;
+    public static final int L1CTL_RACH_REQ = 4;
+    public static final int L1CTL_DM_EST_REQ = 5;
+    public static final int L1CTL_DATA_REQ = 6;
+    public static final int L1CTL_RESET_IND = 7;
+    public static final int L1CTL_PM_REQ = 8;
+    public static final int L1CTL_PM_CONF = 9;
+    public static final int L1CTL_ECHO_REQ = 10;
+    public static final int L1CTL_ECHO_CONF = 11;
+    public static final int L1CTL_RACH_CONF = 12;
+    public static final int L1CTL_RESET_REQ = 13;
+    public static final int L1CTL_RESET_CONF = 14;
+    public static final int L1CTL_DATA_CONF = 15;
+    public static final int L1CTL_CCCH_MODE_REQ = 16;
+    public static final int L1CTL_CCCH_MODE_CONF = 17;
+
+    // l1ctl_hdr: msg_type, flags, padding[2]
+    private static final int HDR_LEN = 4;
+    private static final int FLAGS_OFFSET = 1;
+
+    // l1ctl_info_dl: chan_nr, link_id, band_arfcn, frame_nr, rx_level, snr, num_biterr, fire_crc
+    private static final int INFO_DL_LEN = 12;
+    private static final int INFO_DL_CHAN_NR = 0;
+    private static final int INFO_DL_LINK_ID = 1;
+    private static final int INFO_DL_BAND_ARFCN = 2;
+    private static final int INFO_DL_FRAME_NR = 4;
+    private static final int INFO_DL_RX_LEVEL = 8;
+    private static final int INFO_DL_SNR = 9;
+    private static final int INFO_DL_NUM_BITERR = 10;
+    private static final int INFO_DL_FIRE_CRC = 11;
+
+    // l1ctl_data_ind: data[23]
+    public static final int DATA_IND_DATA_LEN = 23;
+
+    // l1ctl_pm_conf: band_arfcn, pm[2]
+    private static final int PM_CONF_ENTRY_LEN = 4;
+
+    private byte[] buf;
+    private int offset;
+    private int length;
+
+    L1CTLMessage() {
+    }
+
+    // Returns false, leaving the view empty, if the frame is too short for the L1CTL header
+    boolean wrap(byte[] buf, int offset, int length) {
+        if (length < HDR_LEN || offset < 0 || offset > buf.length - length) {
+            this.buf = null;
+            this.length = 0;
+            return false;
+        }
+        this.buf = buf;
+        this.offset = offset;
+        this.length = length;
+        return true;
+    }
+
+    public int getMsgType() {
+        return u8(0);
+    }
+
+    public int getFlags() {
+        return u8(FLAGS_OFFSET);
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    // Everything after the L1CTL header
+    public int getPayloadLength() {
+        return Math.max(0, length - HDR_LEN);
+    }
+
+    public byte getPayloadByte(int index) {
+        checkRange(HDR_LEN + index, 1);
+        return buf[offset + HDR_LEN + index];
+    }
+
+    public void copyPayload(int srcIndex, byte[] dst, int dstOffset, int count) {
+        checkRange(HDR_LEN + srcIndex, count);
+        System.arraycopy(buf, offset + HDR_LEN + srcIndex, dst, dstOffset, count);
+    }
+
+    // --- l1ctl_info_dl, present at the start of DATA_IND and FBSB_CONF ---
+
+    public boolean hasInfoDL() {
+        return getPayloadLength() >= INFO_DL_LEN;
+    }
+
+    public int getChanNr() {
+        return u8(HDR_LEN + INFO_DL_CHAN_NR);
+    }
+
+    public int getLinkId() {
+        return u8(HDR_LEN + INFO_DL_LINK_ID);
+    }
+
+    // Includes the PCS and uplink flag bits; see Utils.getAdjustedARFCN()
+    public short getBandArfcn() {
+        return (short)u16(HDR_LEN + INFO_DL_BAND_ARFCN);
+    }
+
+    public long getFrameNr() {
+        return ((long)u16(HDR_LEN + INFO_DL_FRAME_NR) << 16) |
+                u16(HDR_LEN + INFO_DL_FRAME_NR + 2);
+    }
+
+    public int getRxLevel() {
+        return u8(HDR_LEN + INFO_DL_RX_LEVEL);
+    }
+
+    public int getSNR() {
+        return u8(HDR_LEN + INFO_DL_SNR);
+    }
+
+    public int getNumBitErrors() {
+        return u8(HDR_LEN + INFO_DL_NUM_BITERR);
+    }
+
+    public int getFireCRC() {
+        return u8(HDR_LEN + INFO_DL_FIRE_CRC);
+    }
+
+    // --- L1CTL_DATA_IND ---
+
+    public boolean hasDataIndData() {
+        return getPayloadLength() >= INFO_DL_LEN + DATA_IND_DATA_LEN;
+    }
+
+    public byte getDataIndByte(int index) {
+        checkRange(HDR_LEN + INFO_DL_LEN + index, 1);
+        return buf[offset + HDR_LEN + INFO_DL_LEN + index];
+    }
+
+    public void copyDataIndData(byte[] dst, int dstOffset) {
+        checkRange(HDR_LEN + INFO_DL_LEN, DATA_IND_DATA_LEN);
+        System.arraycopy(buf, offset + HDR_LEN + INFO_DL_LEN, dst, dstOffset, DATA_IND_DATA_LEN);
+    }
+
+    // --- L1CTL_PM_CONF ---
+
+    public int getPMEntryCount() {
+        return getPayloadLength() / PM_CONF_ENTRY_LEN;
+    }
+
+    public short getPMBandArfcn(int entry) {
+        return (short)u16(HDR_LEN + entry * PM_CONF_ENTRY_LEN);
+    }
+
+    // rxlev (0-63) of the given sample; subtract 110 for dBm
+    public int getPMRxLev(int entry, int sample) {
+        return u8(HDR_LEN + entry * PM_CONF_ENTRY_LEN + 2 + sample);
+    }
+
+    // index and count are relative to the start of the message
+    private void checkRange(int index, int count) {
+        if (index < 0 || count < 0 || index > length - count) {
+            throw new IndexOutOfBoundsException("Bytes " + index + "+" + count +
+                    " of a " + length + " byte L1CTL message");
+        }
+    }
+
+    private int u8(int index) {
+        checkRange(index, 1);
+        return buf[offset + index] & 0xff;
+    }
+
+    private int u16(int index) {
+        checkRange(index, 2);
+        return ((buf[offset + index] & 0xff) << 8) | (buf[offset + index + 1] & 0xff);
+    }
+}
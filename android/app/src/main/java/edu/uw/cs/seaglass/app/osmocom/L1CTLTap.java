@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.osmocom;
+
+import android.util.Log;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import edu.uw.cs.seaglass.app.Utils;
+
+// Hands L1A_L23 messages to in-process listeners, keyed by L1CTL message type. Listener lists are
+// copy-on-write arrays swapped in with compare-and-set, so dispatch on the serial thread is a
+// single volatile read and subscribing never blocks it.
+class L1CTLTap {
+    private static final String TAG = Utils.TAG_PREFIX + "L1CTLTap";
+    private static final L1CTLListener[] NO_LISTENERS = new L1CTLListener[0];
+
+    private final AtomicReferenceArray<L1CTLListener[]> listeners =
+            new AtomicReferenceArray<>(256);
+    // Only used from the serial thread
+    private final L1CTLMessage msg = new L1CTLMessage();
+    // Only written by the serial thread
+    private volatile long truncatedFrameCount;
+
+    L1CTLTap() {
+        for (int i = 0; i < listeners.length(); i++) {
+            listeners.set(i, NO_LISTENERS);
+        }
+    }
+
+    void subscribe(int msgType, L1CTLListener listener) {
+        for (;;) {
+            L1CTLListener[] current = listeners.get(msgType);
+            L1CTLListener[] updated = new L1CTLListener[current.length + 1];
+            System.arraycopy(current, 0, updated, 0, current.length);
+            updated[current.length] = listener;
+            if (listeners.compareAndSet(msgType, current, updated)) {
+                return;
+            }
+        }
+    }
+
+    void unsubscribe(int msgType, L1CTLListener listener) {
+        for (;;) {
+            L1CTLListener[] current = listeners.get(msgType);
+            int index = -1;
+            for (int i = 0; i < current.length; i++) {
+                if (current[i] == listener) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return;
+            }
+            L1CTLListener[] updated = NO_LISTENERS;
+            if (current.length > 1) {
+                updated = new L1CTLListener[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, index);
+                System.arraycopy(current, index + 1, updated, index,
+                        current.length - index - 1);
+            }
+            if (listeners.compareAndSet(msgType, current, updated)) {
+                return;
+            }
+        }
+    }
+
+    long getTruncatedFrameCount() {
+        return truncatedFrameCount;
+    }
+
+    // Called from the serial thread with the frame still in its buffer. Frames too short for the
+    // L1CTL header are counted and skipped; layer 2 still gets them.
+    void dispatch(byte[] buf, int offset, int length) {
+        if (!msg.wrap(buf, offset, length)) {
+            truncatedFrameCount++;
+            return;
+        }
+        L1CTLListener[] subscribers = listeners.get(msg.getMsgType());
+        if (subscribers.length == 0) {
+            return;
+        }
+        for (L1CTLListener listener : subscribers) {
+            try {
+                listener.onL1CTLMessage(msg);
+            } catch (RuntimeException e) {
+                // A broken listener mustn't take the serial thread down with it
+                Log.w(TAG, e);
+            }
+        }
+    }
+}
@@ -19,7 +19,13 @@ package edu.uw.cs.seaglass.app.osmocom;
 import android.text.TextUtils;
 import android.util.Log;
 
+import com.google.ase.Exec;
+
+import java.io.BufferedReader;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
 import java.util.ArrayList;
 
 import edu.uw.cs.seaglass.app.ExecutableHost;
@@ -33,6 +39,8 @@ public class OsmocomBinaries extends Thread {
     private File filesDir;
     private File libsDir;
     private Options options;
+    // Whether this cell_log takes -B; found out the first time it's needed
+    private Boolean cellLogBinarySupported;
 
     private static final String TAG = Utils.TAG_PREFIX + "OsmocomBinaries";
 
@@ -112,6 +120,16 @@ public class OsmocomBinaries extends Thread {
                 ldLibraryPathBuilder.toString()
         };
 
+        if (options.getCellLogBinaryFormat()) {
+            if (cellLogSupportsBinaryFormat(cmdArgs.get(0), env)) {
+                // Length-prefixed records, see CellLogBinaryDecoder. CellLogProvider tells the
+                // formats apart by the first byte, so nothing else needs to know.
+                cmdArgs.add("-B");
+            } else {
+                Log.w(TAG, "cell_log doesn't support -B; using the text format");
+            }
+        }
+
         Log.d(TAG, "Starting cell_log...");
         Log.d(TAG, "Args is " + TextUtils.join(" ", cmdArgs.toArray(new String[cmdArgs.size()])));
         Log.d(TAG, "Environment is " + ldLibraryPathBuilder);
@@ -123,6 +141,34 @@ public class OsmocomBinaries extends Thread {
         Log.d(TAG, "Launched cell_log");
     }
 
+    // Looks for -B in cell_log's usage text. The cell_log built from the osmocom-bb tree doesn't
+    // have it, and would exit on an unknown option.
+    private boolean cellLogSupportsBinaryFormat(String cellLogPath, String[] env) {
+        if (cellLogBinarySupported != null) {
+            return cellLogBinarySupported;
+        }
+        cellLogBinarySupported = false;
+        int[] pids = new int[1];
+        BufferedReader usage = new BufferedReader(new InputStreamReader(new FileInputStream(
+                Exec.createSubprocess(new String[] { cellLogPath, "-h" }, env, pids))));
+        try {
+            String line;
+            while ((line = usage.readLine()) != null) {
+                if (line.trim().startsWith("-B")) {
+                    cellLogBinarySupported = true;
+                }
+            }
+        } catch (IOException e) {
+            // The pty reports EIO once the process has exited
+        } finally {
+            try {
+                usage.close();
+            } catch (IOException e) {}
+            Exec.waitFor(pids[0]);
+        }
+        return cellLogBinarySupported;
+    }
+
     public void close() {
         if (osmoconHost != null){
             osmoconHost.killProcess();
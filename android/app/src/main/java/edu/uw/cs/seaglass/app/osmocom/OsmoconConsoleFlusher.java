@@ -0,0 +1,72 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.osmocom;
+
+// Hands console output to the rest of the app in batches: every flushInterval ms, or sooner once
+// flushLines complete lines are waiting, whichever comes first
+class OsmoconConsoleFlusher extends Thread {
+    private final OsmoconService osmoconService;
+    private final ConsoleLineRing ring;
+    private final long flushInterval;
+    private final int flushLines;
+    private final StringBuilder batch = new StringBuilder();
+    private volatile boolean running = true;
+
+    OsmoconConsoleFlusher(OsmoconService osmoconService, int capacity, long flushInterval,
+                          int flushLines) {
+        this.osmoconService = osmoconService;
+        this.ring = new ConsoleLineRing(capacity);
+        this.flushInterval = flushInterval;
+        this.flushLines = flushLines;
+    }
+
+    // Called from the serial thread
+    void append(byte[] buf, int offset, int length) {
+        if (ring.append(buf, offset, length) >= flushLines) {
+            synchronized (this) {
+                notify();
+            }
+        }
+    }
+
+    long getDroppedLines() {
+        return ring.getDroppedLines();
+    }
+
+    public void run() {
+        while (running) {
+            synchronized (this) {
+                try {
+                    if (ring.size() < flushLines) {
+                        wait(flushInterval);
+                    }
+                } catch (InterruptedException e) {
+                    break;
+                }
+            }
+            batch.setLength(0);
+            if (ring.drainTo(batch)) {
+                osmoconService.consoleDataReceived(batch.toString());
+            }
+        }
+    }
+
+    void shutdown() {
+        running = false;
+        interrupt();
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.osmocom;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+
+import edu.uw.cs.seaglass.app.Utils;
+
+// Owns all HDLC writes to the phone once the app is running. Frames are queued by whoever
+// produces them (normally the layer2 socket readers), then escaped into one reused buffer and
+// sent to the phone several at a time in a single bulk transfer.
+//
+// There's a fixed set of frames, each with its own buffer, recycled once written. A producer
+// that finds them all queued waits for one: that slows the layer 2 client down to the phone's
+// pace without blocking anyone on USB, and L1CTL requests such as RESET are never lost to a
+// full queue. Only a failed transfer drops frames.
+class OsmoconDownlinkWriter extends Thread implements DownlinkSender {
+    private static final String TAG = Utils.TAG_PREFIX + "OsmoDownlinkWriter";
+    private static final int INITIAL_TX_BUF_SIZE = 4096;
+    private static final int INITIAL_FRAME_SIZE = 256;
+
+    private static class Frame {
+        byte dlci;
+        byte[] payload = new byte[INITIAL_FRAME_SIZE];
+        int length;
+    }
+
+    private OsmoconSerialThread serialThread;
+    private ArrayBlockingQueue<Frame> freeFrames;
+    // Never full, since there are only as many frames as it has room for
+    private ArrayBlockingQueue<Frame> queue;
+    private int maxFramesPerTransfer;
+    private byte[] txBuf;
+
+    // Only written by this thread
+    private volatile long transferCount;
+    private volatile long frameCount;
+    private volatile long droppedFrameCount;
+
+    OsmoconDownlinkWriter(OsmoconSerialThread serialThread, int queueCapacity,
+                          int maxFramesPerTransfer) {
+        this.serialThread = serialThread;
+        this.freeFrames = new ArrayBlockingQueue<>(queueCapacity);
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        for (int i = 0; i < queueCapacity; i++) {
+            freeFrames.add(new Frame());
+        }
+        this.maxFramesPerTransfer = maxFramesPerTransfer;
+        this.txBuf = new byte[INITIAL_TX_BUF_SIZE];
+    }
+
+    // Copies the payload at [offset, offset + length) of buf into a free frame and queues it,
+    // waiting for a frame if they're all queued. Any number of threads may call this.
+    @Override
+    public void sendToPhone(byte dlci, byte[] buf, int offset, int length)
+            throws InterruptedException {
+        Frame frame = freeFrames.take();
+        if (frame.payload.length < length) {
+            frame.payload = new byte[length];
+        }
+        System.arraycopy(buf, offset, frame.payload, 0, length);
+        frame.dlci = dlci;
+        frame.length = length;
+        queue.add(frame);
+    }
+
+    int getQueueDepth() {
+        return queue.size();
+    }
+
+    long getTransferCount() {
+        return transferCount;
+    }
+
+    long getFrameCount() {
+        return frameCount;
+    }
+
+    // Frames lost to failed transfers
+    long getDroppedFrameCount() {
+        return droppedFrameCount;
+    }
+
+    // Escapes the frame onto the end of txBuf and gives it back for reuse
+    private int encode(Frame frame, int offset) {
+        offset = Utils.rawToHDLC(frame.dlci, frame.payload, 0, frame.length, txBuf, offset);
+        freeFrames.add(frame);
+        return offset;
+    }
+
+    public void run() {
+        try {
+            for (;;) {
+                Frame frame = queue.take();
+                int maxLen = Utils.maxHDLCLength(frame.length);
+                if (maxLen > txBuf.length) {
+                    txBuf = new byte[maxLen];
+                }
+
+                int len = encode(frame, 0);
+                int frames = 1;
+                // Only this thread takes from the queue, so whatever peek() returns is what
+                // poll() removes
+                while (frames < maxFramesPerTransfer && (frame = queue.peek()) != null &&
+                        len + Utils.maxHDLCLength(frame.length) <= txBuf.length) {
+                    queue.poll();
+                    len = encode(frame, len);
+                    frames++;
+                }
+
+                try {
+                    serialThread.write(txBuf, 0, len);
+                } catch (IOException ex) {
+                    Log.w(TAG, "Dropping " + frames + " frames: " + ex.getMessage());
+                    droppedFrameCount += frames;
+                    continue;
+                }
+                transferCount++;
+                frameCount += frames;
+            }
+        } catch (InterruptedException ex) {
+            Log.d(TAG, "Downlink writer interrupted");
+        }
+    }
+
+    public void shutdown() {
+        interrupt();
+    }
+}
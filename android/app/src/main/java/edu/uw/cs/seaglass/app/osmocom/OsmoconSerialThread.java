@@ -20,21 +20,22 @@ import android.os.SystemClock;
 import android.util.Log;
 
 import java.io.IOException;
-import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
-import edu.uw.cs.seaglass.app.driver.USBSerialPort;
+import edu.uw.cs.seaglass.app.driver.SerialCaptureWriter;
+import edu.uw.cs.seaglass.app.driver.SerialTransport;
 import edu.uw.cs.seaglass.app.Utils;
 
-class OsmoconSerialThread extends Thread {
+class OsmoconSerialThread extends Thread implements SerialTransport.ReadCallback {
     enum SerialState {
         NONE,
         BOOTLOADER_PKT,
         ROMLOADER_PKT,
-        HDLC_PKT
+        HDLC_PKT,
+        RESYNC
     }
 
-    private static final byte HDLC_FLAG = 0x7e;
     private static final byte BOOTLOADER_PKT_INITIAL_BYTE = 0x1b;
     private static final int BOOTLOADER_PKT_LENGTH = 7;
     private static final byte ROMLOADER_PKT_INITIAL_BYTE_TO_PHONE = '<';
@@ -47,18 +48,6 @@ class OsmoconSerialThread extends Thread {
     private static final byte[] NACK = { 0x1b, (byte)0xf6, 0x02, 0x00, 0x45, 0x53, 0x16 };
     private static final byte[] NACK_MAGIC = { 0x1b, (byte)0xf6, 0x02, 0x00, 0x41, 0x03, 0x57 };
     private static final byte[] FTMTOOL = { 'F', 'T', 'M', 'T', 'O', 'O', 'L' };
-    private static final byte[] MAGIC = { '1', '0', '0', '3' };
-    private static final byte[] HDR_C123 = { (byte)0xee, 0x4c, (byte)0x9f, 0x63 };
-    private static final byte[] HDR_C155 = { 0x78, 0x47, (byte)0xc0, 0x46 };
-
-    private static final short MAGIC_OFFSET = 0x3be2;
-
-    private static final byte[] CHAINLOADER = {
-            0x0a, 0x18, (byte)0xa0, (byte)0xe3, 0x01, 0x10, 0x51, (byte)0xe2,
-            (byte)0xfd, (byte)0xff, (byte)0xff, 0x1a, 0x08, 0x10, (byte)0x9f, (byte)0xe5,
-            0x01, 0x2c, (byte)0xa0, (byte)0xe3, (byte)0xb0, 0x20, (byte)0xc1, (byte)0xe1,
-            0x00, (byte)0xf0, (byte)0xa0, (byte)0xe3, 0x10, (byte)0xfb, (byte)0xff, (byte)0xff
-    };
 
     private static final byte[] ROMLOADER_IDENT = { '<', 'i' };
     private static final byte[] ROMLOADER_IDENT_ACK = { '>', 'i' };
@@ -69,88 +58,69 @@ class OsmoconSerialThread extends Thread {
     private static final byte[] ROMLOADER_BRANCH_ACK = { '>', 'b' };
 
     private static final String TAG = Utils.TAG_PREFIX + "OsmoSerialThread";
-    private static final int SERIAL_BUF_SIZE = 4096;
+    private static final int SERIAL_BUF_INITIAL_SIZE = 16;
+    private static final int SERIAL_BUF_MAX_SIZE = 4096;
+    private static final int HDLC_FRAME_INITIAL_SIZE = 4096;
+    // Largest frame the socket side can pass on, plus dlci and control
+    private static final int HDLC_FRAME_MAX_SIZE = HDLCDeframer.PAYLOAD_OFFSET + 0xffff;
+    private static final int READ_BUF_SIZE = 4096;
+    // Enough transfers in flight to cover the time spent handling one at 115200 baud
+    private static final int READ_REQUEST_COUNT = 4;
     private static long SERIAL_STATE_TIMEOUT = 1000;
 
-    private OsmoconService osmoconService;
-    private USBSerialPort usbSerialPort;
-    private PhoneType phoneType;
+    private SerialThreadListener listener;
+    private SerialTransport serialPort;
     private PhoneState phoneState;
-    private int maxBlockSize;
-    private int blockMemPtr;
+    private FirmwareImage firmwareImage;
+    private int blockIndex;
     private int appPayloadPtr;
-    private byte[] chainloaderPayload;
-    private byte[] appPayload;
-    private byte appChecksum;
-    private byte[] serialBuf;
-    private int serialBufReadPtr;
-    private int serialBufWritePtr;
+    private long uploadStartTime;
+    private SerialRingBuffer serialBuf;
     private SerialState serialState;
+    private HDLCDeframer hdlcDeframer;
+    private byte[] readBuf;
     private long lastRecvTime;
-
-    OsmoconSerialThread(OsmoconService osmoconService, USBSerialPort usbSerialPort,
-                        PhoneType phoneType, byte[] appPayload) {
-        this.osmoconService = osmoconService;
-        this.usbSerialPort = usbSerialPort;
-        this.phoneType = phoneType;
-        this.appPayload = appPayload;
-        this.serialBuf = new byte[SERIAL_BUF_SIZE];
-    }
-
-    void write(byte[] payload) throws IOException {
-        usbSerialPort.write(payload);
+    private long lastReadNanos;
+    private SerialLinkStats stats;
+    private volatile SerialCaptureWriter captureWriter;
+
+    OsmoconSerialThread(SerialThreadListener listener, SerialTransport serialPort,
+                        FirmwareImage firmwareImage, SerialLinkStats stats) {
+        this.listener = listener;
+        this.serialPort = serialPort;
+        this.firmwareImage = firmwareImage;
+        this.stats = stats;
+        this.serialBuf = new SerialRingBuffer(SERIAL_BUF_INITIAL_SIZE, SERIAL_BUF_MAX_SIZE);
+        this.hdlcDeframer = new HDLCDeframer(HDLC_FRAME_INITIAL_SIZE, HDLC_FRAME_MAX_SIZE, stats);
+        this.readBuf = new byte[READ_BUF_SIZE];
     }
 
-    private int getSerialBufSize() {
-        if (serialBufWritePtr > serialBufReadPtr) {
-            return serialBufWritePtr - serialBufReadPtr;
-        } else {
-            return serialBufWritePtr + serialBuf.length - serialBufReadPtr;
+    void write(byte[] buf, int offset, int length) throws IOException {
+        SerialTransport port = serialPort;
+        if (port == null) {
+            throw new IOException("Serial port is closed");
         }
-    }
-
-    private byte[] getPacket() {
-        byte[] pktBuf;
-
-        if (serialBufWritePtr > serialBufReadPtr) {
-            pktBuf = Arrays.copyOfRange(serialBuf, serialBufReadPtr, serialBufWritePtr);
-        } else {
-            int pktLen = serialBufWritePtr + serialBuf.length - serialBufReadPtr;
-            pktBuf = new byte[pktLen];
-            System.arraycopy(serialBuf, serialBufReadPtr, pktBuf, 0,
-                    serialBuf.length - serialBufReadPtr);
-            System.arraycopy(serialBuf, 0, pktBuf,
-                    serialBuf.length - serialBufReadPtr, serialBufWritePtr);
-        }
-
-        serialBufReadPtr = serialBufWritePtr;
-        return pktBuf;
-    }
-
-    private void writeSerialBufByte(byte b) throws BufferOverflowException {
-        serialBuf[serialBufWritePtr++] = b;
-        if (serialBufWritePtr >= serialBuf.length)
-            serialBufWritePtr = 0;
-        if (serialBufWritePtr == serialBufReadPtr) {
-            throw new BufferOverflowException();
+        if (port.write(buf, offset, length) < 0) {
+            throw new IOException("Serial write failed");
         }
     }
 
     private void handleBootloaderPkt(byte[] pkt) throws IOException {
         PhoneState oldPhoneState = phoneState;
         if (Arrays.equals(pkt, PROMPT1)) {
+            uploadStartTime = SystemClock.elapsedRealtime();
             phoneState = PhoneState.PROMPT2;
-            usbSerialPort.write(DNLOAD);
+            serialPort.write(DNLOAD);
             //Log.d(TAG, "Received PROMPT1");
         } else if (phoneState == PhoneState.PROMPT2 && Arrays.equals(pkt, PROMPT2)) {
             //Log.d(TAG, "Received PROMPT2, beginning download");
             phoneState = PhoneState.CHAINLOADER;
-            usbSerialPort.writeAsync(chainloaderPayload);
+            serialPort.writeAsync(firmwareImage.getChainloaderPayload());
             sendStatusUpdate();
-            usbSerialPort.requestWait();
+            serialPort.requestWait();
         } else if (phoneState == PhoneState.CHAINLOADER && Arrays.equals(pkt, ACK)) {
             //Log.d(TAG, "Received ACK, switching to romloader");
-            usbSerialPort.setBaudRate(19200);
+            serialPort.setBaudRate(19200);
             phoneState = PhoneState.IDENT;
             new BeaconThread().start();
         } else if (phoneState == PhoneState.CHAINLOADER && Arrays.equals(pkt, NACK)) {
@@ -168,43 +138,45 @@ class OsmoconSerialThread extends Thread {
         }
     }
 
-    private boolean haveCompleteRomloaderPkt() {
-        byte type;
-        if (serialBufReadPtr + 1 >= serialBuf.length) {
-            type = serialBuf[serialBufReadPtr + 1 - serialBuf.length];
-        } else {
-            type = serialBuf[serialBufReadPtr + 1];
+    // Romloader packets are two bytes long until the type byte says otherwise
+    private int getRomloaderPktLength() {
+        if (serialBuf.size() < 2) {
+            return 2;
         }
 
-        switch (type) {
+        switch (serialBuf.get(1)) {
             case 'c':
             case 'C':
-                return getSerialBufSize() >= 3;
+                return 3;
             case 'p':
-                return getSerialBufSize() >= 4;
+                return 4;
             default:
-                return getSerialBufSize() >= 2;
+                return 2;
         }
     }
 
     private void sendStatusUpdate() {
-        osmoconService.serialThreadStatusUpdated(phoneState, appPayloadPtr, appPayload.length);
+        listener.serialThreadStatusUpdated(phoneState, appPayloadPtr,
+                firmwareImage.getAppPayloadLength());
     }
 
     private void handleRomloaderPkt(byte[] pkt) throws IOException {
         if (phoneState == PhoneState.IDENT && Arrays.equals(pkt, ROMLOADER_IDENT_ACK)) {
             Log.d(TAG, "Received ROMLOADER_IDENT_ACK from phone");
             phoneState = PhoneState.PARAM;
-            usbSerialPort.write(ROMLOADER_PARAM);
+            serialPort.write(ROMLOADER_PARAM);
         } else if (phoneState == PhoneState.PARAM && pkt[0] == '>' && pkt[1] == 'p') {
             Log.d(TAG, "Received ROMLOADER_PARAM_ACK from phone; sending payload");
-            usbSerialPort.setBaudRate(115200);
+            serialPort.setBaudRate(115200);
             phoneState = PhoneState.DOWNLOAD_APP_BLOCKS;
-            maxBlockSize = (pkt[3] << 8) + pkt[2];
-            blockMemPtr = 0x820000;
+            int maxBlockSize = ((pkt[3] & 0xff) << 8) | (pkt[2] & 0xff);
+            if (maxBlockSize != firmwareImage.getMaxBlockSize()) {
+                Log.d(TAG, "Romloader block size is " + maxBlockSize + "; rebuilding blocks");
+                firmwareImage = firmwareImage.withMaxBlockSize(maxBlockSize);
+            }
+            blockIndex = 0;
             appPayloadPtr = 0;
-            appChecksum = 0;
-            osmoconService.serialThreadStatusUpdated(phoneState, 0, appPayload.length);
+            sendStatusUpdate();
             sendNextBlock();
         } else if (Arrays.equals(pkt, ROMLOADER_BLOCK_ACK)) {
             Log.d(TAG, "Received ROMLOADER_BLOCK_ACK from phone");
@@ -215,8 +187,8 @@ class OsmoconSerialThread extends Thread {
                 byte[] checksumCmd = new byte[3];
                 checksumCmd[0] = '<';
                 checksumCmd[1] = 'c';
-                checksumCmd[2] = (byte)((~appChecksum) & 0xff);
-                usbSerialPort.write(checksumCmd);
+                checksumCmd[2] = (byte)((~firmwareImage.getAppChecksum()) & 0xff);
+                serialPort.write(checksumCmd);
                 sendStatusUpdate();
             } else {
                 Log.d(TAG, "... in an unexpected phoneState; switching to ERROR");
@@ -225,10 +197,10 @@ class OsmoconSerialThread extends Thread {
             }
         } else if (phoneState == PhoneState.APP_CHECKSUM && pkt[0] == '>') {
             if (pkt[1] == 'c') {
-                if (pkt[2] == appChecksum) {
+                if (pkt[2] == firmwareImage.getAppChecksum()) {
                     Log.d(TAG, "Checksum confirmed, branching to executable");
                     phoneState = PhoneState.BRANCH;
-                    usbSerialPort.write(ROMLOADER_BRANCH);
+                    serialPort.write(ROMLOADER_BRANCH);
                 } else {
                     Log.w(TAG, "Unexpected value in romloader checksum ack");
                     phoneState = PhoneState.ERROR;
@@ -244,6 +216,12 @@ class OsmoconSerialThread extends Thread {
         } else if (phoneState == PhoneState.BRANCH && Arrays.equals(pkt, ROMLOADER_BRANCH_ACK)) {
             phoneState = PhoneState.APP_RUNNING;
             Log.d(TAG, "Phone app is now running");
+            if (uploadStartTime != 0) {
+                long uploadTime = SystemClock.elapsedRealtime() - uploadStartTime;
+                Log.i(TAG, "Firmware upload took " + uploadTime + " ms");
+                listener.firmwareUploadCompleted(uploadTime);
+                uploadStartTime = 0;
+            }
             sendStatusUpdate();
         } else {
             Log.w(TAG, "Unexpected data received in handleRomloaderPkt()");
@@ -253,153 +231,148 @@ class OsmoconSerialThread extends Thread {
     }
 
     public void run() {
-        chainloaderPayload = getChainloader();
         phoneState = PhoneState.PROMPT1;
         serialState = SerialState.NONE;
 
         try {
-            usbSerialPort.open();
-            usbSerialPort.setBaudRate(115200);
-
-            for (;;) {
-                if (usbSerialPort == null) {
-                    return;
-                }
-                byte[] buf = usbSerialPort.read(4096);
-                long recvTime = SystemClock.elapsedRealtime();
-                if (recvTime - lastRecvTime > SERIAL_STATE_TIMEOUT) {
-                    serialState = SerialState.NONE;
-                    serialBufReadPtr = serialBufWritePtr;
-                }
-                lastRecvTime = recvTime;
+            serialPort.open();
+            serialPort.setBaudRate(115200);
 
-                for (int i = 0; i < buf.length; i++) {
-                    if (serialState == SerialState.NONE) {
-                        if (buf[i] == BOOTLOADER_PKT_INITIAL_BYTE) {
-                            writeSerialBufByte(buf[i]);
-                            serialState = SerialState.BOOTLOADER_PKT;
-                        } else if (buf[i] == HDLC_FLAG) {
-                            writeSerialBufByte(buf[i]);
-                            serialState = SerialState.HDLC_PKT;
-                        } else if (buf[i] == ROMLOADER_PKT_INITIAL_BYTE_TO_PHONE ||
-                                buf[i] == ROMLOADER_PKT_INITAL_BYTE_FROM_PHONE) {
-                            writeSerialBufByte(buf[i]);
-                            serialState = SerialState.ROMLOADER_PKT;
-                        }
-                    } else if (serialState == SerialState.BOOTLOADER_PKT) {
-                        writeSerialBufByte(buf[i]);
-                        if (getSerialBufSize() == BOOTLOADER_PKT_LENGTH) {
-                            handleBootloaderPkt(getPacket());
-                            serialState = SerialState.NONE;
-                        }
-                    } else if (serialState == SerialState.HDLC_PKT) {
-                        writeSerialBufByte(buf[i]);
-                        if (buf[i] == HDLC_FLAG) {
-                            if (phoneState != PhoneState.APP_RUNNING) {
-                                phoneState = PhoneState.APP_RUNNING;
-                            }
-                            osmoconService.recvFromPhone(getPacket());
-                            serialState = SerialState.NONE;
-                        }
-                    } else if (serialState == SerialState.ROMLOADER_PKT) {
-                        writeSerialBufByte(buf[i]);
-                        if (haveCompleteRomloaderPkt()) {
-                            handleRomloaderPkt(getPacket());
-                            serialState = SerialState.NONE;
-                        }
-                    } else {
-                        Log.d(TAG,String.format(
-                                "Received unexpected byte from serial: %02x", buf[i]));
-                    }
-                }
-            }
+            serialPort.readPipelined(READ_BUF_SIZE, READ_REQUEST_COUNT, this);
         } catch (Exception ex) {
             Log.w(TAG, ex);
         }
     }
 
-    public void shutdown() {
-        usbSerialPort.close();
-        usbSerialPort = null;
-    }
-
-    private byte computeXorChkSum(byte[] data) {
-        byte xorChkSum = 0;
-        for (byte b : data) {
-            xorChkSum ^= b;
+    @Override
+    public void onDataRead(ByteBuffer buf) throws IOException {
+        if (serialPort == null) {
+            return;
         }
-        return xorChkSum;
-    }
-
-    private byte[] getChainloader() {
-        int payloadSize = CHAINLOADER.length;
-        boolean useXor = (phoneType == PhoneType.C123xor || phoneType == PhoneType.C140xor);
-        boolean useMagic = (phoneType == PhoneType.C140 || phoneType == PhoneType.C140xor);
-        if (useMagic) {
-            if (payloadSize <= MAGIC_OFFSET) {
-                payloadSize = MAGIC_OFFSET + MAGIC.length;
+        long startNanos = System.nanoTime();
+        long recvTime = SystemClock.elapsedRealtime();
+        if (recvTime - lastRecvTime > SERIAL_STATE_TIMEOUT) {
+            if (serialState != SerialState.NONE) {
+                stats.stateTimeoutReset();
             }
+            serialState = SerialState.NONE;
+            serialBuf.clear();
         }
-        byte[] dnloadData = new byte[(useXor ? 2 : 0) + 2 + HDR_C123.length + payloadSize];
-        int offset = 0;
-        if (useXor) {
-            dnloadData[offset++] = 0x02;
-        }
-        dnloadData[offset++] = (byte)(((HDR_C123.length + payloadSize) >> 8) & 0xff);
-        dnloadData[offset++] = (byte)((HDR_C123.length + payloadSize) & 0xff);
-        switch (phoneType) {
-            case C123:
-            case C123xor:
-            case C140:
-            case C140xor:
-                System.arraycopy(HDR_C123, 0, dnloadData, offset, HDR_C123.length);
-                offset += HDR_C123.length;
-                break;
-            case C155:
-                System.arraycopy(HDR_C123, 0, dnloadData, offset, HDR_C123.length);
-                offset += HDR_C123.length;
-                break;
+        lastRecvTime = recvTime;
+
+        int len = buf.remaining();
+        buf.get(readBuf, 0, len);
+        SerialCaptureWriter capture = captureWriter;
+        if (capture != null) {
+            capture.record(readBuf, 0, len);
         }
-        System.arraycopy(CHAINLOADER, 0, dnloadData, offset, CHAINLOADER.length);
-        if (useMagic) {
-            System.arraycopy(MAGIC, 0,
-                    dnloadData, MAGIC_OFFSET + (useXor ? 1 : 0), MAGIC.length);
+        try {
+            processSerialData(readBuf, len);
+        } finally {
+            long endNanos = System.nanoTime();
+            long intervalMicros = lastReadNanos == 0 ? -1 : (startNanos - lastReadNanos) / 1000;
+            stats.readCompleted(len, intervalMicros, (endNanos - startNanos) / 1000);
+            lastReadNanos = startNanos;
         }
-        if (useXor) {
-            dnloadData[dnloadData.length - 1] = computeXorChkSum(dnloadData);
+        listener.serialLinkStatsUpdated(recvTime);
+    }
+
+    private void processSerialData(byte[] buf, int len) throws IOException {
+        for (int i = 0; i < len; i++) {
+            if (serialState == SerialState.NONE) {
+                if (buf[i] == BOOTLOADER_PKT_INITIAL_BYTE) {
+                    serialState = SerialState.BOOTLOADER_PKT;
+                } else if (buf[i] == HDLCDeframer.HDLC_FLAG) {
+                    hdlcDeframer.reset();
+                    serialState = SerialState.HDLC_PKT;
+                    continue;
+                } else if (buf[i] == ROMLOADER_PKT_INITIAL_BYTE_TO_PHONE ||
+                        buf[i] == ROMLOADER_PKT_INITAL_BYTE_FROM_PHONE) {
+                    serialState = SerialState.ROMLOADER_PKT;
+                } else {
+                    stats.bytesDiscarded(1);
+                    continue;
+                }
+            }
+
+            if (serialState == SerialState.BOOTLOADER_PKT) {
+                i = appendToSerialBuf(buf, i, len, BOOTLOADER_PKT_LENGTH);
+                if (serialBuf.size() == BOOTLOADER_PKT_LENGTH) {
+                    handleBootloaderPkt(serialBuf.take());
+                    serialState = SerialState.NONE;
+                }
+            } else if (serialState == SerialState.HDLC_PKT) {
+                // The deframer consumes the rest of the frame in one go rather than
+                // going through serialBuf byte by byte
+                int frameEnd = hdlcDeframer.feed(buf, i, len);
+                if (frameEnd < 0) {
+                    break;
+                }
+                if (phoneState != PhoneState.APP_RUNNING) {
+                    phoneState = PhoneState.APP_RUNNING;
+                }
+                stats.frameReceived(hdlcDeframer.getDLCI());
+                listener.recvFromPhone(hdlcDeframer.getDLCI(),
+                        hdlcDeframer.getBuffer(), HDLCDeframer.PAYLOAD_OFFSET,
+                        hdlcDeframer.getPayloadLength());
+                serialState = SerialState.NONE;
+                i = frameEnd - 1;
+            } else if (serialState == SerialState.ROMLOADER_PKT) {
+                // The length isn't known until the type byte is in, so this may take two goes
+                i = appendToSerialBuf(buf, i, len, getRomloaderPktLength());
+                if (serialBuf.size() >= 2 && serialBuf.size() == getRomloaderPktLength()) {
+                    handleRomloaderPkt(serialBuf.take());
+                    serialState = SerialState.NONE;
+                }
+            } else if (serialState == SerialState.RESYNC) {
+                if (buf[i] == HDLCDeframer.HDLC_FLAG) {
+                    hdlcDeframer.reset();
+                    serialState = SerialState.HDLC_PKT;
+                } else {
+                    stats.bytesDiscarded(1);
+                }
+            } else {
+                Log.d(TAG,String.format(
+                        "Received unexpected byte from serial: %02x", buf[i]));
+            }
         }
-        return dnloadData;
     }
 
-    private void sendNextBlock() throws IOException {
-        int payloadLen = appPayload.length - appPayloadPtr;
-        if (payloadLen > maxBlockSize - 10) {
-            payloadLen = maxBlockSize - 10;
+    // Copies buf[i, len) into serialBuf until it holds pktLength bytes and returns the index of
+    // the last byte consumed. If the ring can't hold them, the packet is dropped and everything up
+    // to the next HDLC flag is skipped.
+    private int appendToSerialBuf(byte[] buf, int i, int len, int pktLength) {
+        int count = Math.min(pktLength - serialBuf.size(), len - i);
+        if (count <= 0) {
+            return i;
         }
-        byte[] block = new byte[payloadLen + 10];
-        block[0] = '<';
-        block[1] = 'w';
-        block[2] = 0x01;
-        block[3] = 0x01;
-        block[4] = (byte)((payloadLen >> 8) & 0xff);
-        block[5] = (byte)(payloadLen & 0xff);
-        block[6] = (byte)((blockMemPtr >> 24) & 0xff);
-        block[7] = (byte)((blockMemPtr >> 16) & 0xff);
-        block[8] = (byte)((blockMemPtr >> 8) & 0xff);
-        block[9] = (byte)(blockMemPtr & 0xff);
-        System.arraycopy(appPayload, appPayloadPtr, block, 10, payloadLen);
+        if (!serialBuf.append(buf, i, count)) {
+            Log.w(TAG, "Serial buffer overflow; resynchronising");
+            stats.bufferOverflow();
+            stats.bytesDiscarded(serialBuf.size() + count);
+            serialBuf.clear();
+            serialState = SerialState.RESYNC;
+        }
+        return i + count - 1;
+    }
 
-        usbSerialPort.write(block);
+    // Every read from here on is also appended to the capture; null stops recording
+    void setCaptureWriter(SerialCaptureWriter captureWriter) {
+        this.captureWriter = captureWriter;
+    }
 
-        byte blockChecksum = 5;
-        for (int i = 5; i < block.length; i++) {
-            blockChecksum += block[i];
-        }
-        appChecksum += (~blockChecksum) & 0xff;
+    public void shutdown() {
+        serialPort.close();
+        serialPort = null;
+    }
 
-        appPayloadPtr += payloadLen;
-        blockMemPtr += payloadLen;
-        if (appPayloadPtr >= appPayload.length) {
+    private void sendNextBlock() throws IOException {
+        // Blocks are prebuilt, so all that's left is to queue the write; the read pipeline reaps
+        // the completed transfer
+        serialPort.writeAsync(firmwareImage.getBlock(blockIndex));
+        appPayloadPtr = firmwareImage.getBlockEndOffset(blockIndex);
+        blockIndex++;
+        if (blockIndex >= firmwareImage.getBlockCount()) {
             phoneState = PhoneState.APP_CHECKSUM;
         }
     }
@@ -421,7 +394,7 @@ class OsmoconSerialThread extends Thread {
                 }
                 Log.d(TAG, "Sending beacon...");
                 try {
-                    usbSerialPort.write(ROMLOADER_IDENT);
+                    serialPort.write(ROMLOADER_IDENT);
                 } catch (IOException ex) {
                     Log.d(TAG, "IOException writing ROMLOADER_IDENT");
                 }
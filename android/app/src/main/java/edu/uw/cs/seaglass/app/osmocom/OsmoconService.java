@@ -20,15 +20,20 @@ import android.content.Intent;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import android.util.Log;
 
+import java.io.File;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 
 import edu.uw.cs.seaglass.app.Utils;
-import edu.uw.cs.seaglass.app.driver.USBSerialPort;
+import edu.uw.cs.seaglass.app.driver.SerialCaptureWriter;
+import edu.uw.cs.seaglass.app.driver.SerialTransport;
 
 public class OsmoconService {
     private OsmoconSerialThread serialThread;
     private OsmoconSocketThread socketThread;
+    private OsmoconDownlinkWriter downlinkWriter;
+    private OsmoconConsoleFlusher consoleFlusher;
+    private final L1CTLTap l1ctlTap = new L1CTLTap();
+    private SerialCaptureWriter captureWriter;
 
     public static final String OSMOCON_STATUS_UPDATE = "OSMOCON_STATUS_UPDATE";
     public static final String OSMOCON_CONSOLE_DATA_RECEIVED = "OSMOCON_CONSOLE_DATA_RECEIVED";
@@ -38,65 +43,195 @@ public class OsmoconService {
             "edu.uw.cs.seaglass.app.osmocom.OsmoconService.STATE";
     public static final String OSMOCON_STATUS_UPLOAD_PERCENT =
             "edu.uw.cs.seaglass.app.osmocom.OsmoconService.UPLOAD_PERCENT";
+    public static final String OSMOCON_STATUS_UPLOAD_TIME =
+            "edu.uw.cs.seaglass.app.osmocom.OsmoconService.UPLOAD_TIME";
+    public static final String OSMOCON_LINK_STATS_UPDATE = "OSMOCON_LINK_STATS_UPDATE";
+    public static final String OSMOCON_LINK_STATS_SUMMARY_EXTRA =
+            "edu.uw.cs.seaglass.app.osmocom.OsmoconService.LinkStatsSummary";
     private static final String TAG = Utils.TAG_PREFIX + "OsmoSocketThread";
     private static final String CONSOLE_TAG = Utils.TAG_PREFIX + "Console";
 
     static final byte SC_DLCI_L1A_L23 = 5;
     static final byte SC_DLCI_CONSOLE = 10;
 
+    private static final int DOWNLINK_QUEUE_CAPACITY = 64;
+    private static final int DOWNLINK_MAX_FRAMES_PER_TRANSFER = 8;
+    private static final int UPLINK_QUEUE_CAPACITY = 256;
+    private static final int CONSOLE_RING_CAPACITY = 256;
+    private static final long CONSOLE_FLUSH_INTERVAL = 250;
+    private static final int CONSOLE_FLUSH_LINES = 64;
+    private static final long LINK_STATS_BROADCAST_INTERVAL = 1000;
+
     private LocalBroadcastManager localBroadcastManager;
+    private volatile long lastUploadTime;
+    private SerialLinkStats serialLinkStats;
+    private long lastLinkStatsBroadcast;
 
     public OsmoconService(LocalBroadcastManager localBroadcastManager,
-                          String socketName, USBSerialPort usbSerialPort,
-                          PhoneType phoneType, byte[] appPayload) throws IOException {
+                          String socketName, SerialTransport serialPort,
+                          FirmwareImage firmwareImage) throws IOException {
         this.localBroadcastManager = localBroadcastManager;
-        serialThread = new OsmoconSerialThread(this, usbSerialPort, phoneType, appPayload);
-        socketThread = new OsmoconSocketThread(this, socketName);
+        serialLinkStats = new SerialLinkStats();
+        serialThread = new OsmoconSerialThread(new SerialThreadEvents(), serialPort,
+                firmwareImage, serialLinkStats);
+        downlinkWriter = new OsmoconDownlinkWriter(serialThread,
+                DOWNLINK_QUEUE_CAPACITY, DOWNLINK_MAX_FRAMES_PER_TRANSFER);
+        socketThread = new OsmoconSocketThread(downlinkWriter, socketName,
+                UPLINK_QUEUE_CAPACITY, UplinkOverflowPolicy.DROP);
+        consoleFlusher = new OsmoconConsoleFlusher(this, CONSOLE_RING_CAPACITY,
+                CONSOLE_FLUSH_INTERVAL, CONSOLE_FLUSH_LINES);
+        consoleFlusher.start();
         serialThread.start();
         socketThread.start();
+        downlinkWriter.start();
     }
 
     public void shutdown() {
+        stopCapture();
+        consoleFlusher.shutdown();
+        downlinkWriter.shutdown();
         serialThread.shutdown();
         socketThread.shutdown();
     }
 
-    void serialThreadStatusUpdated(PhoneState phoneState,
-                                   int payloadBytesSent, int payloadTotalSize) {
-        Intent intent = new Intent(OSMOCON_STATUS_UPDATE);
-        intent.putExtra(OSMOCON_STATUS_STATE, phoneState);
-        if (phoneState == PhoneState.DOWNLOAD_APP_BLOCKS) {
-            intent.putExtra(OSMOCON_STATUS_UPLOAD_PERCENT,
-                    (float)payloadBytesSent / payloadTotalSize);
+    public int getDownlinkQueueDepth() {
+        return downlinkWriter.getQueueDepth();
+    }
+
+    public float getDownlinkFramesPerTransfer() {
+        long transferCount = downlinkWriter.getTransferCount();
+        if (transferCount == 0) {
+            return 0;
         }
-        localBroadcastManager.sendBroadcast(intent);
+        return (float)downlinkWriter.getFrameCount() / transferCount;
+    }
+
+    // Frames lost because a transfer to the phone failed
+    public long getDownlinkDroppedFrames() {
+        return downlinkWriter.getDroppedFrameCount();
+    }
+
+    public void setUplinkOverflowPolicy(UplinkOverflowPolicy uplinkOverflowPolicy) {
+        socketThread.setUplinkOverflowPolicy(uplinkOverflowPolicy);
+    }
+
+    public int getUplinkClientCount() {
+        return socketThread.getClientCount();
     }
 
-    private void consoleDataReceived(String data) {
+    public int getUplinkQueueDepth() {
+        return socketThread.getUplinkQueueDepth();
+    }
+
+    // Frames for layer 2 dropped because a client wasn't keeping up, counted once per client
+    public long getUplinkDroppedFrames() {
+        return socketThread.getDroppedFrameCount();
+    }
+
+    // Delivers every L1CTL message of the given type (one of the L1CTLMessage.L1CTL_*
+    // constants) from the phone to the listener, on the serial thread, before it goes to the
+    // layer 2 clients
+    public void addL1CTLListener(int msgType, L1CTLListener listener) {
+        l1ctlTap.subscribe(msgType, listener);
+    }
+
+    public void removeL1CTLListener(int msgType, L1CTLListener listener) {
+        l1ctlTap.unsubscribe(msgType, listener);
+    }
+
+    // Records every read from the phone to the given file until stopCapture(). The capture can
+    // be played back through the serial path on a JVM with the unit tests' replay transport.
+    public synchronized void startCapture(File file) throws IOException {
+        stopCapture();
+        captureWriter = new SerialCaptureWriter(file);
+        serialThread.setCaptureWriter(captureWriter);
+    }
+
+    public synchronized void stopCapture() {
+        if (captureWriter == null) {
+            return;
+        }
+        serialThread.setCaptureWriter(null);
+        try {
+            captureWriter.close();
+        } catch (IOException e) {
+            Log.w(TAG, "Error finishing serial capture", e);
+        }
+        if (captureWriter.getDroppedReads() > 0) {
+            Log.w(TAG, "Serial capture dropped " + captureWriter.getDroppedReads() + " reads");
+        }
+        captureWriter = null;
+    }
+
+    public SerialLinkStats getSerialLinkStats() {
+        return serialLinkStats;
+    }
+
+    public long getLastUploadTime() {
+        return lastUploadTime;
+    }
+
+    // Console lines overwritten because the app fell too far behind the phone
+    public long getConsoleDroppedLines() {
+        return consoleFlusher.getDroppedLines();
+    }
+
+    // Called by the console flusher with everything the phone printed since the last batch
+    void consoleDataReceived(String data) {
         Intent intent = new Intent(OSMOCON_CONSOLE_DATA_RECEIVED);
         intent.putExtra(OSMOCON_CONSOLE_DATA_EXTRA, data);
         localBroadcastManager.sendBroadcast(intent);
         Log.d(CONSOLE_TAG, data);
     }
 
-    void recvFromPhone(byte[] hdlcBuf) throws IOException {
-        byte[] payload = Utils.hdlcToRaw(hdlcBuf);
-        byte dlci = hdlcBuf[1];
-        switch (dlci) {
-            case SC_DLCI_L1A_L23:
-                socketThread.write(payload);
-                break;
-            case SC_DLCI_CONSOLE:
-                consoleDataReceived(new String(payload, StandardCharsets.US_ASCII));
-                break;
-            default:
-                Log.w(TAG, "Unknown dlci!");
-                break;
+    // Kept off the service's own interface, which the app outside this package uses
+    private class SerialThreadEvents implements SerialThreadListener {
+        // Sends a summary at most once per interval
+        @Override
+        public void serialLinkStatsUpdated(long now) {
+            if (now - lastLinkStatsBroadcast < LINK_STATS_BROADCAST_INTERVAL) {
+                return;
+            }
+            lastLinkStatsBroadcast = now;
+            Intent intent = new Intent(OSMOCON_LINK_STATS_UPDATE);
+            intent.putExtra(OSMOCON_LINK_STATS_SUMMARY_EXTRA, serialLinkStats.summarize());
+            localBroadcastManager.sendBroadcast(intent);
         }
-    }
 
-    void sendToPhone(byte dlci, byte[] payload) throws IOException {
-        byte[] hdlcBuf = Utils.rawToHDLC(dlci, payload);
-        serialThread.write(hdlcBuf);
+        @Override
+        public void serialThreadStatusUpdated(PhoneState phoneState,
+                                              int payloadBytesSent, int payloadTotalSize) {
+            Intent intent = new Intent(OSMOCON_STATUS_UPDATE);
+            intent.putExtra(OSMOCON_STATUS_STATE, phoneState);
+            if (phoneState == PhoneState.DOWNLOAD_APP_BLOCKS) {
+                intent.putExtra(OSMOCON_STATUS_UPLOAD_PERCENT,
+                        (float)payloadBytesSent / payloadTotalSize);
+            } else if (phoneState == PhoneState.APP_RUNNING && lastUploadTime != 0) {
+                intent.putExtra(OSMOCON_STATUS_UPLOAD_TIME, lastUploadTime);
+            }
+            localBroadcastManager.sendBroadcast(intent);
+        }
+
+        @Override
+        public void firmwareUploadCompleted(long uploadTime) {
+            lastUploadTime = uploadTime;
+        }
+
+        @Override
+        public void recvFromPhone(byte dlci, byte[] buf, int offset, int length)
+                throws IOException {
+            switch (dlci) {
+                case SC_DLCI_L1A_L23:
+                    l1ctlTap.dispatch(buf, offset, length);
+                    socketThread.write(buf, offset, length);
+                    break;
+                case SC_DLCI_CONSOLE:
+                    consoleFlusher.append(buf, offset, length);
+                    break;
+                default:
+                    Log.w(TAG, "Unknown dlci!");
+                    break;
+            }
+        }
     }
 }
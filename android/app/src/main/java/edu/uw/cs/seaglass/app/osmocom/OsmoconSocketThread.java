@@ -20,52 +20,113 @@ import android.net.LocalServerSocket;
 import android.net.LocalSocket;
 import android.util.Log;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
 import edu.uw.cs.seaglass.app.Utils;
 
+// Accepts layer 2 clients on the osmocom_l2 socket. Each client gets a reader thread for frames
+// going to the phone and an OsmoconUplinkWriter for frames coming from it; every L1A_L23 frame
+// from the phone goes to all connected clients.
 public class OsmoconSocketThread extends Thread {
     private static final String TAG = Utils.TAG_PREFIX + "OsmoSocketThread";
+    private static final int MAX_CLIENTS = 8;
+    private static final int INITIAL_READ_BUF_SIZE = 256;
 
-    private OsmoconService osmoconService;
+    private DownlinkSender downlinkSender;
     private LocalServerSocket listenSocket;
-    private LocalSocket clientSocket;
+    private int uplinkQueueCapacity;
+    private volatile UplinkOverflowPolicy uplinkOverflowPolicy;
+    private final UplinkFramePool framePool = new UplinkFramePool();
+    // Copy on write, so the serial thread can fan out without taking a lock
+    private volatile OsmoconUplinkWriter[] uplinkWriters = new OsmoconUplinkWriter[0];
+    // Every connected client's socket and reader thread, so shutdown() can unblock the readers
+    private final List<Closeable> clientSockets = new ArrayList<>();
+    private final List<Thread> clientReaders = new ArrayList<>();
+    private boolean shutDown;
+    private volatile long droppedFrameCount;
 
-    public OsmoconSocketThread(OsmoconService osmoconService, String socketName) throws IOException {
-        this.osmoconService = osmoconService;
+    OsmoconSocketThread(DownlinkSender downlinkSender, String socketName,
+                        int uplinkQueueCapacity, UplinkOverflowPolicy uplinkOverflowPolicy)
+            throws IOException {
+        this(downlinkSender, uplinkQueueCapacity, uplinkOverflowPolicy);
         listenSocket = new LocalServerSocket(socketName);
     }
 
-    void write(byte[] payload) throws IOException {
-        byte[] pktBytes = new byte[payload.length + 2];
-        pktBytes[0] = (byte)((payload.length >> 8) & 0xff);
-        pktBytes[1] = (byte)(payload.length & 0xff);
-        System.arraycopy(payload, 0, pktBytes, 2, payload.length);
+    // Without a listening socket; clients are handed in through addClient(). Lets the fan-out be
+    // driven over ordinary sockets on the JVM.
+    OsmoconSocketThread(DownlinkSender downlinkSender, int uplinkQueueCapacity,
+                        UplinkOverflowPolicy uplinkOverflowPolicy) {
+        this.downlinkSender = downlinkSender;
+        this.uplinkQueueCapacity = uplinkQueueCapacity;
+        this.uplinkOverflowPolicy = uplinkOverflowPolicy;
+    }
 
-        synchronized (this) {
-            // Drop incoming packets if we don't have a layer2 client connected
-            if (clientSocket == null) {
-                return;
+    // Called from the serial thread only. The payload is copied once into a pooled frame that
+    // all of the clients' writer threads share.
+    void write(byte[] buf, int offset, int length) {
+        OsmoconUplinkWriter[] writers = uplinkWriters;
+        // Drop incoming packets if we don't have a layer2 client connected
+        if (writers.length == 0) {
+            return;
+        }
+        UplinkOverflowPolicy policy = uplinkOverflowPolicy;
+        UplinkFramePool.Frame frame = framePool.acquire(buf, offset, length);
+        for (OsmoconUplinkWriter writer : writers) {
+            // A writer whose socket failed is on its way out of the array; it isn't falling
+            // behind, so its frames don't count as dropped
+            if (writer.isClosed()) {
+                continue;
             }
+            if (!writer.offer(frame, policy)) {
+                droppedFrameCount++;
+            }
+        }
+        framePool.release(frame);
+    }
 
-            OutputStream outputStream = clientSocket.getOutputStream();
-            outputStream.write(pktBytes);
+    void setUplinkOverflowPolicy(UplinkOverflowPolicy uplinkOverflowPolicy) {
+        this.uplinkOverflowPolicy = uplinkOverflowPolicy;
+    }
+
+    // Depth of the fullest client queue
+    int getUplinkQueueDepth() {
+        int depth = 0;
+        for (OsmoconUplinkWriter writer : uplinkWriters) {
+            depth = Math.max(depth, writer.getQueueDepth());
         }
+        return depth;
+    }
+
+    int getClientCount() {
+        return uplinkWriters.length;
+    }
+
+    long getDroppedFrameCount() {
+        return droppedFrameCount;
     }
 
     public void run() {
         try {
             for (;;) {
-                LocalSocket acceptedSocket = listenSocket.accept();
-                synchronized (this) {
-                    clientSocket = acceptedSocket;
-                }
-                handleClient(clientSocket);
-                synchronized (this) {
-                    clientSocket = null;
-                }
+                final LocalSocket clientSocket = listenSocket.accept();
+                // A reader blocked on a LocalSocket isn't reliably woken by close() alone
+                Closeable closer = new Closeable() {
+                    @Override
+                    public void close() throws IOException {
+                        try {
+                            clientSocket.shutdownInput();
+                        } finally {
+                            clientSocket.close();
+                        }
+                    }
+                };
+                addClient(clientSocket.getInputStream(), clientSocket.getOutputStream(), closer);
             }
         } catch (IOException ex) {
             Log.d(TAG, ex.toString());
@@ -73,11 +134,109 @@ public class OsmoconSocketThread extends Thread {
         }
     }
 
-    public void shutdown() {
+    // Starts serving a connected client; returns false if it was turned away
+    boolean addClient(InputStream inputStream, OutputStream outputStream, Closeable socket) {
+        synchronized (this) {
+            if (shutDown) {
+                closeClient(socket);
+                return false;
+            }
+            if (uplinkWriters.length >= MAX_CLIENTS) {
+                Log.w(TAG, "Too many layer 2 clients; rejecting connection");
+                closeClient(socket);
+                return false;
+            }
+            clientSockets.add(socket);
+        }
+        OsmoconUplinkWriter writer =
+                new OsmoconUplinkWriter(this, outputStream, socket, uplinkQueueCapacity, framePool);
+        writer.start();
+        addWriter(writer);
+        ClientReaderThread reader = new ClientReaderThread(inputStream, socket, writer);
+        synchronized (this) {
+            clientReaders.add(reader);
+        }
+        reader.start();
+        return true;
+    }
+
+    private class ClientReaderThread extends Thread {
+        private final InputStream inputStream;
+        private final Closeable clientSocket;
+        private final OsmoconUplinkWriter writer;
+
+        ClientReaderThread(InputStream inputStream, Closeable clientSocket,
+                           OsmoconUplinkWriter writer) {
+            this.inputStream = inputStream;
+            this.clientSocket = clientSocket;
+            this.writer = writer;
+        }
+
+        public void run() {
+            handleClient(inputStream);
+            removeWriter(writer);
+            writer.shutdown();
+            synchronized (OsmoconSocketThread.this) {
+                clientSockets.remove(clientSocket);
+                clientReaders.remove(this);
+            }
+            closeClient(clientSocket);
+        }
+    }
+
+    private synchronized void addWriter(OsmoconUplinkWriter writer) {
+        OsmoconUplinkWriter[] writers = Arrays.copyOf(uplinkWriters, uplinkWriters.length + 1);
+        writers[writers.length - 1] = writer;
+        uplinkWriters = writers;
+    }
+
+    // Called by the client's reader thread when it goes away, and by the writer as soon as a
+    // write to the client fails, so either may find it already gone
+    synchronized void removeWriter(OsmoconUplinkWriter writer) {
+        int index = Arrays.asList(uplinkWriters).indexOf(writer);
+        if (index < 0) {
+            return;
+        }
+        OsmoconUplinkWriter[] writers = new OsmoconUplinkWriter[uplinkWriters.length - 1];
+        System.arraycopy(uplinkWriters, 0, writers, 0, index);
+        System.arraycopy(uplinkWriters, index + 1, writers, index, writers.length - index);
+        uplinkWriters = writers;
+    }
+
+    static void closeClient(Closeable clientSocket) {
         try {
-            listenSocket.close();
+            clientSocket.close();
         } catch (IOException ex) {
-            Log.w(TAG, ex.toString());
+            Log.d(TAG, ex.toString());
+        }
+    }
+
+    // Closing the listening socket ends the accept loop, and closing the client sockets ends
+    // their reader threads, which clean up after their writers. A reader waiting for room in the
+    // downlink queue is interrupted instead.
+    public void shutdown() {
+        if (listenSocket != null) {
+            try {
+                listenSocket.close();
+            } catch (IOException ex) {
+                Log.w(TAG, ex.toString());
+            }
+        }
+        List<Closeable> sockets;
+        List<Thread> readers;
+        synchronized (this) {
+            shutDown = true;
+            sockets = new ArrayList<>(clientSockets);
+            readers = new ArrayList<>(clientReaders);
+        }
+        for (OsmoconUplinkWriter writer : uplinkWriters) {
+            writer.shutdown();
+        }
+        for (Closeable socket : sockets) {
+            closeClient(socket);
+        }
+        for (Thread reader : readers) {
+            reader.interrupt();
         }
     }
 
@@ -91,28 +250,33 @@ public class OsmoconSocketThread extends Thread {
             }
             readCount += ret;
         }
-        return (inBytes[0] << 8) | inBytes[1];
+        return ((inBytes[0] & 0xff) << 8) | (inBytes[1] & 0xff);
     }
 
-    private void handleClient(LocalSocket clientSocket) {
+    // The payload is read into one buffer that's reused for every frame; sendToPhone() copies
+    // it, and waits there while the phone is behind, which leaves the rest in the socket
+    private void handleClient(InputStream inputStream) {
+        byte[] payload = new byte[INITIAL_READ_BUF_SIZE];
         try {
-            InputStream inputStream = clientSocket.getInputStream();
             for (;;) {
                 int len = getLengthFromInputStream(inputStream);
-                byte[] payload = new byte[len];
+                if (len > payload.length) {
+                    payload = new byte[len];
+                }
                 int readCount = 0;
                 while (readCount < len) {
                     int ret = inputStream.read(payload, readCount, len - readCount);
                     if (ret < 0) {
-                        clientSocket.close();
                         return;
                     }
                     readCount += ret;
                 }
-                osmoconService.sendToPhone(OsmoconService.SC_DLCI_L1A_L23, payload);
+                downlinkSender.sendToPhone(OsmoconService.SC_DLCI_L1A_L23, payload, 0, len);
             }
         } catch (IOException ex) {
             Log.d(TAG, ex.toString());
+        } catch (InterruptedException ex) {
+            Log.d(TAG, "Client reader interrupted");
         }
     }
 }
@@ -0,0 +1,139 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.osmocom;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.locks.LockSupport;
+
+import edu.uw.cs.seaglass.app.Utils;
+
+// Sends L1A_L23 frames to one layer 2 client from its own thread, so the serial thread only ever
+// puts a reference to a shared frame on this client's queue and moves on.
+class OsmoconUplinkWriter extends Thread {
+    private static final String TAG = Utils.TAG_PREFIX + "OsmoUplinkWriter";
+    private static final int OUTPUT_BUF_SIZE = 8192;
+    private static final long BLOCK_PARK_NANOS = 10000000;
+
+    private final OsmoconSocketThread socketThread;
+    private final OutputStream clientOutputStream;
+    private final Closeable clientSocket;
+    private final UplinkFramePool framePool;
+    private final SPSCQueue<UplinkFramePool.Frame> sendQueue;
+    private volatile boolean waiting;
+    private volatile Thread blockedProducer;
+    private volatile boolean closed;
+    private volatile long droppedFrameCount;
+
+    OsmoconUplinkWriter(OsmoconSocketThread socketThread, OutputStream clientOutputStream,
+                        Closeable clientSocket, int capacity, UplinkFramePool framePool) {
+        this.socketThread = socketThread;
+        this.clientOutputStream = clientOutputStream;
+        this.clientSocket = clientSocket;
+        this.framePool = framePool;
+        sendQueue = new SPSCQueue<>(capacity);
+    }
+
+    // Called from the serial thread only. Takes a reference to the frame if it's queued; returns
+    // false if it was dropped.
+    boolean offer(UplinkFramePool.Frame frame, UplinkOverflowPolicy policy) {
+        frame.refCount.incrementAndGet();
+        while (!sendQueue.offer(frame)) {
+            if (policy == UplinkOverflowPolicy.DROP || closed) {
+                frame.refCount.decrementAndGet();
+                droppedFrameCount++;
+                return false;
+            }
+            // The writer wakes us as soon as it takes a frame off the queue; the timeout only
+            // covers the writer dying in between
+            blockedProducer = Thread.currentThread();
+            if (sendQueue.size() == sendQueue.capacity()) {
+                LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+            }
+            blockedProducer = null;
+        }
+        if (waiting) {
+            LockSupport.unpark(this);
+        }
+        return true;
+    }
+
+    int getQueueDepth() {
+        return sendQueue.size();
+    }
+
+    long getDroppedFrameCount() {
+        return droppedFrameCount;
+    }
+
+    boolean isClosed() {
+        return closed;
+    }
+
+    public void run() {
+        try {
+            // Frames that arrive back to back are coalesced and go out when the queue runs dry
+            OutputStream outputStream =
+                    new BufferedOutputStream(clientOutputStream, OUTPUT_BUF_SIZE);
+            while (!closed) {
+                UplinkFramePool.Frame frame = sendQueue.poll();
+                if (frame == null) {
+                    outputStream.flush();
+                    waiting = true;
+                    if (sendQueue.size() == 0 && !closed) {
+                        LockSupport.park(this);
+                    }
+                    waiting = false;
+                    continue;
+                }
+                Thread producer = blockedProducer;
+                if (producer != null) {
+                    LockSupport.unpark(producer);
+                }
+                try {
+                    outputStream.write(frame.buf, 0, frame.length);
+                } finally {
+                    framePool.release(frame);
+                }
+            }
+        } catch (IOException ex) {
+            Log.d(TAG, ex.toString());
+            // The client is gone or broken. Take it out of the fan-out right away rather than
+            // when its reader notices, and close the socket so the reader does notice.
+            closed = true;
+            socketThread.removeWriter(this);
+            OsmoconSocketThread.closeClient(clientSocket);
+        } finally {
+            closed = true;
+            // Anything still queued goes back to the pool. A frame the serial thread queues
+            // after this is simply garbage collected along with the queue.
+            UplinkFramePool.Frame frame;
+            while ((frame = sendQueue.poll()) != null) {
+                framePool.release(frame);
+            }
+        }
+    }
+
+    void shutdown() {
+        closed = true;
+        LockSupport.unpark(this);
+    }
+}
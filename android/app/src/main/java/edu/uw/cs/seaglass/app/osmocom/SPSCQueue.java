@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.osmocom;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bounded lock-free queue for exactly one producer thread and one consumer thread. Both ends
+// publish with volatile writes, so a thread that sets a volatile "waiting" flag before its last
+// look at the queue can rely on the other side seeing that flag afterwards and waking it up.
+class SPSCQueue<E> {
+    private final Object[] elements;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(); // next slot to poll
+    private final AtomicLong tail = new AtomicLong(); // next slot to offer
+
+    SPSCQueue(int capacity) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        elements = new Object[size];
+        mask = size - 1;
+    }
+
+    // Producer only
+    boolean offer(E e) {
+        long t = tail.get();
+        if (t - head.get() == elements.length) {
+            return false;
+        }
+        elements[(int)t & mask] = e;
+        tail.set(t + 1);
+        return true;
+    }
+
+    // Consumer only
+    @SuppressWarnings("unchecked")
+    E poll() {
+        long h = head.get();
+        if (h == tail.get()) {
+            return null;
+        }
+        int i = (int)h & mask;
+        E e = (E)elements[i];
+        elements[i] = null;
+        head.set(h + 1);
+        return e;
+    }
+
+    int size() {
+        return (int)(tail.get() - head.get());
+    }
+
+    int capacity() {
+        return elements.length;
+    }
+}
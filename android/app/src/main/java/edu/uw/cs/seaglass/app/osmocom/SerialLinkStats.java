@@ -0,0 +1,130 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.osmocom;
+
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+// Counters for the serial link to the phone. Only the serial thread updates them; anyone may read
+// them at any time, so a reader can see one counter a step ahead of another but never a torn
+// value.
+public class SerialLinkStats {
+    private volatile long bytesReceived;
+    private final AtomicLongArray framesPerDLCI = new AtomicLongArray(256);
+    private volatile long unescapeErrors;
+    private volatile long bufferOverflows;
+    private volatile long stateTimeoutResets;
+    private volatile long bytesDiscarded;
+    private final Log2Histogram readSizes = new Log2Histogram();
+    private final Log2Histogram readIntervals = new Log2Histogram();
+    private final Log2Histogram readHandlingTimes = new Log2Histogram();
+
+    void readCompleted(int size, long intervalMicros, long handlingMicros) {
+        bytesReceived += size;
+        readSizes.record(size);
+        if (intervalMicros >= 0) {
+            readIntervals.record(intervalMicros);
+        }
+        readHandlingTimes.record(handlingMicros);
+    }
+
+    void frameReceived(byte dlci) {
+        framesPerDLCI.incrementAndGet(dlci & 0xff);
+    }
+
+    void unescapeError() {
+        unescapeErrors++;
+    }
+
+    void bufferOverflow() {
+        bufferOverflows++;
+    }
+
+    void stateTimeoutReset() {
+        stateTimeoutResets++;
+    }
+
+    void bytesDiscarded(int count) {
+        bytesDiscarded += count;
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived;
+    }
+
+    public long getFramesReceived(int dlci) {
+        return framesPerDLCI.get(dlci & 0xff);
+    }
+
+    public long getFramesReceived() {
+        long frames = 0;
+        for (int i = 0; i < framesPerDLCI.length(); i++) {
+            frames += framesPerDLCI.get(i);
+        }
+        return frames;
+    }
+
+    // Escape bytes followed by a flag or another escape
+    public long getUnescapeErrors() {
+        return unescapeErrors;
+    }
+
+    public long getBufferOverflows() {
+        return bufferOverflows;
+    }
+
+    // Partial packets thrown away because the phone went quiet in the middle of them
+    public long getStateTimeoutResets() {
+        return stateTimeoutResets;
+    }
+
+    // Bytes seen between packets that didn't start a bootloader, romloader or HDLC packet
+    public long getBytesDiscarded() {
+        return bytesDiscarded;
+    }
+
+    // Bytes handed over per USB read
+    public Log2Histogram getReadSizes() {
+        return readSizes;
+    }
+
+    // Microseconds between consecutive USB reads completing
+    public Log2Histogram getReadIntervals() {
+        return readIntervals;
+    }
+
+    // Microseconds spent processing each USB read
+    public Log2Histogram getReadHandlingTimes() {
+        return readHandlingTimes;
+    }
+
+    // A saturated link shows up as large reads arriving back to back; a flaky one as unescape
+    // errors, timeouts and discarded bytes
+    public String summarize() {
+        return String.format(Locale.US,
+                "Serial: %d B, %d frames (L1 %d, console %d)\n" +
+                "Errors: %d unescape, %d overflow, %d timeout, %d B discarded\n" +
+                "Reads: p50 %d B, p99 %d B; interval p50 %d us; handling p99 %d us",
+                getBytesReceived(), getFramesReceived(),
+                getFramesReceived(OsmoconService.SC_DLCI_L1A_L23),
+                getFramesReceived(OsmoconService.SC_DLCI_CONSOLE),
+                getUnescapeErrors(), getBufferOverflows(), getStateTimeoutResets(),
+                getBytesDiscarded(),
+                readSizes.getQuantile(0.5), readSizes.getQuantile(0.99),
+                readIntervals.getQuantile(0.5), readHandlingTimes.getQuantile(0.99));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.osmocom;
+
+// Byte ring used to reassemble bootloader and romloader packets. It starts small and doubles on
+// demand up to a fixed cap; when a write would go past the cap it's refused rather than thrown,
+// so the caller can drop the packet and resynchronise.
+class SerialRingBuffer {
+    private byte[] buf;
+    private final int maxCapacity;
+    private int readPtr;
+    private int size;
+
+    SerialRingBuffer(int initialCapacity, int maxCapacity) {
+        this.buf = new byte[initialCapacity];
+        this.maxCapacity = maxCapacity;
+    }
+
+    int size() {
+        return size;
+    }
+
+    // Byte at the given offset from the oldest byte in the ring
+    byte get(int index) {
+        int i = readPtr + index;
+        if (i >= buf.length) {
+            i -= buf.length;
+        }
+        return buf[i];
+    }
+
+    // Copies src[offset, offset + length) in; returns false (and writes nothing) if that would
+    // take the ring past its cap
+    boolean append(byte[] src, int offset, int length) {
+        if (size + length > buf.length && !grow(size + length)) {
+            return false;
+        }
+        int writePtr = readPtr + size;
+        if (writePtr >= buf.length) {
+            writePtr -= buf.length;
+        }
+        int firstChunk = Math.min(length, buf.length - writePtr);
+        System.arraycopy(src, offset, buf, writePtr, firstChunk);
+        System.arraycopy(src, offset + firstChunk, buf, 0, length - firstChunk);
+        size += length;
+        return true;
+    }
+
+    // Copies the whole contents out and empties the ring
+    byte[] take() {
+        byte[] pkt = new byte[size];
+        int firstChunk = Math.min(size, buf.length - readPtr);
+        System.arraycopy(buf, readPtr, pkt, 0, firstChunk);
+        System.arraycopy(buf, 0, pkt, firstChunk, size - firstChunk);
+        clear();
+        return pkt;
+    }
+
+    void clear() {
+        readPtr = 0;
+        size = 0;
+    }
+
+    private boolean grow(int minCapacity) {
+        if (minCapacity > maxCapacity) {
+            return false;
+        }
+        int newCapacity = buf.length;
+        while (newCapacity < minCapacity) {
+            newCapacity = Math.min(newCapacity * 2, maxCapacity);
+        }
+        byte[] newBuf = new byte[newCapacity];
+        int firstChunk = Math.min(size, buf.length - readPtr);
+        System.arraycopy(buf, readPtr, newBuf, 0, firstChunk);
+        System.arraycopy(buf, 0, newBuf, firstChunk, size - firstChunk);
+        buf = newBuf;
+        readPtr = 0;
+        return true;
+    }
+}
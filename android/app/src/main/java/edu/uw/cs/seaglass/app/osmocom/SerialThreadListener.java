@@ -0,0 +1,36 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.osmocom;
+
+import java.io.IOException;
+
+// What the serial thread reports, all on the serial thread. In the app this is the
+// OsmoconService; the unit tests record it instead.
+interface SerialThreadListener {
+    void serialThreadStatusUpdated(PhoneState phoneState,
+                                   int payloadBytesSent, int payloadTotalSize);
+
+    // Time from the first bootloader prompt until the romloader branched into the layer1 app
+    void firmwareUploadCompleted(long uploadTime);
+
+    // Called after every read
+    void serialLinkStatsUpdated(long now);
+
+    // buf is owned by the serial thread and reused for the next frame, so the payload must be
+    // consumed (or copied) before returning
+    void recvFromPhone(byte dlci, byte[] buf, int offset, int length) throws IOException;
+}
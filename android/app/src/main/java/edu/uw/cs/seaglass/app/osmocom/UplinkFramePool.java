@@ -0,0 +1,81 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.osmocom;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+// Pool of length-prefixed L1A_L23 frames shared by every layer 2 client. The serial thread fills
+// a frame once and hands the same frame to each client's writer; a reference count returns it
+// to the pool after the last writer is done with it.
+//
+// Frames are kept on a Treiber stack. Any thread may push, but only the serial thread pops,
+// which is what keeps the stack free of ABA problems without tagged pointers. The pool has no cap
+// of its own: the frames outstanding are bounded by the clients' queue capacities.
+class UplinkFramePool {
+    private static final int INITIAL_FRAME_SIZE = 512;
+
+    static class Frame {
+        byte[] buf = new byte[INITIAL_FRAME_SIZE];
+        int length;
+        final AtomicInteger refCount = new AtomicInteger();
+        Frame next;
+    }
+
+    private final AtomicReference<Frame> top = new AtomicReference<>();
+
+    // Serial thread only. Copies the payload in behind a two-byte length prefix, so each frame is
+    // a single write. The caller holds the one reference the frame starts with.
+    Frame acquire(byte[] buf, int offset, int length) {
+        Frame frame;
+        for (;;) {
+            frame = top.get();
+            if (frame == null) {
+                frame = new Frame();
+                break;
+            }
+            if (top.compareAndSet(frame, frame.next)) {
+                frame.next = null;
+                break;
+            }
+        }
+
+        if (frame.buf.length < length + 2) {
+            frame.buf = new byte[length + 2];
+        }
+        frame.buf[0] = (byte)((length >> 8) & 0xff);
+        frame.buf[1] = (byte)(length & 0xff);
+        System.arraycopy(buf, offset, frame.buf, 2, length);
+        frame.length = length + 2;
+        frame.refCount.set(1);
+        return frame;
+    }
+
+    // Any thread; gives up one reference
+    void release(Frame frame) {
+        if (frame.refCount.decrementAndGet() != 0) {
+            return;
+        }
+        for (;;) {
+            Frame oldTop = top.get();
+            frame.next = oldTop;
+            if (top.compareAndSet(oldTop, frame)) {
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,25 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.osmocom;
+
+// What the serial thread does with a frame for layer 2 when the client's send queue is full
+public enum UplinkOverflowPolicy {
+    // Drop the frame and count it; USB reads never wait on the socket
+    DROP,
+    // Wait for the client to catch up; nothing is lost, but the phone link stalls meanwhile
+    BLOCK
+}
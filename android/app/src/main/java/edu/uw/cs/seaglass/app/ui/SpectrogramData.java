@@ -17,7 +17,7 @@
 package edu.uw.cs.seaglass.app.ui;
 
 import edu.uw.cs.seaglass.app.db.Band;
-import edu.uw.cs.seaglass.app.db.SpectrumMeasurement;
+import edu.uw.cs.seaglass.app.db.SpectrumSweep;
 
 public class SpectrogramData {
     private Band band;
@@ -76,38 +76,55 @@ public class SpectrogramData {
         return this.band;
     }
 
-    public void setPowerMeas(SpectrumMeasurement sm){
+    public void setSweep(SpectrumSweep sweep){
+        for (int i = 0; i < sweep.dBm.length; i++){
+            setPowerMeas(sweep.band, sweep.startArfcn + i, sweep.dBm[i]);
+        }
+    }
+
+    private void setPowerMeas(Band curBand, int arfcn, int dBm){
         int arfcnIndex;
-        Band curBand = sm.measurementHeader.band;
         boolean lastArfcn = false;
 
         if (curBand == Band.GSM850){
-            arfcnIndex = sm.measurementHeader.arfcn - 128;
-            this.powerMeas[arfcnIndex] = sm.measurementHeader.dBm;
+            arfcnIndex = arfcn - 128;
+            if (arfcnIndex < 0 || arfcnIndex >= numArfcns){
+                return;
+            }
+            this.powerMeas[arfcnIndex] = dBm;
 
             if (arfcnIndex == NUM_BAND_850 - 1){
                 lastArfcn = true;
             }
         }
         else if (curBand == Band.GSM900){
-            arfcnIndex = sm.measurementHeader.arfcn - 1;
-            this.powerMeas[arfcnIndex] = sm.measurementHeader.dBm;
+            arfcnIndex = arfcn - 1;
+            if (arfcnIndex < 0 || arfcnIndex >= numArfcns){
+                return;
+            }
+            this.powerMeas[arfcnIndex] = dBm;
 
             if (arfcnIndex == NUM_BAND_900 - 1){
                 lastArfcn = true;
             }
         }
         else if (curBand == Band.DCS1800){
-            arfcnIndex = sm.measurementHeader.arfcn - 512;
-            this.powerMeas[arfcnIndex] = sm.measurementHeader.dBm;
+            arfcnIndex = arfcn - 512;
+            if (arfcnIndex < 0 || arfcnIndex >= numArfcns){
+                return;
+            }
+            this.powerMeas[arfcnIndex] = dBm;
 
             if (arfcnIndex == NUM_BAND_1800 - 1){
                 lastArfcn = true;
             }
         }
         else {
-            arfcnIndex = sm.measurementHeader.arfcn - 512;
-            this.powerMeas[arfcnIndex] = sm.measurementHeader.dBm;
+            arfcnIndex = arfcn - 512;
+            if (arfcnIndex < 0 || arfcnIndex >= numArfcns){
+                return;
+            }
+            this.powerMeas[arfcnIndex] = dBm;
 
             if (arfcnIndex == NUM_BAND_1900 - 1){
                 lastArfcn = true;
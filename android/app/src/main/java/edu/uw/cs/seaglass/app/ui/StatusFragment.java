@@ -29,8 +29,7 @@ import android.graphics.Color;
 import androidx.fragment.app.Fragment;
 import androidx.localbroadcastmanager.content.LocalBroadcastManager;
 import edu.uw.cs.seaglass.app.Utils;
-import edu.uw.cs.seaglass.app.db.MeasurementHeader;
-import edu.uw.cs.seaglass.app.db.SpectrumMeasurement;
+import edu.uw.cs.seaglass.app.db.SpectrumSweep;
 import edu.uw.cs.seaglass.app.logging.LoggingService;
 import edu.uw.cs.seaglass.app.db.Band;
 import edu.uw.cs.seaglass.app.osmocom.OsmoconService;
@@ -59,6 +58,9 @@ import android.widget.TextView;
  */
 public class StatusFragment extends Fragment {
     private static final int MAX_CONSOLE_TEXT_LEN = 100000;
+    private static final String CONSOLE_SYNC_PREFIX =
+            "Starting FCCH RecognitionL1CTL_RESET_REQ: FULL!L1CTL_FBSB_REQ (arfcn=";
+    private static final String CONSOLE_PM_PREFIX = "PM MEAS:";
 
     private BarChart spectrogramChart;
     private Context mContext;
@@ -76,6 +78,7 @@ public class StatusFragment extends Fragment {
     private Spinner spectrogramSpinner;
     private TextView statusTextView;
     private TextView consoleTextView;
+    private TextView linkStatsTextView;
 
     public StatusFragment() {
         // Required empty public constructor
@@ -100,6 +103,7 @@ public class StatusFragment extends Fragment {
         this.spectrogramSpinner = (Spinner)view.findViewById(R.id.spectrogram_band_spinner);
         this.statusTextView = (TextView)view.findViewById(R.id.scan_status);
         this.consoleTextView = (TextView) view.findViewById(R.id.console_view);
+        this.linkStatsTextView = (TextView) view.findViewById(R.id.link_stats);
 
         this.spectrogramSpinner.setOnItemSelectedListener(onBandSelectListener);
         this.consoleTextView.setMovementMethod(new ScrollingMovementMethod());
@@ -158,11 +162,13 @@ public class StatusFragment extends Fragment {
 
         // Setup the Intent receivers
         localBroadcastManager.registerReceiver(scanUpdateIntentReceiver,
-                new IntentFilter(LoggingService.CELL_LOG_POWER_MEASUREMENT));
+                new IntentFilter(LoggingService.CELL_LOG_SPECTRUM_SWEEP));
         localBroadcastManager.registerReceiver(phoneConsoleIntentReceiver,
                 new IntentFilter(OsmoconService.OSMOCON_CONSOLE_DATA_RECEIVED));
         localBroadcastManager.registerReceiver(cellObservationIntentReceiver,
                 new IntentFilter(LoggingService.CELL_LOG_CELL_OBSERVATION));
+        localBroadcastManager.registerReceiver(linkStatsIntentReceiver,
+                new IntentFilter(OsmoconService.OSMOCON_LINK_STATS_UPDATE));
     }
 
     @Override
@@ -172,6 +178,7 @@ public class StatusFragment extends Fragment {
         localBroadcastManager.unregisterReceiver(scanUpdateIntentReceiver);
         localBroadcastManager.unregisterReceiver(phoneConsoleIntentReceiver);
         localBroadcastManager.unregisterReceiver(cellObservationIntentReceiver);
+        localBroadcastManager.unregisterReceiver(linkStatsIntentReceiver);
 
         mContext = null;
     }
@@ -179,16 +186,15 @@ public class StatusFragment extends Fragment {
     private BroadcastReceiver scanUpdateIntentReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
-            SpectrumMeasurement sm = new SpectrumMeasurement();
-            sm.measurementHeader = new MeasurementHeader();
+            SpectrumSweep sweep = new SpectrumSweep();
             Bundle extras = intent.getExtras();
 
-            sm.measurementHeader.arfcn = extras.getShort(LoggingService.CELL_LOG_ARFCN);
-            sm.measurementHeader.band = (Band) extras.get(LoggingService.CELL_LOG_BAND);
-            sm.measurementHeader.dBm = extras.getByte(LoggingService.CELL_LOG_DBM);
-            sm.measurementHeader.timestamp = extras.getLong(LoggingService.CELL_LOG_TIMESTAMP);
+            sweep.startArfcn = extras.getShort(LoggingService.CELL_LOG_ARFCN);
+            sweep.band = (Band) extras.get(LoggingService.CELL_LOG_BAND);
+            sweep.dBm = extras.getByteArray(LoggingService.CELL_LOG_DBM);
+            sweep.timestamp = extras.getLong(LoggingService.CELL_LOG_TIMESTAMP);
 
-            addSpecMeasurement(sm);
+            addSpectrumSweep(sweep);
             if (activeSpectrogram.dataNotSeen()){
                 updateSpectrumDisplay();
                 activeSpectrogram.setDataSeen();
@@ -199,20 +205,18 @@ public class StatusFragment extends Fragment {
     private BroadcastReceiver phoneConsoleIntentReceiver = new BroadcastReceiver() {
         @Override
         public void onReceive(Context context, Intent intent) {
+            // Each broadcast carries a whole batch of console output
             Bundle extras = intent.getExtras();
             String consoleTxt = extras.getString(OsmoconService.OSMOCON_CONSOLE_DATA_EXTRA);
 
             // If there isn't too much text then just append otherwise truncate
-            // text in the view
-            String tmpText = consoleTextView.getText().toString();
+            // text in the view. Only the length is needed to decide, so don't copy the text.
+            CharSequence text = consoleTextView.getText();
 
-            if (tmpText.length() > MAX_CONSOLE_TEXT_LEN){
-                tmpText = tmpText.substring(tmpText.length() - 500);
-                consoleTextView.setText(tmpText + consoleTxt);
-            }
-            else{
-                consoleTextView.append(consoleTxt);
+            if (text.length() > MAX_CONSOLE_TEXT_LEN){
+                consoleTextView.setText(text.subSequence(text.length() - 500, text.length()));
             }
+            consoleTextView.append(consoleTxt);
 
             String displayText = parseConsoleText(consoleTxt);
             if (!displayText.equals("")){
@@ -228,20 +232,32 @@ public class StatusFragment extends Fragment {
         }
     };
 
-    private void addSpecMeasurement(SpectrumMeasurement sm){
-        Band band = sm.measurementHeader.band;
+    private BroadcastReceiver linkStatsIntentReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (linkStatsTextView == null) {
+                return;
+            }
+            linkStatsTextView.setText(intent.getStringExtra(
+                    OsmoconService.OSMOCON_LINK_STATS_SUMMARY_EXTRA));
+            linkStatsTextView.setVisibility(View.VISIBLE);
+        }
+    };
+
+    private void addSpectrumSweep(SpectrumSweep sweep){
+        Band band = sweep.band;
 
         if (band == Band.GSM850){
-            spec850.setPowerMeas(sm);
+            spec850.setSweep(sweep);
         }
         else if (band == Band.GSM900){
-            spec900.setPowerMeas(sm);
+            spec900.setSweep(sweep);
         }
         else if (band == Band.DCS1800){
-            spec1800.setPowerMeas(sm);
+            spec1800.setSweep(sweep);
         }
         else {
-            spec1900.setPowerMeas(sm);
+            spec1900.setSweep(sweep);
         }
     }
 
@@ -328,17 +344,25 @@ public class StatusFragment extends Fragment {
         public void onNothingSelected(AdapterView<?> parent) {}
     };
 
+    // The text is a batch of console output, so whichever message came last decides the status
     public String parseConsoleText(String rawText){
         String retTxt = "";
 
         // For now we are only parsing the syncing and power measurement strings
-        if (rawText.contains("Starting FCCH RecognitionL1CTL_RESET_REQ: FULL!L1CTL_FBSB_REQ (arfcn=")){
+        int syncIndex = rawText.lastIndexOf(CONSOLE_SYNC_PREFIX);
+        int pmIndex = rawText.lastIndexOf(CONSOLE_PM_PREFIX);
+        if (syncIndex >= 0 && syncIndex > pmIndex){
             try {
                 String bandStr;
                 short tmpArfcn;
                 short adjustedArfcn;
 
-                tmpArfcn = (short) Integer.parseInt(rawText.substring(69).split(",")[0]);
+                int arfcnStart = syncIndex + CONSOLE_SYNC_PREFIX.length();
+                int arfcnEnd = rawText.indexOf(',', arfcnStart);
+                if (arfcnEnd < 0) {
+                    arfcnEnd = rawText.length();
+                }
+                tmpArfcn = (short) Integer.parseInt(rawText.substring(arfcnStart, arfcnEnd));
                 adjustedArfcn = Utils.getAdjustedARFCN(tmpArfcn);
                 Band band = Utils.bandFromARFCN(adjustedArfcn, Utils.isPCS(tmpArfcn));
 
@@ -352,7 +376,7 @@ public class StatusFragment extends Fragment {
                 Log.w(TAG, "Number format error parsing raw console text");
             }
         }
-        else if (rawText.contains("PM MEAS:")){
+        else if (pmIndex >= 0){
             retTxt = "Gathering Power Measurements...";
         }
 
@@ -0,0 +1,239 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.db;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+// The database is stood in for by a writeBatch() that records what it was given, and fails or
+// stalls when told to
+public class DatabaseWriterTest {
+    private static final long TIMEOUT = 10000;
+
+    private static class StubbedWriter extends DatabaseWriter {
+        final List<Object> rows = new ArrayList<>();
+        final List<Integer> batchSizes = new ArrayList<>();
+        volatile int failuresLeft;
+        volatile CountDownLatch stall;
+        final CountDownLatch started = new CountDownLatch(1);
+        volatile int attempts;
+
+        StubbedWriter() {
+            super(null);
+        }
+
+        @Override
+        void writeBatch(Batch batch) {
+            attempts++;
+            started.countDown();
+            if (stall != null) {
+                try {
+                    stall.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            // What Room does with the GSMPacket ids before the transaction is rolled back
+            int id = 1;
+            for (GSMPacket pkt : batch.gsmPackets) {
+                pkt.id = id++;
+            }
+            if (failuresLeft > 0) {
+                failuresLeft--;
+                throw new IllegalStateException("disk I/O error");
+            }
+            synchronized (this) {
+                rows.addAll(batch.cellObservations);
+                rows.addAll(batch.gsmPackets);
+                rows.addAll(batch.spectrumMeasurements);
+                rows.addAll(batch.spectrumSweeps);
+                rows.addAll(batch.locationMeasurements);
+                batchSizes.add(batch.size);
+            }
+        }
+
+        synchronized int rowCount() {
+            return rows.size();
+        }
+    }
+
+    private final StubbedWriter writer = new StubbedWriter();
+
+    @After
+    public void tearDown() throws InterruptedException {
+        CountDownLatch stall = writer.stall;
+        if (stall != null) {
+            stall.countDown();
+        }
+        writer.shutdown();
+        writer.join(TIMEOUT);
+        assertFalse(writer.isAlive());
+    }
+
+    private static GSMPacket gsmPacket() {
+        GSMPacket pkt = new GSMPacket();
+        pkt.measurementHeader = new MeasurementHeader();
+        return pkt;
+    }
+
+    @Test
+    public void commitsEveryRowInBatches() throws Exception {
+        writer.start();
+        int rows = DatabaseWriter.BATCH_ROWS * 4;
+        for (int i = 0; i < rows; i += 4) {
+            writer.enqueue(new CellObservation());
+            writer.enqueue(gsmPacket());
+            writer.enqueue(new SpectrumSweep());
+            writer.enqueue(new LocationMeasurement());
+        }
+        writer.flush();
+
+        assertEquals(rows, writer.rowCount());
+        synchronized (writer) {
+            // Far fewer transactions than rows
+            assertTrue(writer.batchSizes.size() <= rows / 16);
+        }
+        assertEquals(writer.batchSizes.size(), writer.getTransactions());
+        assertEquals(0, writer.getFailedRows());
+    }
+
+    @Test
+    public void commitsALoneRowAfterTheDelay() throws Exception {
+        writer.start();
+        writer.enqueue(new LocationMeasurement());
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (writer.rowCount() == 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(1, writer.rowCount());
+        assertEquals(1, writer.getTransactions());
+    }
+
+    @Test
+    public void retriesAFailedBatchOnce() throws Exception {
+        writer.failuresLeft = 1;
+        writer.start();
+        List<GSMPacket> pkts = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            pkts.add(gsmPacket());
+        }
+        writer.enqueueGSMPackets(pkts);
+        writer.flush();
+
+        assertEquals(2, writer.attempts);
+        assertEquals(10, writer.rowCount());
+        assertEquals(1, writer.getTransactions());
+        assertEquals(0, writer.getFailedRows());
+        assertEquals(10, pkts.get(9).id);
+    }
+
+    @Test
+    public void countsABatchThatFailsTwiceAndCarriesOn() throws Exception {
+        writer.failuresLeft = 2;
+        writer.start();
+        List<GSMPacket> pkts = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            pkts.add(gsmPacket());
+        }
+        writer.enqueueGSMPackets(pkts);
+        writer.flush();
+
+        assertEquals(0, writer.rowCount());
+        assertEquals(10, writer.getFailedRows());
+        assertEquals(0, writer.getTransactions());
+        // Their rows were rolled back, so no repeat count is written against those ids
+        for (GSMPacket pkt : pkts) {
+            assertEquals(0, pkt.id);
+        }
+
+        writer.enqueue(new SpectrumSweep());
+        writer.flush();
+        assertEquals(1, writer.rowCount());
+        assertEquals(10, writer.getFailedRows());
+    }
+
+    @Test
+    public void commitsQueuedRowsOnShutdown() throws Exception {
+        writer.stall = new CountDownLatch(1);
+        writer.start();
+        writer.enqueue(new CellObservation());
+        assertTrue(writer.started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        // Stuck committing the first row; these wait in the other batch
+        for (int i = 0; i < 100; i++) {
+            writer.enqueue(new SpectrumSweep());
+        }
+        writer.shutdown();
+        writer.stall.countDown();
+        writer.join(TIMEOUT);
+
+        assertFalse(writer.isAlive());
+        assertEquals(101, writer.rowCount());
+        assertEquals(0, writer.getFailedRows());
+    }
+
+    @Test
+    public void countsRowsEnqueuedAfterShutdown() throws Exception {
+        writer.start();
+        writer.enqueue(new CellObservation());
+        writer.shutdown();
+        writer.join(TIMEOUT);
+
+        writer.enqueue(new CellObservation());
+        List<GSMPacket> pkts = new ArrayList<>();
+        pkts.add(gsmPacket());
+        pkts.add(gsmPacket());
+        writer.enqueueGSMPackets(pkts);
+        writer.flush();
+
+        assertEquals(1, writer.rowCount());
+        assertEquals(3, writer.getFailedRows());
+    }
+
+    @Test
+    public void producersWaitWhileTheWriterIsBehind() throws Exception {
+        writer.stall = new CountDownLatch(1);
+        writer.start();
+        writer.enqueue(new CellObservation());
+        assertTrue(writer.started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        final int rows = 20000;
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread producer = new Thread() {
+            public void run() {
+                for (int i = 0; i < rows; i++) {
+                    writer.enqueue(new SpectrumMeasurement());
+                }
+                done.countDown();
+            }
+        };
+        producer.start();
+        // More than MAX_PENDING rows can't all be queued while the writer is stuck
+        assertFalse(done.await(200, TimeUnit.MILLISECONDS));
+        writer.stall.countDown();
+        assertTrue(done.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        writer.flush();
+
+        assertEquals(rows + 1, writer.rowCount());
+        assertEquals(0, writer.getFailedRows());
+    }
+}
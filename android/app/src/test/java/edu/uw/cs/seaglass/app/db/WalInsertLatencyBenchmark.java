@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.db;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+// How long DatabaseWriter's commits take while the sync worker is reading a batch, with a
+// rollback journal (what Room used before) and with WAL; compare the percentiles of the two
+// journalModes. Android's SQLite can't run on the host, so this goes through sqlite-jdbc to a file
+// with the GSMPacket table Room creates, using the same statements: 512-row insert transactions
+// on one connection, getSettledAfter() batches back to back on another.
+//
+// The driver's busy handler sleeps a whole second at a time where Android's sleeps a few ms, so
+// lock waits are retried here instead, every millisecond.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WalInsertLatencyBenchmark {
+    private static final int PRELOADED_ROWS = 400 * DatabaseWriter.BATCH_ROWS;
+    private static final int SYNC_BATCH_ROWS = 100000;
+    // Live ingestion commits a batch every so often rather than back to back
+    private static final long COMMIT_INTERVAL = 50; // ms
+    private static final long BUSY_RETRY_DELAY = 1; // ms
+    private static final int SQLITE_BUSY = 5;
+
+    private static final String CREATE_TABLE = "CREATE TABLE IF NOT EXISTS `GSMPacket` (" +
+            "`id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL, " +
+            "`type` INTEGER NOT NULL, `subtype` INTEGER NOT NULL, `timeslot` INTEGER NOT NULL, " +
+            "`frameNumber` INTEGER NOT NULL, `payload` BLOB, " +
+            "`repeatCount` INTEGER NOT NULL, `lastSeen` INTEGER NOT NULL, " +
+            "`timestamp` INTEGER NOT NULL, `band` INTEGER, `arfcn` INTEGER NOT NULL, " +
+            "`dBm` INTEGER NOT NULL)";
+    private static final String INSERT = "INSERT INTO `GSMPacket` (`id`, `type`, `subtype`, " +
+            "`timeslot`, `frameNumber`, `payload`, `repeatCount`, `lastSeen`, `timestamp`, " +
+            "`band`, `arfcn`, `dBm`) VALUES (nullif(?, 0),?,?,?,?,?,?,?,?,?,?,?)";
+    // GSMPacketDAO.getSettledAfter()
+    private static final String SETTLED_AFTER = "SELECT * FROM GSMPacket WHERE id > ? AND id < " +
+            "IFNULL((SELECT MIN(id) FROM GSMPacket WHERE id > ? " +
+            "AND timestamp > ?), 2147483647) ORDER BY id LIMIT ?";
+
+    // Room's journal mode on Android when it isn't using WAL, and WAL
+    @Param({"TRUNCATE", "WAL"})
+    public String journalMode;
+
+    private File dir;
+    private Connection writer;
+    private PreparedStatement insert;
+    private Connection reader;
+    private Thread syncThread;
+    private final AtomicReference<Throwable> readError = new AtomicReference<>();
+    private volatile long syncBatches;
+    private int commits;
+    private long now;
+
+    private static Connection open(File db, String journalMode) throws SQLException {
+        Connection connection = DriverManager.getConnection("jdbc:sqlite:" + db.getPath());
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("PRAGMA busy_timeout = 0");
+            statement.execute("PRAGMA journal_mode = " + journalMode);
+        }
+        return connection;
+    }
+
+    private static boolean isBusy(SQLException ex) {
+        return ex.getErrorCode() == SQLITE_BUSY;
+    }
+
+    private static void execute(Connection connection, String sql)
+            throws SQLException, InterruptedException {
+        try (Statement statement = connection.createStatement()) {
+            for (;;) {
+                try {
+                    statement.execute(sql);
+                    return;
+                } catch (SQLException ex) {
+                    if (!isBusy(ex)) {
+                        throw ex;
+                    }
+                }
+                Thread.sleep(BUSY_RETRY_DELAY);
+            }
+        }
+    }
+
+    private static void insertBatch(PreparedStatement insert, int first, long now)
+            throws SQLException {
+        byte[] payload = new byte[23];
+        for (int n = first; n < first + DatabaseWriter.BATCH_ROWS; n++) {
+            Arrays.fill(payload, (byte)n);
+            insert.setInt(1, 0);
+            insert.setInt(2, 1);
+            insert.setInt(3, 1 + n % 9);
+            insert.setInt(4, n % 8);
+            insert.setInt(5, n);
+            insert.setBytes(6, payload);
+            insert.setInt(7, 1);
+            insert.setLong(8, now);
+            insert.setLong(9, now);
+            insert.setInt(10, Converters.toInteger(Band.GSM850));
+            insert.setInt(11, 128 + n % 124);
+            insert.setInt(12, -60 - n % 40);
+            insert.addBatch();
+        }
+        insert.executeBatch();
+    }
+
+    // One sync batch, as SyncUploadWorker reads it; returns the id of its last row, or 0 if it
+    // was short and the next one should start over
+    private static int readSyncBatch(PreparedStatement select, int afterId, long settledBefore)
+            throws SQLException, InterruptedException {
+        select.setInt(1, afterId);
+        select.setInt(2, afterId);
+        select.setLong(3, settledBefore);
+        select.setInt(4, SYNC_BATCH_ROWS);
+        ResultSet rs;
+        for (;;) {
+            try {
+                rs = select.executeQuery();
+                break;
+            } catch (SQLException ex) {
+                if (!isBusy(ex)) {
+                    throw ex;
+                }
+            }
+            Thread.sleep(BUSY_RETRY_DELAY);
+        }
+        int rows = 0;
+        try {
+            while (rs.next()) {
+                afterId = rs.getInt(1);
+                rs.getBytes(6);
+                rows++;
+            }
+        } finally {
+            rs.close();
+        }
+        return rows < SYNC_BATCH_ROWS ? 0 : afterId;
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        dir = Files.createTempDirectory("seaglass-wal").toFile();
+        File db = new File(dir, journalMode + ".db");
+        final long settledBefore = System.currentTimeMillis() -
+                DatabaseService.GSM_PACKET_SETTLE_TIME;
+
+        writer = open(db, journalMode);
+        execute(writer, CREATE_TABLE);
+        insert = writer.prepareStatement(INSERT);
+        // Rows old enough to sync, so every read gets a full batch
+        execute(writer, "BEGIN");
+        for (int n = 0; n < PRELOADED_ROWS; n += DatabaseWriter.BATCH_ROWS) {
+            insertBatch(insert, n, settledBefore - 1);
+        }
+        execute(writer, "COMMIT");
+        now = System.currentTimeMillis();
+
+        // The sync worker's side: back to back batches until the trial is over
+        final CountDownLatch started = new CountDownLatch(1);
+        reader = open(db, journalMode);
+        syncThread = new Thread("sync") {
+            public void run() {
+                try (PreparedStatement select = reader.prepareStatement(SETTLED_AFTER)) {
+                    int afterId = 0;
+                    started.countDown();
+                    while (!isInterrupted()) {
+                        afterId = readSyncBatch(select, afterId, settledBefore);
+                        syncBatches++;
+                    }
+                } catch (InterruptedException ex) {
+                    // Done
+                } catch (Throwable ex) {
+                    readError.set(ex);
+                }
+            }
+        };
+        syncThread.start();
+        started.await();
+    }
+
+    @Setup(Level.Invocation)
+    public void pace() throws InterruptedException {
+        Thread.sleep(COMMIT_INTERVAL);
+    }
+
+    // DatabaseWriter's side: one transaction per batch
+    @Benchmark
+    public void commit() throws SQLException, InterruptedException {
+        execute(writer, "BEGIN IMMEDIATE");
+        insertBatch(insert, PRELOADED_ROWS + commits * DatabaseWriter.BATCH_ROWS, now);
+        execute(writer, "COMMIT");
+        commits++;
+    }
+
+    // The numbers only mean something if the reader kept going throughout and every commit
+    // landed
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        syncThread.interrupt();
+        syncThread.join();
+        reader.close();
+        try {
+            if (readError.get() != null) {
+                throw new IllegalStateException("Sync read failed", readError.get());
+            }
+            if (syncBatches < 2) {
+                throw new IllegalStateException("Only " + syncBatches + " sync batches read");
+            }
+            try (Statement statement = writer.createStatement();
+                 ResultSet rs = statement.executeQuery("SELECT COUNT(*) FROM GSMPacket")) {
+                rs.next();
+                int expected = PRELOADED_ROWS + commits * DatabaseWriter.BATCH_ROWS;
+                if (rs.getInt(1) != expected) {
+                    throw new IllegalStateException(rs.getInt(1) + " rows, expected " + expected);
+                }
+            }
+        } finally {
+            insert.close();
+            writer.close();
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File file : files) {
+                    file.delete();
+                }
+            }
+            dir.delete();
+        }
+    }
+}
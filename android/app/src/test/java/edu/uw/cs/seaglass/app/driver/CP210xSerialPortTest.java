@@ -0,0 +1,321 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.driver;
+
+import android.hardware.usb.UsbDeviceConnection;
+import android.hardware.usb.UsbEndpoint;
+import android.hardware.usb.UsbRequest;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+// Drives readPipelined() through a fake port whose requests complete whenever the test says so
+public class CP210xSerialPortTest {
+    private static final int BUFFER_SIZE = 64;
+    private static final int NUM_REQUESTS = 4;
+
+    private static class FakeRequest extends UsbRequest {
+        private Object clientData;
+        private ByteBuffer buffer;
+        private int queueCount;
+        boolean cancelled;
+        boolean closed;
+
+        @Override
+        public boolean initialize(UsbDeviceConnection connection, UsbEndpoint endpoint) {
+            return true;
+        }
+
+        @Override
+        public synchronized boolean queue(ByteBuffer buffer, int length) {
+            this.buffer = buffer;
+            queueCount++;
+            notifyAll();
+            return true;
+        }
+
+        @Override
+        public boolean cancel() {
+            cancelled = true;
+            return true;
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public Object getClientData() {
+            return clientData;
+        }
+
+        @Override
+        public void setClientData(Object clientData) {
+            this.clientData = clientData;
+        }
+
+        // Fills the buffer the way a finished bulk IN transfer would
+        synchronized void fill(byte value) {
+            buffer.put(value);
+        }
+
+        synchronized void awaitQueued(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + 5000;
+            while (queueCount < count) {
+                long left = deadline - System.currentTimeMillis();
+                assertTrue("request was not requeued", left > 0);
+                wait(left);
+            }
+        }
+    }
+
+    private static class FakePort extends CP210xSerialPort {
+        private static final UsbRequest CLOSED = new FakeRequest();
+
+        final List<FakeRequest> requests = new ArrayList<>();
+        final BlockingQueue<UsbRequest> completions = new LinkedBlockingQueue<>();
+        volatile int waitCount;
+
+        FakePort() {
+            super(null, null);
+        }
+
+        @Override
+        UsbRequest newUsbRequest() {
+            FakeRequest request = new FakeRequest();
+            synchronized (requests) {
+                requests.add(request);
+                requests.notifyAll();
+            }
+            return request;
+        }
+
+        @Override
+        UsbRequest waitForRequest() {
+            waitCount++;
+            try {
+                UsbRequest request = completions.take();
+                return request == CLOSED ? null : request;
+            } catch (InterruptedException ex) {
+                return null;
+            }
+        }
+
+        @Override
+        public void close() {
+            completions.add(CLOSED);
+        }
+
+        FakeRequest request(int index) throws InterruptedException {
+            synchronized (requests) {
+                long deadline = System.currentTimeMillis() + 5000;
+                while (requests.size() <= index) {
+                    long left = deadline - System.currentTimeMillis();
+                    assertTrue("request was never created", left > 0);
+                    requests.wait(left);
+                }
+                return requests.get(index);
+            }
+        }
+
+        void complete(int index, byte value) throws InterruptedException {
+            FakeRequest request = request(index);
+            request.awaitQueued(1);
+            request.fill(value);
+            completions.add(request);
+        }
+    }
+
+    private static class Reader extends Thread {
+        final FakePort port;
+        final BlockingQueue<Byte> received = new LinkedBlockingQueue<>();
+        volatile IOException error;
+
+        Reader(FakePort port) {
+            this.port = port;
+        }
+
+        public void run() {
+            try {
+                port.readPipelined(BUFFER_SIZE, NUM_REQUESTS, new SerialTransport.ReadCallback() {
+                    @Override
+                    public void onDataRead(ByteBuffer buf) {
+                        while (buf.hasRemaining()) {
+                            received.add(buf.get());
+                        }
+                    }
+                });
+            } catch (IOException ex) {
+                error = ex;
+            }
+        }
+
+        byte next() throws InterruptedException {
+            Byte b = received.poll(5, TimeUnit.SECONDS);
+            assertNotNull("no data delivered", b);
+            return b;
+        }
+    }
+
+    @Test
+    public void deliversOutOfOrderCompletionsInQueueOrder() throws Exception {
+        FakePort port = new FakePort();
+        Reader reader = new Reader(port);
+        reader.start();
+        port.request(NUM_REQUESTS - 1);
+
+        port.complete(2, (byte) 2);
+        port.complete(1, (byte) 1);
+        port.complete(3, (byte) 3);
+        // Nothing can be handed over until the head of the queue completes
+        assertNull(reader.received.poll(100, TimeUnit.MILLISECONDS));
+
+        port.complete(0, (byte) 0);
+        for (int i = 0; i < NUM_REQUESTS; i++) {
+            assertEquals(i, reader.next());
+        }
+
+        // Each request went back on the queue after its data was handed over, and the ring
+        // keeps going from the start
+        for (int i = 0; i < NUM_REQUESTS; i++) {
+            port.request(i).awaitQueued(2);
+        }
+        port.complete(1, (byte) 5);
+        port.complete(0, (byte) 4);
+        assertEquals(4, reader.next());
+        assertEquals(5, reader.next());
+
+        port.close();
+        reader.join(5000);
+        assertFalse(reader.isAlive());
+        assertNull(reader.error);
+    }
+
+    @Test
+    public void skipsCompletionsThatAreNotReads() throws Exception {
+        FakePort port = new FakePort();
+        Reader reader = new Reader(port);
+        reader.start();
+        port.request(NUM_REQUESTS - 1);
+
+        // A writeAsync() request carries no client data
+        FakeRequest write = new FakeRequest();
+        port.completions.add(write);
+        port.complete(0, (byte) 7);
+        assertEquals(7, reader.next());
+        assertTrue(write.closed);
+
+        port.close();
+        reader.join(5000);
+        assertNull(reader.error);
+    }
+
+    @Test
+    public void requestWaitIsNoOpWhileReading() throws Exception {
+        FakePort port = new FakePort();
+
+        // Without a pipeline running requestWait() reaps a completion itself
+        port.completions.add(new FakeRequest());
+        port.requestWait();
+        assertEquals(1, port.waitCount);
+        assertTrue(port.completions.isEmpty());
+
+        Reader reader = new Reader(port);
+        reader.start();
+        port.request(NUM_REQUESTS - 1);
+        while (port.waitCount < 2) {
+            Thread.sleep(1);
+        }
+
+        // This must return at once, leaving the read for the pipeline
+        port.requestWait();
+        assertEquals(2, port.waitCount);
+        port.complete(0, (byte) 9);
+        assertEquals(9, reader.next());
+
+        port.close();
+        reader.join(5000);
+        assertFalse(reader.isAlive());
+    }
+
+    @Test
+    public void shutdownCancelsAndClosesEveryRequest() throws Exception {
+        FakePort port = new FakePort();
+        Reader reader = new Reader(port);
+        reader.start();
+        port.request(NUM_REQUESTS - 1);
+        port.complete(1, (byte) 1);
+
+        port.close();
+        reader.join(5000);
+        assertFalse(reader.isAlive());
+        assertNull(reader.error);
+        // Request 1 completed, but request 0 never did, so nothing was handed over
+        assertTrue(reader.received.isEmpty());
+        for (int i = 0; i < NUM_REQUESTS; i++) {
+            assertTrue(port.request(i).cancelled);
+            assertTrue(port.request(i).closed);
+        }
+
+        // With the pipeline gone requestWait() goes back to waiting for completions itself
+        port.completions.add(new FakeRequest());
+        int waits = port.waitCount;
+        port.requestWait();
+        assertEquals(waits + 1, port.waitCount);
+    }
+
+    @Test
+    public void callbackErrorStopsThePipeline() throws Exception {
+        final FakePort port = new FakePort();
+        final IOException failure = new IOException("consumer failed");
+        final IOException[] thrown = new IOException[1];
+        Thread reader = new Thread() {
+            public void run() {
+                try {
+                    port.readPipelined(BUFFER_SIZE, NUM_REQUESTS,
+                            new SerialTransport.ReadCallback() {
+                                @Override
+                                public void onDataRead(ByteBuffer buf) throws IOException {
+                                    throw failure;
+                                }
+                            });
+                } catch (IOException ex) {
+                    thrown[0] = ex;
+                }
+            }
+        };
+        reader.start();
+        port.request(NUM_REQUESTS - 1);
+        port.complete(0, (byte) 0);
+        reader.join(5000);
+
+        assertSame(failure, thrown[0]);
+        for (int i = 0; i < NUM_REQUESTS; i++) {
+            assertTrue(port.request(i).closed);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.driver;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// In-memory transport. createPair() returns two connected ends: bytes written to one are read
+// from the other, so a simulated phone can sit on the far end of the osmocon code. Writes block
+// while the far end's buffer is full, which gives the same back-pressure as a real serial link.
+public class LoopbackSerialTransport implements SerialTransport {
+    private static class Pipe {
+        private final byte[] buf;
+        private int readPtr;
+        private int count;
+        private boolean closed;
+
+        Pipe(int capacity) {
+            buf = new byte[capacity];
+        }
+
+        synchronized void write(byte[] data, int offset, int length) throws IOException {
+            while (length > 0) {
+                while (count == buf.length && !closed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        throw new IOException("Interrupted while writing", e);
+                    }
+                }
+                if (closed) {
+                    throw new IOException("Loopback closed");
+                }
+                int writePtr = (readPtr + count) % buf.length;
+                int chunk = Math.min(length, Math.min(buf.length - count, buf.length - writePtr));
+                System.arraycopy(data, offset, buf, writePtr, chunk);
+                count += chunk;
+                offset += chunk;
+                length -= chunk;
+                notifyAll();
+            }
+        }
+
+        // Blocks until at least one byte is available; returns -1 once closed and drained
+        synchronized int read(byte[] dst, int offset, int length) throws IOException {
+            while (count == 0 && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted while reading", e);
+                }
+            }
+            if (count == 0) {
+                return -1;
+            }
+            int n = 0;
+            while (n < length && count > 0) {
+                int chunk = Math.min(length - n, Math.min(count, buf.length - readPtr));
+                System.arraycopy(buf, readPtr, dst, offset + n, chunk);
+                readPtr = (readPtr + chunk) % buf.length;
+                count -= chunk;
+                n += chunk;
+            }
+            notifyAll();
+            return n;
+        }
+
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+    }
+
+    private final Pipe rxPipe;
+    private final Pipe txPipe;
+    private volatile int baudRate;
+
+    private LoopbackSerialTransport(Pipe rxPipe, Pipe txPipe) {
+        this.rxPipe = rxPipe;
+        this.txPipe = txPipe;
+    }
+
+    public static LoopbackSerialTransport[] createPair(int capacity) {
+        Pipe a = new Pipe(capacity);
+        Pipe b = new Pipe(capacity);
+        return new LoopbackSerialTransport[] {
+                new LoopbackSerialTransport(a, b),
+                new LoopbackSerialTransport(b, a)
+        };
+    }
+
+    @Override
+    public void open() {
+    }
+
+    // Closing either end ends the reads on both
+    @Override
+    public void close() {
+        rxPipe.close();
+        txPipe.close();
+    }
+
+    // There's no line rate to emulate, but remember it so a simulated phone can check that the
+    // bootloader handshake switched rates when it should have
+    @Override
+    public void setBaudRate(int baudRate) {
+        this.baudRate = baudRate;
+    }
+
+    public int getBaudRate() {
+        return baudRate;
+    }
+
+    public int read(byte[] buf, int offset, int length) throws IOException {
+        return rxPipe.read(buf, offset, length);
+    }
+
+    @Override
+    public void readPipelined(int bufferSize, int numRequests, ReadCallback callback)
+            throws IOException {
+        byte[] buf = new byte[bufferSize];
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buf);
+        for (;;) {
+            int n = rxPipe.read(buf, 0, bufferSize);
+            if (n < 0) {
+                return;
+            }
+            byteBuffer.clear();
+            byteBuffer.limit(n);
+            callback.onDataRead(byteBuffer);
+        }
+    }
+
+    @Override
+    public int write(byte[] data) throws IOException {
+        return write(data, 0, data.length);
+    }
+
+    @Override
+    public int write(byte[] data, int offset, int length) throws IOException {
+        txPipe.write(data, offset, length);
+        return length;
+    }
+
+    @Override
+    public void writeAsync(byte[] data) throws IOException {
+        write(data, 0, data.length);
+    }
+
+    @Override
+    public void requestWait() {
+    }
+}
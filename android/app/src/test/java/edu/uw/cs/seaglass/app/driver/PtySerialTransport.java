@@ -0,0 +1,131 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.driver;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// Talks to a Linux tty device, e.g. one end of a pty pair made with
+//   socat -d -d pty,raw,echo=0 pty,raw,echo=0
+// with a phone simulator (or a real phone behind a USB serial adapter) on the other end. The
+// line is put into raw mode with stty, so that needs to be on the PATH.
+public class PtySerialTransport implements SerialTransport {
+    private final File device;
+    private FileInputStream inputStream;
+    private FileOutputStream outputStream;
+
+    public PtySerialTransport(File device) {
+        this.device = device;
+    }
+
+    @Override
+    public void open() throws IOException {
+        inputStream = new FileInputStream(device);
+        outputStream = new FileOutputStream(device);
+    }
+
+    @Override
+    public void close() {
+        try {
+            if (inputStream != null) {
+                inputStream.close();
+            }
+            if (outputStream != null) {
+                outputStream.close();
+            }
+        } catch (IOException e) {
+            // Nothing useful to do here
+        }
+        inputStream = null;
+        outputStream = null;
+    }
+
+    // A pty ignores the rate, but a real tty doesn't, and both need raw mode
+    @Override
+    public void setBaudRate(int baudRate) throws IOException {
+        Process stty = new ProcessBuilder("stty", "-F", device.getPath(),
+                Integer.toString(baudRate), "raw", "-echo").start();
+        try {
+            if (stty.waitFor() != 0) {
+                throw new IOException("stty failed for " + device);
+            }
+        } catch (InterruptedException e) {
+            throw new IOException("Interrupted while configuring " + device, e);
+        }
+    }
+
+    // A blocked read isn't woken up by close() on every kernel; it returns once the other end of
+    // the pty goes away
+    @Override
+    public void readPipelined(int bufferSize, int numRequests, ReadCallback callback)
+            throws IOException {
+        byte[] buf = new byte[bufferSize];
+        ByteBuffer byteBuffer = ByteBuffer.wrap(buf);
+        for (;;) {
+            FileInputStream in = inputStream;
+            if (in == null) {
+                return;
+            }
+            int n;
+            try {
+                n = in.read(buf, 0, bufferSize);
+            } catch (IOException e) {
+                if (inputStream == null) {
+                    return;
+                }
+                throw e;
+            }
+            if (n < 0) {
+                return;
+            }
+            byteBuffer.clear();
+            byteBuffer.limit(n);
+            callback.onDataRead(byteBuffer);
+        }
+    }
+
+    @Override
+    public int write(byte[] data) throws IOException {
+        return write(data, 0, data.length);
+    }
+
+    @Override
+    public int write(byte[] data, int offset, int length) throws IOException {
+        FileOutputStream out = outputStream;
+        if (out == null) {
+            return -1;
+        }
+        out.write(data, offset, length);
+        return length;
+    }
+
+    @Override
+    public void writeAsync(byte[] data) throws IOException {
+        write(data, 0, data.length);
+    }
+
+    @Override
+    public void requestWait() {
+    }
+
+    public String toString() {
+        return device.getPath();
+    }
+}
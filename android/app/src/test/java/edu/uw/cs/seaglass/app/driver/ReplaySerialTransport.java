@@ -0,0 +1,119 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.driver;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+// Plays a serial capture back, either with its original timing scaled by a speed factor or as
+// fast as the reader can take it. Each record is delivered as one read, so the chunking the
+// osmocon code sees matches what the USB driver handed it when the capture was taken. Anything
+// written to the port is counted and dropped.
+public class ReplaySerialTransport implements SerialTransport {
+    // Speed factor that ignores the capture's timestamps altogether
+    public static final double MAX_SPEED = 0;
+
+    private final File captureFile;
+    private final double speed;
+    private SerialCaptureReader reader;
+    private volatile boolean closed;
+    private volatile long bytesRead;
+    private volatile long bytesWritten;
+
+    public ReplaySerialTransport(File captureFile) {
+        this(captureFile, MAX_SPEED);
+    }
+
+    // speed 1 replays in real time, 10 ten times faster, MAX_SPEED without any pauses
+    public ReplaySerialTransport(File captureFile, double speed) {
+        this.captureFile = captureFile;
+        this.speed = speed;
+    }
+
+    @Override
+    public void open() throws IOException {
+        reader = new SerialCaptureReader(captureFile);
+        closed = false;
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+    }
+
+    @Override
+    public void setBaudRate(int baudRate) {
+    }
+
+    @Override
+    public void readPipelined(int bufferSize, int numRequests, ReadCallback callback)
+            throws IOException {
+        long startNanos = System.nanoTime();
+        try {
+            while (!closed && reader.next()) {
+                if (speed > 0) {
+                    long due = startNanos + (long)(reader.getTimestampNanos() / speed);
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0 && !closed) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                bytesRead += reader.getLength();
+                callback.onDataRead(ByteBuffer.wrap(reader.getData(), 0, reader.getLength()));
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    @Override
+    public int write(byte[] data) {
+        return write(data, 0, data.length);
+    }
+
+    @Override
+    public int write(byte[] data, int offset, int length) {
+        if (closed) {
+            return -1;
+        }
+        bytesWritten += length;
+        return length;
+    }
+
+    @Override
+    public void writeAsync(byte[] data) {
+        write(data, 0, data.length);
+    }
+
+    @Override
+    public void requestWait() {
+    }
+
+    public long getBytesRead() {
+        return bytesRead;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    public String toString() {
+        return captureFile.getPath();
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.logging;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+// The same scan through CellLogBinaryDecoder and CellLogParser, in FIFO-sized reads. Scores are
+// per record, i.e. per sweep or cell observation. CellLogBinaryDecoderTest checks that both
+// decode the same.
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CellLogBinaryDecoderBenchmark {
+    private static final int SCANS = 200;
+    private static final int RECORDS = SCANS * 6;
+    private static final int READ_SIZE = 8192;
+
+    private byte[] text;
+    private byte[] binary;
+    private CellLogSamples.Counter counter;
+    private CellLogParser parser;
+    private CellLogBinaryDecoder binaryDecoder;
+
+    @Setup
+    public void setUp() {
+        text = CellLogSamples.scan(SCANS);
+        binary = CellLogSamples.binaryScan(SCANS);
+        counter = new CellLogSamples.Counter();
+        parser = new CellLogParser(counter, counter);
+        binaryDecoder = new CellLogBinaryDecoder(counter, counter);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public long text() {
+        CellLogSamples.feed(parser, text, READ_SIZE, 0);
+        return counter.readings;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public long binary() {
+        CellLogSamples.feed(binaryDecoder, binary, READ_SIZE, 0);
+        return counter.readings;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.logging;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import edu.uw.cs.seaglass.app.db.CellObservation;
+
+import static edu.uw.cs.seaglass.app.logging.CellLogSamples.*;
+import static org.junit.Assert.*;
+
+public class CellLogBinaryDecoderTest {
+    private static final int SCANS = 20;
+
+    private final Recorder recorder = new Recorder();
+    private final CellLogBinaryDecoder decoder = new CellLogBinaryDecoder(recorder, recorder);
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+
+    private void feed(byte[] data) {
+        decoder.feed(data, 0, data.length, 0);
+    }
+
+    @Test
+    public void decodesTheSameAsText() {
+        Recorder expected = new Recorder();
+        CellLogSamples.feed(new CellLogParser(expected, expected), scan(SCANS), 8192, 0);
+        CellLogSamples.feed(decoder, binaryScan(SCANS), 8192, 0);
+
+        assertEquals(SCANS * 4, recorder.observations.size());
+        assertEquals(SCANS * 2, recorder.sweeps.size());
+        assertSameOutput(expected, recorder);
+        assertEquals(SCANS * 6, decoder.getRecordCount());
+        assertEquals(0, decoder.getMalformedRecords());
+    }
+
+    @Test
+    public void decodesRecordsSplitAcrossReads() {
+        byte[] data = binaryScan(SCANS);
+        Recorder whole = new Recorder();
+        new CellLogBinaryDecoder(whole, whole).feed(data, 0, data.length, 0);
+
+        // Every split of a header, and bodies split anywhere
+        for (int readSize : new int[] { 1, 2, 3, 5, 7, 64, 129, 1000 }) {
+            Recorder split = new Recorder();
+            CellLogBinaryDecoder splitDecoder = new CellLogBinaryDecoder(split, split);
+            CellLogSamples.feed(splitDecoder, data, readSize, 0);
+            assertSameOutput(whole, split);
+            assertEquals(SCANS * 6, splitDecoder.getRecordCount());
+            assertEquals(0, splitDecoder.getMalformedRecords());
+        }
+    }
+
+    @Test
+    public void resyncsOnTheNextMagicByteAfterGarbage() {
+        byte[] garbage = "cell_log: garbage\n".getBytes();
+        feed(concat(powerRecord(1, 0), garbage, sysinfoRecord(10, 1), garbage, garbage,
+                powerRecord(128, 2)));
+
+        assertEquals(2, recorder.sweeps.size());
+        assertEquals(1, recorder.observations.size());
+        assertEquals(10, recorder.observations.get(0).measurementHeader.arfcn);
+        // Each run of skipped bytes counts once
+        assertEquals(2, decoder.getMalformedRecords());
+        assertEquals(3, decoder.getRecordCount());
+    }
+
+    @Test
+    public void resyncsWhenGarbageIsSplitAcrossReads() {
+        feed(new byte[] { 'x', 'y' });
+        feed(new byte[] { 'z' });
+        byte[] record = sysinfoRecord(10, 1);
+        feed(Arrays.copyOfRange(record, 0, 3));
+        feed(Arrays.copyOfRange(record, 3, record.length));
+
+        assertEquals(1, recorder.observations.size());
+        assertEquals(1, decoder.getMalformedRecords());
+    }
+
+    @Test
+    public void countsTruncatedSiAndCarriesOn() {
+        byte[] good = sysinfoRecord(10, 1);
+        // The last SI claims more bytes than the body has left
+        byte[] bad = good.clone();
+        bad[bad.length - SI_LENGTH - 1] = (byte)(SI_LENGTH + 1);
+        // The last SI has its type but no length
+        byte[] body = Arrays.copyOfRange(good, CellLogBinaryDecoder.HEADER_LEN,
+                good.length - SI_LENGTH - 1);
+        byte[] cut = record(CellLogBinaryDecoder.RECORD_SYSINFO, body);
+        feed(concat(bad, cut, good));
+
+        assertEquals(1, recorder.observations.size());
+        CellObservation observation = recorder.observations.get(0);
+        assertArrayEquals(siPayload(6 + 5), observation.si13);
+        assertEquals(3, decoder.getRecordCount());
+        assertEquals(2, decoder.getMalformedRecords());
+    }
+
+    @Test
+    public void countsShortAndBadRecords() {
+        feed(concat(
+                record(CellLogBinaryDecoder.RECORD_POWER, new byte[] { 0 }),
+                record(CellLogBinaryDecoder.RECORD_SYSINFO, new byte[] { 0, 10, -60, 0x35 }),
+                // ARFCN 300 is in no band
+                record(CellLogBinaryDecoder.RECORD_POWER, new byte[] { 0x01, 0x2c, -90 })));
+
+        assertTrue(recorder.sweeps.isEmpty());
+        assertTrue(recorder.observations.isEmpty());
+        assertEquals(3, decoder.getRecordCount());
+        assertEquals(3, decoder.getMalformedRecords());
+    }
+
+    @Test
+    public void skipsUnknownRecordTypesByLength() {
+        // The unknown body holds a magic byte, which mustn't be taken for a record
+        feed(concat(record((byte)99, new byte[] { CellLogBinaryDecoder.MAGIC, 1, 0, 0 }),
+                powerRecord(1, 0)));
+
+        assertEquals(1, recorder.sweeps.size());
+        assertEquals(0, decoder.getMalformedRecords());
+    }
+
+    @Test
+    public void resetDropsAPartialRecord() {
+        byte[] record = sysinfoRecord(10, 1);
+        feed(Arrays.copyOfRange(record, 0, 20));
+        decoder.reset();
+        feed(powerRecord(1, 0));
+
+        assertEquals(1, recorder.sweeps.size());
+        assertTrue(recorder.observations.isEmpty());
+        assertEquals(0, decoder.getMalformedRecords());
+    }
+
+    @Test
+    public void providerPicksTheDecoderFromTheFirstByte() {
+        CellLogParser text = new CellLogParser(recorder, recorder);
+        assertSame(decoder, CellLogProvider.pickDecoder(binaryScan(1)[0], text, decoder));
+        assertSame(text, CellLogProvider.pickDecoder(scan(1)[0], text, decoder));
+    }
+}
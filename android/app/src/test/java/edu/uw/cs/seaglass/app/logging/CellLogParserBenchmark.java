@@ -0,0 +1,156 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.logging;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+import edu.uw.cs.seaglass.app.Utils;
+import edu.uw.cs.seaglass.app.db.CellObservation;
+import edu.uw.cs.seaglass.app.db.MeasurementHeader;
+import edu.uw.cs.seaglass.app.db.SpectrumSweep;
+
+// CellLogParser against the BufferedReader and String.split() loop CellLogProvider used before
+// it, over a synthetic scan fed in FIFO-sized reads. Scores are per record, i.e. per sweep or
+// cell observation; -prof gc shows the per-line Strings and token arrays that are gone.
+// CellLogParserTest checks that both parse the same.
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CellLogParserBenchmark {
+    static final int SCANS = 200;
+    // Two sweeps and four cells a scan
+    static final int RECORDS = SCANS * 6;
+    static final int READ_SIZE = 8192;
+
+    private byte[] text;
+    private CellLogSamples.Counter counter;
+    private CellLogParser parser;
+
+    // The old CellLogProvider loop, kept here as the baseline. It made one SpectrumMeasurement
+    // per reading; those are collected into a sweep here so the results can be compared.
+    static void legacyParse(byte[] text, CellObservationReceiver cellObservationReceiver,
+                            SpectrumSweepReceiver spectrumSweepReceiver) throws IOException {
+        BufferedReader log = new BufferedReader(new InputStreamReader(
+                new ByteArrayInputStream(text), StandardCharsets.US_ASCII));
+        boolean power = false;
+        boolean sysinfo = false;
+        MeasurementHeader measurementHeader = null;
+        CellObservation cellObservation = null;
+        for (;;) {
+            String line = log.readLine();
+            long lineTimestamp = 0;
+
+            if (line == null) {
+                break;
+            } else if (line.equals("[power]")) {
+                power = true;
+                sysinfo = false;
+                measurementHeader = new MeasurementHeader();
+            } else if (line.equals("[sysinfo]")) {
+                power = false;
+                sysinfo = true;
+                measurementHeader = new MeasurementHeader();
+                cellObservation = new CellObservation();
+                cellObservation.ta = CellObservation.NO_TA;
+                cellObservation.measurementHeader = measurementHeader;
+            } else if (line.equals("") && sysinfo) {
+                cellObservationReceiver.onCellObservationReceived(cellObservation);
+            } else {
+                String[] tokens = line.split(" ");
+                if (tokens[0].equals("time")) {
+                    measurementHeader.timestamp = Long.parseLong(tokens[1] + "000");
+                } else if (tokens[0].equals("arfcn")) {
+                    measurementHeader.arfcn = (short)Integer.parseInt(tokens[1]);
+                    measurementHeader.band = Utils.bandFromARFCN(measurementHeader.arfcn,
+                            Utils.isPCS(measurementHeader.arfcn));
+                    measurementHeader.arfcn = (short) (measurementHeader.arfcn & 0x3fff);
+                    measurementHeader.timestamp = lineTimestamp;
+                    if (power) {
+                        SpectrumSweep sweep = new SpectrumSweep();
+                        sweep.band = measurementHeader.band;
+                        sweep.startArfcn = measurementHeader.arfcn;
+                        sweep.dBm = new byte[tokens.length - 2];
+                        for (int i = 2; i < tokens.length; i++) {
+                            sweep.dBm[i - 2] = Byte.parseByte(tokens[i]);
+                        }
+                        spectrumSweepReceiver.onSpectrumSweepReceived(sweep);
+                    }
+                } else if (tokens[0].equals("rxlev")) {
+                    measurementHeader.dBm = Byte.parseByte(tokens[1]);
+                } else if (tokens[0].equals("ta")) {
+                    cellObservation.ta = Byte.parseByte(tokens[1]);
+                } else if (tokens[0].equals("bsic")) {
+                    cellObservation.bsic = (byte)(((tokens[1].charAt(0) - 0x30) << 4) |
+                            (tokens[1].charAt(2) - 0x30));
+                } else if (tokens[0].startsWith("si")) {
+                    byte[] payload = new byte[tokens.length - 1];
+                    for (int i = 0; i < payload.length; i++) {
+                        payload[i] = (byte)Short.parseShort(tokens[i + 1], 16);
+                    }
+                    if (tokens[0].equals("si1")) {
+                        cellObservation.si1 = payload;
+                    } else if (tokens[0].equals("si2")) {
+                        cellObservation.si2 = payload;
+                    } else if (tokens[0].equals("si2quater")) {
+                        cellObservation.si2quat = payload;
+                    } else if (tokens[0].equals("si3")) {
+                        cellObservation.si3 = payload;
+                    } else if (tokens[0].equals("si4")) {
+                        cellObservation.si4 = payload;
+                    } else if (tokens[0].equals("si13")) {
+                        cellObservation.si13 = payload;
+                    }
+                }
+            }
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        text = CellLogSamples.scan(SCANS);
+        counter = new CellLogSamples.Counter();
+        parser = new CellLogParser(counter, counter);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public long legacyParser() throws IOException {
+        legacyParse(text, counter, counter);
+        return counter.readings;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(RECORDS)
+    public long cellLogParser() {
+        CellLogSamples.feed(parser, text, READ_SIZE, 0);
+        return counter.readings;
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.logging;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class CellLogParserTest {
+    // CellLogParserBenchmark's baseline gets the same observations and sweeps out of a scan
+    @Test
+    public void parsesTheSameAsTheLegacyParser() throws Exception {
+        int scans = CellLogParserBenchmark.SCANS;
+        byte[] text = CellLogSamples.scan(scans);
+
+        CellLogSamples.Recorder expected = new CellLogSamples.Recorder();
+        CellLogParserBenchmark.legacyParse(text, expected, expected);
+        CellLogSamples.Recorder actual = new CellLogSamples.Recorder();
+        CellLogParser parser = new CellLogParser(actual, actual);
+        CellLogSamples.feed(parser, text, CellLogParserBenchmark.READ_SIZE, 0);
+
+        assertEquals(scans * 4, expected.observations.size());
+        assertEquals(scans * 2, expected.sweeps.size());
+        CellLogSamples.assertSameOutput(expected, actual);
+        assertEquals(CellLogSamples.countLines(text), parser.getRecordCount());
+        assertEquals(0, parser.getMalformedRecords());
+    }
+}
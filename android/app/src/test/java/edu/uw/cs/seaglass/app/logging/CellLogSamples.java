@@ -0,0 +1,255 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.logging;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.uw.cs.seaglass.app.db.CellObservation;
+import edu.uw.cs.seaglass.app.db.SpectrumSweep;
+
+import static org.junit.Assert.*;
+
+// Synthetic cell_log output shaped like a scan: a power sweep over each band, then sysinfo for
+// the strongest cells. The text and binary forms of a scan carry the same data.
+class CellLogSamples {
+    static final int SI_LENGTH = 23;
+    static final int SWEEP_LENGTH = 124;
+    static final String[] SI_NAMES = { "si1", "si2", "si2quater", "si3", "si4", "si13" };
+    static final byte[] SI_TYPES = {
+            CellLogBinaryDecoder.SI_1, CellLogBinaryDecoder.SI_2, CellLogBinaryDecoder.SI_2QUATER,
+            CellLogBinaryDecoder.SI_3, CellLogBinaryDecoder.SI_4, CellLogBinaryDecoder.SI_13
+    };
+
+    static byte[] siPayload(int seed) {
+        byte[] si = new byte[SI_LENGTH];
+        for (int i = 0; i < si.length; i++) {
+            si[i] = (byte)(seed * 17 + i * 5);
+        }
+        return si;
+    }
+
+    static void appendHex(StringBuilder sb, byte[] bytes) {
+        for (byte b : bytes) {
+            sb.append(' ').append(Character.forDigit((b >> 4) & 0xf, 16))
+                    .append(Character.forDigit(b & 0xf, 16));
+        }
+    }
+
+    static byte[] readings(int seed) {
+        byte[] dBm = new byte[SWEEP_LENGTH];
+        for (int i = 0; i < dBm.length; i++) {
+            dBm[i] = (byte)(-110 + (seed + i * 7) % 60);
+        }
+        return dBm;
+    }
+
+    static int ncc(int seed) {
+        return seed % 8;
+    }
+
+    static int bcc(int seed) {
+        return (seed / 8) % 8;
+    }
+
+    static int rxlev(int seed) {
+        return -50 - seed % 50;
+    }
+
+    // -1 if the line is left out
+    static int ta(int seed) {
+        return seed % 3 == 0 ? seed % 64 : -1;
+    }
+
+    static String power(int time, int startArfcn, int seed) {
+        StringBuilder sb = new StringBuilder("[power]\n");
+        sb.append("time ").append(time).append('\n');
+        sb.append("arfcn ").append(startArfcn);
+        for (byte dBm : readings(seed)) {
+            sb.append(' ').append(dBm);
+        }
+        return sb.append('\n').toString();
+    }
+
+    static String sysinfo(int time, int arfcn, int seed) {
+        StringBuilder sb = new StringBuilder("[sysinfo]\n");
+        sb.append("time ").append(time).append('\n');
+        sb.append("arfcn ").append(arfcn).append('\n');
+        sb.append("bsic ").append(ncc(seed)).append(',').append(bcc(seed)).append('\n');
+        sb.append("rxlev ").append(rxlev(seed)).append('\n');
+        if (ta(seed) >= 0) {
+            sb.append("ta ").append(ta(seed)).append('\n');
+        }
+        for (int i = 0; i < SI_NAMES.length; i++) {
+            sb.append(SI_NAMES[i]);
+            appendHex(sb, siPayload(seed * SI_NAMES.length + i));
+            sb.append('\n');
+        }
+        return sb.append('\n').toString();
+    }
+
+    static byte[] record(byte type, byte[] body) {
+        byte[] record = new byte[CellLogBinaryDecoder.HEADER_LEN + body.length];
+        record[0] = CellLogBinaryDecoder.MAGIC;
+        record[1] = type;
+        record[2] = (byte)(body.length >> 8);
+        record[3] = (byte)body.length;
+        System.arraycopy(body, 0, record, CellLogBinaryDecoder.HEADER_LEN, body.length);
+        return record;
+    }
+
+    static byte[] powerRecord(int startArfcn, int seed) {
+        byte[] dBm = readings(seed);
+        byte[] body = new byte[2 + dBm.length];
+        body[0] = (byte)(startArfcn >> 8);
+        body[1] = (byte)startArfcn;
+        System.arraycopy(dBm, 0, body, 2, dBm.length);
+        return record(CellLogBinaryDecoder.RECORD_POWER, body);
+    }
+
+    static byte[] sysinfoRecord(int arfcn, int seed) {
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        body.write(arfcn >> 8);
+        body.write(arfcn);
+        body.write(rxlev(seed));
+        body.write((ncc(seed) << 4) | bcc(seed));
+        body.write(ta(seed) >= 0 ? ta(seed) : CellObservation.NO_TA);
+        for (int i = 0; i < SI_TYPES.length; i++) {
+            byte[] si = siPayload(seed * SI_TYPES.length + i);
+            body.write(SI_TYPES[i]);
+            body.write(si.length);
+            body.write(si, 0, si.length);
+        }
+        return record(CellLogBinaryDecoder.RECORD_SYSINFO, body.toByteArray());
+    }
+
+    private static int cellArfcn(int scan, int cell) {
+        return cell % 2 == 0 ? 1 + (scan + cell) % 124 : 128 + (scan + cell) % 124;
+    }
+
+    // About 250 bytes of power sweep for every 1 KB of sysinfo, like a scan of two bands with a
+    // handful of cells on each
+    static byte[] scan(int scans) {
+        StringBuilder sb = new StringBuilder();
+        for (int s = 0; s < scans; s++) {
+            int time = 1546300800 + s;
+            sb.append(power(time, 1, s));
+            sb.append(power(time, 128, s + 1));
+            for (int c = 0; c < 4; c++) {
+                sb.append(sysinfo(time, cellArfcn(s, c), s * 4 + c));
+            }
+        }
+        return sb.toString().getBytes(StandardCharsets.US_ASCII);
+    }
+
+    // The same scan as records
+    static byte[] binaryScan(int scans) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int s = 0; s < scans; s++) {
+            byte[] record = powerRecord(1, s);
+            out.write(record, 0, record.length);
+            record = powerRecord(128, s + 1);
+            out.write(record, 0, record.length);
+            for (int c = 0; c < 4; c++) {
+                record = sysinfoRecord(cellArfcn(s, c), s * 4 + c);
+                out.write(record, 0, record.length);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    static int countLines(byte[] text) {
+        int lines = 0;
+        for (byte b : text) {
+            if (b == '\n') {
+                lines++;
+            }
+        }
+        return lines;
+    }
+
+    static class Recorder implements CellObservationReceiver, SpectrumSweepReceiver {
+        final List<CellObservation> observations = new ArrayList<>();
+        final List<SpectrumSweep> sweeps = new ArrayList<>();
+
+        @Override
+        public void onCellObservationReceived(CellObservation observation) {
+            observations.add(observation);
+        }
+
+        @Override
+        public void onSpectrumSweepReceived(SpectrumSweep sweep) {
+            sweeps.add(sweep);
+        }
+    }
+
+    // Counts instead of keeping, so a benchmark measures the decoder and not a growing list
+    static class Counter implements CellObservationReceiver, SpectrumSweepReceiver {
+        long observations;
+        long readings;
+
+        @Override
+        public void onCellObservationReceived(CellObservation observation) {
+            observations++;
+        }
+
+        @Override
+        public void onSpectrumSweepReceived(SpectrumSweep sweep) {
+            readings += sweep.dBm.length;
+        }
+    }
+
+    static void assertSameObservation(CellObservation expected, CellObservation actual) {
+        assertEquals(expected.measurementHeader.arfcn, actual.measurementHeader.arfcn);
+        assertEquals(expected.measurementHeader.band, actual.measurementHeader.band);
+        assertEquals(expected.measurementHeader.dBm, actual.measurementHeader.dBm);
+        assertEquals(expected.bsic, actual.bsic);
+        assertEquals(expected.ta, actual.ta);
+        assertArrayEquals(expected.si1, actual.si1);
+        assertArrayEquals(expected.si2, actual.si2);
+        assertArrayEquals(expected.si2quat, actual.si2quat);
+        assertArrayEquals(expected.si3, actual.si3);
+        assertArrayEquals(expected.si4, actual.si4);
+        assertArrayEquals(expected.si13, actual.si13);
+    }
+
+    static void assertSameSweep(SpectrumSweep expected, SpectrumSweep actual) {
+        assertEquals(expected.band, actual.band);
+        assertEquals(expected.startArfcn, actual.startArfcn);
+        assertArrayEquals(expected.dBm, actual.dBm);
+    }
+
+    static void assertSameOutput(Recorder expected, Recorder actual) {
+        assertEquals(expected.observations.size(), actual.observations.size());
+        for (int i = 0; i < expected.observations.size(); i++) {
+            assertSameObservation(expected.observations.get(i), actual.observations.get(i));
+        }
+        assertEquals(expected.sweeps.size(), actual.sweeps.size());
+        for (int i = 0; i < expected.sweeps.size(); i++) {
+            assertSameSweep(expected.sweeps.get(i), actual.sweeps.get(i));
+        }
+    }
+
+    // Hands data to the decoder in reads of at most readSize bytes, like the FIFO does
+    static void feed(CellLogDecoder decoder, byte[] data, int readSize, long timestamp) {
+        for (int off = 0; off < data.length; off += readSize) {
+            decoder.feed(data, off, Math.min(readSize, data.length - off), timestamp);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.logging;
+
+import java.nio.ByteBuffer;
+
+// Builds GSMTAP v2 datagrams for the tests
+class GsmtapDatagrams {
+    static final byte CHANNEL_CCCH = 0x02;
+
+    static byte[] datagram(int type, int subtype, int arfcn, int timeslot, int frameNumber,
+                           byte[] payload) {
+        byte[] d = new byte[GsmtapView.MIN_HEADER_LEN + payload.length];
+        d[0] = GsmtapView.GSMTAP_VERSION;
+        d[1] = GsmtapView.MIN_HEADER_LEN / 4;
+        d[2] = (byte)type;
+        d[3] = (byte)timeslot;
+        d[4] = (byte)(arfcn >> 8);
+        d[5] = (byte)arfcn;
+        d[6] = (byte)-70;
+        d[8] = (byte)(frameNumber >> 24);
+        d[9] = (byte)(frameNumber >> 16);
+        d[10] = (byte)(frameNumber >> 8);
+        d[11] = (byte)frameNumber;
+        d[12] = (byte)subtype;
+        System.arraycopy(payload, 0, d, GsmtapView.MIN_HEADER_LEN, payload.length);
+        return d;
+    }
+
+    static byte[] bcch(int arfcn, int timeslot, int frameNumber, byte[] payload) {
+        return datagram(GsmtapView.GSMTAP_TYPE_UM, GsmtapView.GSMTAP_CHANNEL_BCCH, arfcn,
+                timeslot, frameNumber, payload);
+    }
+
+    static byte[] ccch(int arfcn, int frameNumber, byte[] payload) {
+        return datagram(GsmtapView.GSMTAP_TYPE_UM, CHANNEL_CCCH, arfcn, 0, frameNumber, payload);
+    }
+
+    static byte[] payload(int seed) {
+        byte[] payload = new byte[23];
+        for (int i = 0; i < payload.length; i++) {
+            payload[i] = (byte)(seed * 31 + i);
+        }
+        return payload;
+    }
+
+    static GsmtapView view(byte[] datagram) {
+        GsmtapView view = new GsmtapView();
+        if (!view.wrap(ByteBuffer.wrap(datagram), 0, datagram.length)) {
+            throw new IllegalArgumentException("Not a GSMTAP datagram");
+        }
+        return view;
+    }
+}
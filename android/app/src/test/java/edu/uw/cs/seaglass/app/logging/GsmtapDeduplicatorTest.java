@@ -0,0 +1,126 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.logging;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.uw.cs.seaglass.app.db.GSMPacket;
+import edu.uw.cs.seaglass.app.db.GSMPacketRepeats;
+
+import static edu.uw.cs.seaglass.app.logging.GsmtapDatagrams.*;
+import static org.junit.Assert.*;
+
+public class GsmtapDeduplicatorTest {
+    private static final long WINDOW = 60000;
+
+    private final GsmtapDeduplicator deduplicator = new GsmtapDeduplicator(16, WINDOW);
+    private final List<GSMPacket> stored = new ArrayList<>();
+    private final List<GSMPacketRepeats> updated = new ArrayList<>();
+
+    private void add(byte[] datagram, long timestamp) {
+        deduplicator.add(view(datagram), timestamp, stored, updated);
+    }
+
+    @Test
+    public void storesFirstOccurrenceAtOnceAndFoldsRepeatsIntoIt() {
+        add(bcch(10, 0, 100, payload(1)), 1000);
+        assertEquals(1, stored.size());
+        GSMPacket pkt = stored.get(0);
+        assertEquals(1, pkt.repeatCount);
+        assertEquals(1000, pkt.measurementHeader.timestamp);
+
+        add(bcch(10, 0, 151, payload(1)), 2000);
+        add(bcch(10, 0, 202, payload(1)), 3000);
+        assertEquals(1, stored.size());
+        assertEquals(2, deduplicator.getRepeatsCollapsed());
+        // The stored packet may already be on its way to the database, so it isn't changed
+        assertEquals(1, pkt.repeatCount);
+        assertEquals(1000, pkt.lastSeen);
+
+        // Still within the window
+        deduplicator.expire(1000 + WINDOW - 1, updated);
+        assertTrue(updated.isEmpty());
+        deduplicator.expire(1000 + WINDOW, updated);
+        assertEquals(1, updated.size());
+        assertSame(pkt, updated.get(0).gsmPacket);
+        assertEquals(3, updated.get(0).repeatCount);
+        assertEquals(3000, updated.get(0).lastSeen);
+        assertEquals(0, deduplicator.getHeldCount());
+
+        // After the window the frame starts a new row
+        add(bcch(10, 0, 253, payload(1)), 1000 + WINDOW + 1);
+        assertEquals(2, stored.size());
+    }
+
+    @Test
+    public void passesPagingStraightThrough() {
+        for (int i = 0; i < 3; i++) {
+            add(ccch(10, 100 + i, payload(2)), 1000 + i);
+        }
+        assertEquals(3, stored.size());
+        assertEquals(0, deduplicator.getHeldCount());
+        deduplicator.flush(updated);
+        assertTrue(updated.isEmpty());
+    }
+
+    @Test
+    public void keepsTimeslotsArfcnsAndPayloadsApart() {
+        add(bcch(10, 0, 100, payload(3)), 1000);
+        add(bcch(10, 2, 100, payload(3)), 1000);
+        add(bcch(11, 0, 100, payload(3)), 1000);
+        add(bcch(10, 0, 100, payload(4)), 1000);
+        assertEquals(4, stored.size());
+        for (GSMPacket pkt : stored) {
+            assertEquals(1, pkt.repeatCount);
+        }
+    }
+
+    @Test
+    public void onlyRepeatedPacketsAreHandedBackForUpdating() {
+        add(bcch(10, 0, 100, payload(5)), 1000);
+        add(bcch(10, 0, 151, payload(5)), 1100);
+        add(bcch(20, 0, 100, payload(6)), 1000);
+        deduplicator.flush(updated);
+        assertEquals(1, updated.size());
+        assertEquals(10, updated.get(0).gsmPacket.measurementHeader.arfcn);
+        assertEquals(2, updated.get(0).repeatCount);
+        assertEquals(1100, updated.get(0).lastSeen);
+        assertEquals(0, deduplicator.getHeldCount());
+    }
+
+    @Test
+    public void evictsLeastRecentlySeenWhenFull() {
+        GsmtapDeduplicator small = new GsmtapDeduplicator(2, WINDOW);
+        small.add(view(bcch(1, 0, 0, payload(7))), 1000, stored, updated);
+        small.add(view(bcch(1, 0, 51, payload(7))), 1001, stored, updated);
+        small.add(view(bcch(2, 0, 0, payload(8))), 1002, stored, updated);
+        // Seeing ARFCN 1 again makes ARFCN 2 the eldest
+        small.add(view(bcch(1, 0, 102, payload(7))), 1003, stored, updated);
+        small.add(view(bcch(3, 0, 0, payload(9))), 1004, stored, updated);
+        // ARFCN 2 was evicted, but it was only seen once
+        assertTrue(updated.isEmpty());
+        small.add(view(bcch(4, 0, 0, payload(10))), 1005, stored, updated);
+        assertEquals(1, updated.size());
+        assertEquals(1, updated.get(0).gsmPacket.measurementHeader.arfcn);
+        assertEquals(3, updated.get(0).repeatCount);
+        assertEquals(4, stored.size());
+        assertEquals(2, small.getHeldCount());
+    }
+}
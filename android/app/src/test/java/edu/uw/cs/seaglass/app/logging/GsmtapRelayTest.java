@@ -0,0 +1,213 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.logging;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static edu.uw.cs.seaglass.app.logging.GsmtapDatagrams.*;
+import static org.junit.Assert.*;
+
+// The collectors are UDP sockets on loopback
+public class GsmtapRelayTest {
+    private static final int TIMEOUT = 10000;
+
+    private final List<DatagramSocket> sinks = new ArrayList<>();
+    private GsmtapRelay relay;
+
+    @After
+    public void tearDown() throws Exception {
+        if (relay != null) {
+            relay.shutdown();
+            relay.join(TIMEOUT);
+        }
+        for (DatagramSocket sink : sinks) {
+            sink.close();
+        }
+    }
+
+    private DatagramSocket sink() throws Exception {
+        DatagramSocket sink = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        sink.setSoTimeout(TIMEOUT);
+        sink.setReceiveBufferSize(1 << 20);
+        sinks.add(sink);
+        return sink;
+    }
+
+    private static InetSocketAddress destination(DatagramSocket sink) {
+        return InetSocketAddress.createUnresolved(sink.getLocalAddress().getHostAddress(),
+                sink.getLocalPort());
+    }
+
+    private static byte[] receive(DatagramSocket sink) throws Exception {
+        DatagramPacket packet = new DatagramPacket(new byte[2048], 2048);
+        sink.receive(packet);
+        return Arrays.copyOf(packet.getData(), packet.getLength());
+    }
+
+    // Datagrams back to back in one buffer, like the provider's receive buffer
+    private static ByteBuffer receiveBuffer(List<byte[]> datagrams) {
+        int length = 0;
+        for (byte[] datagram : datagrams) {
+            length += datagram.length;
+        }
+        ByteBuffer buf = ByteBuffer.allocateDirect(length);
+        for (byte[] datagram : datagrams) {
+            buf.put(datagram);
+        }
+        return buf;
+    }
+
+    private static List<byte[]> datagrams(int count) {
+        List<byte[]> datagrams = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            datagrams.add(ccch(10 + i % 100, i, payload(i)));
+        }
+        return datagrams;
+    }
+
+    private void awaitDrained() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (relay.getQueueDepth() > 0 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(0, relay.getQueueDepth());
+    }
+
+    @Test
+    public void sendsEveryDatagramToEveryDestination() throws Exception {
+        DatagramSocket first = sink();
+        DatagramSocket second = sink();
+        relay = new GsmtapRelay(Arrays.asList(destination(first), destination(second)), 64);
+        relay.start();
+
+        List<byte[]> datagrams = datagrams(200);
+        ByteBuffer buf = receiveBuffer(datagrams);
+        int offset = 0;
+        for (int i = 0; i < datagrams.size(); i++) {
+            int length = datagrams.get(i).length;
+            // Paced so the ring never fills
+            while (!relay.offer(buf, offset, length)) {
+                Thread.sleep(1);
+            }
+            offset += length;
+        }
+
+        for (DatagramSocket sink : sinks) {
+            for (byte[] datagram : datagrams) {
+                assertArrayEquals(datagram, receive(sink));
+            }
+        }
+        awaitDrained();
+        assertEquals(200, relay.getSent(0));
+        assertEquals(200, relay.getSent(1));
+        assertEquals(0, relay.getDestinationDrops(0));
+        assertEquals(0, relay.getDestinationDrops(1));
+    }
+
+    @Test
+    public void dropsWhenEverySlotIsInUse() throws Exception {
+        DatagramSocket sink = sink();
+        relay = new GsmtapRelay(Arrays.asList(destination(sink)), 4);
+
+        // Not started yet, so nothing leaves the ring
+        List<byte[]> datagrams = datagrams(10);
+        ByteBuffer buf = receiveBuffer(datagrams);
+        int offset = 0;
+        int accepted = 0;
+        for (byte[] datagram : datagrams) {
+            if (relay.offer(buf, offset, datagram.length)) {
+                accepted++;
+            }
+            offset += datagram.length;
+        }
+        assertEquals(4, accepted);
+        assertEquals(4, relay.getQueueDepth());
+        assertEquals(6, relay.getQueueDrops());
+
+        // The ones that made it in are the first four
+        relay.start();
+        for (int i = 0; i < accepted; i++) {
+            assertArrayEquals(datagrams.get(i), receive(sink));
+        }
+        awaitDrained();
+        assertEquals(4, relay.getSent(0));
+    }
+
+    @Test
+    public void dropsOversizeDatagrams() throws Exception {
+        relay = new GsmtapRelay(Arrays.asList(destination(sink())), 4);
+        ByteBuffer buf = ByteBuffer.allocateDirect(4096);
+        assertFalse(relay.offer(buf, 0, 2048));
+        assertEquals(1, relay.getOversizeDrops());
+        assertEquals(0, relay.getQueueDepth());
+    }
+
+    @Test
+    public void countsDropsForAnUnreachableDestinationOnly() throws Exception {
+        DatagramSocket sink = sink();
+        // .invalid never resolves
+        relay = new GsmtapRelay(Arrays.asList(
+                InetSocketAddress.createUnresolved("collector.invalid", 4729),
+                destination(sink)), 16);
+        relay.start();
+
+        List<byte[]> datagrams = datagrams(8);
+        ByteBuffer buf = receiveBuffer(datagrams);
+        int offset = 0;
+        for (byte[] datagram : datagrams) {
+            assertTrue(relay.offer(buf, offset, datagram.length));
+            offset += datagram.length;
+        }
+        for (byte[] datagram : datagrams) {
+            assertArrayEquals(datagram, receive(sink));
+        }
+        awaitDrained();
+        assertEquals(0, relay.getSent(0));
+        assertEquals(8, relay.getDestinationDrops(0));
+        assertEquals(8, relay.getSent(1));
+        assertEquals(0, relay.getDestinationDrops(1));
+        assertTrue(relay.summarize().contains("collector.invalid:4729 sent 0 dropped 8"));
+    }
+
+    @Test
+    public void parsesDestinationList() {
+        List<InetSocketAddress> destinations =
+                GsmtapRelay.parseDestinations(" 10.0.0.1:4729, wireshark.local:5000 ,");
+        assertEquals(2, destinations.size());
+        assertEquals("10.0.0.1", destinations.get(0).getHostString());
+        assertEquals(4729, destinations.get(0).getPort());
+        assertEquals("wireshark.local", destinations.get(1).getHostString());
+        assertEquals(5000, destinations.get(1).getPort());
+        assertTrue(GsmtapRelay.parseDestinations(null).isEmpty());
+        try {
+            GsmtapRelay.parseDestinations("nohost");
+            fail();
+        } catch (IllegalArgumentException ex) {
+            // Expected
+        }
+    }
+}
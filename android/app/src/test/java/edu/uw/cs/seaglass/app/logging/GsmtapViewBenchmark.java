@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.logging;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import edu.uw.cs.seaglass.app.Utils;
+import edu.uw.cs.seaglass.app.db.GSMPacket;
+import edu.uw.cs.seaglass.app.db.MeasurementHeader;
+
+// GsmtapView against the parser IPGSMTAPProvider used before it, over a receive buffer full of
+// typical 39-byte BCCH/CCCH datagrams. Scores are per datagram; run with
+// ./gradlew jmh -PjmhArgs="GsmtapView -prof gc" to see what each one allocates.
+// GsmtapViewTest checks that both parsers read the same fields.
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GsmtapViewBenchmark {
+    static final int PACKET_COUNT = 4096;
+    private static final int PAYLOAD_LEN = 23;
+    static final int DATAGRAM_LEN = GsmtapView.MIN_HEADER_LEN + PAYLOAD_LEN;
+
+    private byte[][] datagrams;
+    private ByteBuffer receiveBuf;
+    private final GsmtapView view = new GsmtapView();
+
+    // The old IPGSMTAPProvider.gsmPktFromGSMTAP(), kept here as the baseline. It took the header
+    // to be 16 bytes whatever hdr_len said and read the SNR as the signal level.
+    static GSMPacket legacyParse(byte[] gsmtapPktBuf, long timestamp) {
+        GSMPacket pkt = new GSMPacket();
+        pkt.measurementHeader = new MeasurementHeader();
+        if (gsmtapPktBuf[0] != 0x02) {
+            throw new IllegalArgumentException("Unexpected GSMTAP version");
+        }
+        pkt.measurementHeader.timestamp = timestamp;
+        pkt.measurementHeader.arfcn =
+                (short)(((gsmtapPktBuf[4] & 0xff) << 8) |
+                        (gsmtapPktBuf[5] & 0xff));
+        pkt.measurementHeader.arfcn = (short) (pkt.measurementHeader.arfcn & 0x3fff);
+        pkt.measurementHeader.band = Utils.bandFromARFCN(pkt.measurementHeader.arfcn,
+                Utils.isPCS(pkt.measurementHeader.arfcn));
+        pkt.measurementHeader.dBm = gsmtapPktBuf[7];
+        pkt.type = gsmtapPktBuf[2];
+        pkt.subtype = gsmtapPktBuf[12];
+        pkt.timeslot = gsmtapPktBuf[3];
+        pkt.frameNumber = ((gsmtapPktBuf[8] & 0xff) << 24) | ((gsmtapPktBuf[9] & 0xff) << 16) |
+                ((gsmtapPktBuf[10] & 0xff) << 8) | (gsmtapPktBuf[11] & 0xff);
+        pkt.payload = Arrays.copyOfRange(gsmtapPktBuf, 16 , gsmtapPktBuf.length);
+        return pkt;
+    }
+
+    static byte[] datagram(int n) {
+        byte[] d = new byte[DATAGRAM_LEN];
+        d[0] = GsmtapView.GSMTAP_VERSION;
+        d[1] = GsmtapView.MIN_HEADER_LEN / 4;
+        d[2] = (byte)(1 + n % 2);            // GSMTAP_TYPE_UM or _ABIS
+        d[3] = (byte)(n % 8);                // timeslot
+        short arfcn = (short)(n % 2 == 0 ? 1 + n % 124 : 128 + n % 124);
+        d[4] = (byte)(arfcn >> 8);
+        d[5] = (byte)arfcn;
+        d[6] = (byte)(-60 - n % 40);         // signal
+        d[7] = (byte)(n % 30);               // snr
+        d[8] = (byte)(n >> 24);
+        d[9] = (byte)(n >> 16);
+        d[10] = (byte)(n >> 8);
+        d[11] = (byte)n;
+        d[12] = (byte)(1 + n % 9);           // subtype
+        for (int i = 0; i < PAYLOAD_LEN; i++) {
+            d[GsmtapView.MIN_HEADER_LEN + i] = (byte)(n * 31 + i);
+        }
+        return d;
+    }
+
+    // Laid out back to back, the way the batched receive loop leaves them
+    static ByteBuffer receiveBuffer(byte[][] datagrams) {
+        ByteBuffer receiveBuf = ByteBuffer.allocateDirect(datagrams.length * DATAGRAM_LEN);
+        for (byte[] datagram : datagrams) {
+            receiveBuf.put(datagram);
+        }
+        return receiveBuf;
+    }
+
+    @Setup
+    public void setUp() {
+        datagrams = new byte[PACKET_COUNT][];
+        for (int n = 0; n < PACKET_COUNT; n++) {
+            datagrams[n] = datagram(n);
+        }
+        receiveBuf = receiveBuffer(datagrams);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(PACKET_COUNT)
+    public long legacyParser() {
+        long sum = 0;
+        for (byte[] datagram : datagrams) {
+            GSMPacket pkt = legacyParse(datagram, 0);
+            sum += pkt.type + pkt.measurementHeader.arfcn + pkt.payload.length;
+        }
+        return sum;
+    }
+
+    // What the filter and deduplicator do with every datagram
+    @Benchmark
+    @OperationsPerInvocation(PACKET_COUNT)
+    public long viewHeaderFields() {
+        long sum = 0;
+        for (int n = 0; n < PACKET_COUNT; n++) {
+            view.wrap(receiveBuf, n * DATAGRAM_LEN, DATAGRAM_LEN);
+            sum += view.getType() + view.getSubtype() + view.getArfcn() + view.getTimeslot() +
+                    view.getPayloadByte(0);
+        }
+        return sum;
+    }
+
+    // What a datagram that is stored costs
+    @Benchmark
+    @OperationsPerInvocation(PACKET_COUNT)
+    public long viewMaterialized() {
+        long sum = 0;
+        for (int n = 0; n < PACKET_COUNT; n++) {
+            view.wrap(receiveBuf, n * DATAGRAM_LEN, DATAGRAM_LEN);
+            GSMPacket pkt = view.toGSMPacket(0);
+            sum += pkt.type + pkt.measurementHeader.arfcn + pkt.payload.length;
+        }
+        return sum;
+    }
+}
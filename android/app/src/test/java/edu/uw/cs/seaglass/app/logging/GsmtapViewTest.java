@@ -0,0 +1,53 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.logging;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import edu.uw.cs.seaglass.app.db.GSMPacket;
+
+import static org.junit.Assert.*;
+
+public class GsmtapViewTest {
+    // GsmtapViewBenchmark's baseline reads the same fields, apart from the signal level
+    @Test
+    public void readsTheSameFieldsAsTheLegacyParser() {
+        byte[][] datagrams = new byte[GsmtapViewBenchmark.PACKET_COUNT][];
+        for (int n = 0; n < datagrams.length; n++) {
+            datagrams[n] = GsmtapViewBenchmark.datagram(n);
+        }
+        ByteBuffer receiveBuf = GsmtapViewBenchmark.receiveBuffer(datagrams);
+
+        GsmtapView view = new GsmtapView();
+        int datagramLen = GsmtapViewBenchmark.DATAGRAM_LEN;
+        for (int n = 0; n < datagrams.length; n++) {
+            assertTrue(view.wrap(receiveBuf, n * datagramLen, datagramLen));
+            GSMPacket expected = GsmtapViewBenchmark.legacyParse(datagrams[n], 0);
+            GSMPacket actual = view.toGSMPacket(0);
+            assertEquals(expected.type, actual.type);
+            assertEquals(expected.subtype, actual.subtype);
+            assertEquals(expected.timeslot, actual.timeslot);
+            assertEquals(expected.frameNumber, actual.frameNumber);
+            assertEquals(expected.measurementHeader.arfcn, actual.measurementHeader.arfcn);
+            assertEquals(expected.measurementHeader.band, actual.measurementHeader.band);
+            assertArrayEquals(expected.payload, actual.payload);
+            assertEquals(datagrams[n][6], actual.measurementHeader.dBm);
+        }
+    }
+}
@@ -0,0 +1,107 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.logging;
+
+import org.junit.Test;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.uw.cs.seaglass.app.db.GSMPacket;
+import edu.uw.cs.seaglass.app.db.GSMPacketRepeats;
+
+import static edu.uw.cs.seaglass.app.logging.GsmtapDatagrams.*;
+import static org.junit.Assert.*;
+
+// Sends GSMTAP to the provider's port on loopback, the way cell_log does
+public class IPGSMTAPProviderTest {
+    private static final long TIMEOUT = 10000;
+    private static final int GSMTAP_PORT = 4729;
+
+    private static class RecordingReceiver implements GSMPacketReceiver {
+        final List<GSMPacket> stored = new ArrayList<>();
+        final List<GSMPacketRepeats> updated = new ArrayList<>();
+
+        @Override
+        public synchronized void onGSMPacketReceived(GSMPacket pkt) {
+            stored.add(pkt);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onGSMPacketsReceived(List<GSMPacket> pkts) {
+            stored.addAll(pkts);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void onGSMPacketRepeatsUpdated(List<GSMPacketRepeats> repeats) {
+            updated.addAll(repeats);
+            notifyAll();
+        }
+
+        synchronized void awaitStored(int count) throws InterruptedException {
+            long deadline = System.currentTimeMillis() + TIMEOUT;
+            long left;
+            while (stored.size() < count &&
+                    (left = deadline - System.currentTimeMillis()) > 0) {
+                wait(left);
+            }
+            assertEquals(count, stored.size());
+        }
+    }
+
+    private static void send(DatagramSocket socket, byte[] datagram) throws Exception {
+        socket.send(new DatagramPacket(datagram, datagram.length,
+                InetAddress.getLoopbackAddress(), GSMTAP_PORT));
+    }
+
+    @Test
+    public void storesRepeatCountsOfHeldFramesOnShutdown() throws Exception {
+        RecordingReceiver receiver = new RecordingReceiver();
+        IPGSMTAPProvider provider = new IPGSMTAPProvider(receiver);
+        provider.start();
+        DatagramSocket socket = new DatagramSocket();
+        try {
+            for (int i = 0; i < 3; i++) {
+                send(socket, bcch(10, 0, 51 * i, payload(1)));
+            }
+            // Paging comes after, so once it's stored the repeats have all been seen
+            send(socket, ccch(10, 200, payload(2)));
+            send(socket, ccch(10, 201, payload(2)));
+            receiver.awaitStored(3);
+            synchronized (receiver) {
+                assertTrue(receiver.updated.isEmpty());
+            }
+        } finally {
+            socket.close();
+            assertTrue(provider.shutdown(TIMEOUT));
+        }
+
+        synchronized (receiver) {
+            assertEquals(3, receiver.stored.size());
+            assertEquals(1, receiver.updated.size());
+            GSMPacketRepeats repeats = receiver.updated.get(0);
+            assertEquals(GsmtapView.GSMTAP_CHANNEL_BCCH, repeats.gsmPacket.subtype);
+            assertEquals(3, repeats.repeatCount);
+            assertTrue(receiver.stored.contains(repeats.gsmPacket));
+        }
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.osmocom;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.*;
+
+public class FirmwareImageTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static byte[] payload(int length) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte)(i * 31 + 7);
+        }
+        return payload;
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsEmptyPayload() throws IOException {
+        new FirmwareImage(PhoneType.C123, new byte[0], FirmwareImage.DEFAULT_MAX_BLOCK_SIZE);
+    }
+
+    @Test(expected = IOException.class)
+    public void rejectsBlockSizeWithoutRoomForPayload() throws IOException {
+        new FirmwareImage(PhoneType.C123, payload(100), FirmwareImage.DEFAULT_MAX_BLOCK_SIZE)
+                .withMaxBlockSize(10);
+    }
+
+    @Test
+    public void splitsPayloadIntoBlocks() throws IOException {
+        FirmwareImage image = new FirmwareImage(PhoneType.C123, payload(2500), 0x400);
+        // 0x400 - 10 header bytes = 1014 payload bytes per block
+        assertEquals(3, image.getBlockCount());
+        assertEquals(1014, image.getBlockEndOffset(0));
+        assertEquals(2028, image.getBlockEndOffset(1));
+        assertEquals(2500, image.getAppPayloadLength());
+        assertEquals(472 + 10, image.getBlock(2).length);
+
+        FirmwareImage rebuilt = image.withMaxBlockSize(0x100);
+        assertEquals(11, rebuilt.getBlockCount());
+        assertEquals(2500, rebuilt.getAppPayloadLength());
+    }
+
+    @Test
+    public void roundTripsThroughCache() throws IOException {
+        FirmwareImage image = new FirmwareImage(PhoneType.C123xor, payload(3000), 0x400);
+        File cacheFile = FirmwareImage.getCacheFile(tmp.getRoot(), "abc123", PhoneType.C123xor);
+        image.writeTo(cacheFile, "abc123");
+
+        FirmwareImage cached = FirmwareImage.readFrom(cacheFile, "abc123", PhoneType.C123xor,
+                3000);
+        assertNotNull(cached);
+        assertEquals(image.getBlockCount(), cached.getBlockCount());
+        for (int i = 0; i < image.getBlockCount(); i++) {
+            assertArrayEquals(image.getBlock(i), cached.getBlock(i));
+            assertEquals(image.getBlockEndOffset(i), cached.getBlockEndOffset(i));
+        }
+        assertArrayEquals(image.getChainloaderPayload(), cached.getChainloaderPayload());
+        assertEquals(image.getAppChecksum(), cached.getAppChecksum());
+
+        // A different build, phone type or app asset misses
+        assertNull(FirmwareImage.readFrom(cacheFile, "def456", PhoneType.C123xor, 3000));
+        assertNull(FirmwareImage.readFrom(cacheFile, "abc123", PhoneType.C140, 3000));
+        assertNull(FirmwareImage.readFrom(cacheFile, "abc123", PhoneType.C123xor, 3001));
+    }
+
+    // A 3000 byte app payload in 0x400 byte blocks
+    private File writeCacheFile() throws IOException {
+        FirmwareImage image = new FirmwareImage(PhoneType.C123, payload(3000), 0x400);
+        File cacheFile = FirmwareImage.getCacheFile(tmp.getRoot(), "abc123", PhoneType.C123);
+        image.writeTo(cacheFile, "abc123");
+        return cacheFile;
+    }
+
+    private static long firstBlockOffset(File cacheFile) {
+        // Three blocks, each with its length in front
+        return cacheFile.length() - 3 * 4 - 3000 - 3 * 10;
+    }
+
+    @Test
+    public void rejectsBlockTooShortForItsHeader() throws IOException {
+        File cacheFile = writeCacheFile();
+        try (RandomAccessFile file = new RandomAccessFile(cacheFile, "rw")) {
+            file.seek(firstBlockOffset(cacheFile));
+            file.writeInt(4);
+        }
+        assertNull(FirmwareImage.readFrom(cacheFile, "abc123", PhoneType.C123, 3000));
+    }
+
+    @Test
+    public void rejectsBlockHeaderNotMatchingItsLength() throws IOException {
+        File cacheFile = writeCacheFile();
+        try (RandomAccessFile file = new RandomAccessFile(cacheFile, "rw")) {
+            // The high byte of the first block's payload length
+            file.seek(firstBlockOffset(cacheFile) + 4 + 4);
+            file.write(0x7f);
+        }
+        assertNull(FirmwareImage.readFrom(cacheFile, "abc123", PhoneType.C123, 3000));
+    }
+
+    @Test
+    public void rejectsCorruptPayload() throws IOException {
+        File cacheFile = writeCacheFile();
+        try (RandomAccessFile file = new RandomAccessFile(cacheFile, "rw")) {
+            file.seek(cacheFile.length() - 1);
+            int last = file.read();
+            file.seek(cacheFile.length() - 1);
+            file.write(last ^ 0x10);
+        }
+        assertNull(FirmwareImage.readFrom(cacheFile, "abc123", PhoneType.C123, 3000));
+    }
+
+    @Test
+    public void rejectsTruncatedFile() throws IOException {
+        File cacheFile = writeCacheFile();
+        assertNotNull(FirmwareImage.readFrom(cacheFile, "abc123", PhoneType.C123, 3000));
+        try (RandomAccessFile file = new RandomAccessFile(cacheFile, "rw")) {
+            file.setLength(cacheFile.length() - 100);
+        }
+        assertNull(FirmwareImage.readFrom(cacheFile, "abc123", PhoneType.C123, 3000));
+    }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.osmocom;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class L1CTLTapTest {
+    // Frames sit at an offset in a reused buffer, with an older frame's bytes after them
+    private static final int FRAME_OFFSET = 2;
+
+    private final L1CTLTap tap = new L1CTLTap();
+    private final byte[] buf = new byte[64];
+
+    @Before
+    public void setUp() {
+        Arrays.fill(buf, (byte)0x5a);
+    }
+
+    // l1ctl_hdr followed by l1ctl_info_dl and 23 bytes of data
+    private int putDataInd() {
+        byte[] frame = new byte[4 + 12 + L1CTLMessage.DATA_IND_DATA_LEN];
+        frame[0] = L1CTLMessage.L1CTL_DATA_IND;
+        frame[1] = 0x01;
+        frame[4] = (byte)0x80;
+        frame[6] = 0x00;
+        frame[7] = (byte)128;
+        frame[8] = 0x00;
+        frame[9] = 0x12;
+        frame[10] = 0x34;
+        frame[11] = 0x56;
+        frame[12] = 40;
+        for (int i = 0; i < L1CTLMessage.DATA_IND_DATA_LEN; i++) {
+            frame[16 + i] = (byte)i;
+        }
+        System.arraycopy(frame, 0, buf, FRAME_OFFSET, frame.length);
+        return frame.length;
+    }
+
+    private static class Recorder implements L1CTLListener {
+        final List<Integer> types = new ArrayList<>();
+
+        public void onL1CTLMessage(L1CTLMessage msg) {
+            types.add(msg.getMsgType());
+        }
+    }
+
+    @Test
+    public void dispatchesByMessageType() {
+        final List<Long> frameNrs = new ArrayList<>();
+        final byte[] data = new byte[L1CTLMessage.DATA_IND_DATA_LEN];
+        tap.subscribe(L1CTLMessage.L1CTL_DATA_IND, new L1CTLListener() {
+            public void onL1CTLMessage(L1CTLMessage msg) {
+                assertEquals(0x01, msg.getFlags());
+                assertTrue(msg.hasDataIndData());
+                assertEquals(0x80, msg.getChanNr());
+                assertEquals(128, msg.getBandArfcn());
+                assertEquals(40, msg.getRxLevel());
+                frameNrs.add(msg.getFrameNr());
+                msg.copyDataIndData(data, 0);
+            }
+        });
+        Recorder pmConf = new Recorder();
+        tap.subscribe(L1CTLMessage.L1CTL_PM_CONF, pmConf);
+
+        tap.dispatch(buf, FRAME_OFFSET, putDataInd());
+        assertEquals(Arrays.asList(0x123456L), frameNrs);
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(i, data[i]);
+        }
+        assertTrue(pmConf.types.isEmpty());
+
+        tap.unsubscribe(L1CTLMessage.L1CTL_PM_CONF, pmConf);
+        buf[FRAME_OFFSET] = L1CTLMessage.L1CTL_PM_CONF;
+        tap.dispatch(buf, FRAME_OFFSET, 8);
+        assertTrue(pmConf.types.isEmpty());
+    }
+
+    @Test
+    public void skipsFramesTooShortForTheHeader() {
+        Recorder recorder = new Recorder();
+        tap.subscribe(L1CTLMessage.L1CTL_DATA_IND, recorder);
+        putDataInd();
+        for (int length = 0; length < 4; length++) {
+            tap.dispatch(buf, FRAME_OFFSET, length);
+        }
+        assertTrue(recorder.types.isEmpty());
+        assertEquals(4, tap.getTruncatedFrameCount());
+
+        tap.dispatch(buf, FRAME_OFFSET, 4);
+        assertEquals(Arrays.asList(L1CTLMessage.L1CTL_DATA_IND), recorder.types);
+        assertEquals(4, tap.getTruncatedFrameCount());
+    }
+
+    @Test
+    public void readsPastTheEndOfTheMessageThrow() {
+        final List<RuntimeException> errors = new ArrayList<>();
+        tap.subscribe(L1CTLMessage.L1CTL_DATA_IND, new L1CTLListener() {
+            public void onL1CTLMessage(L1CTLMessage msg) {
+                assertEquals(4 + 5, msg.getLength());
+                assertFalse(msg.hasInfoDL());
+                assertEquals(5, msg.getPayloadLength());
+                assertEquals(0x80, msg.getChanNr());
+                try {
+                    msg.getFrameNr();
+                } catch (IndexOutOfBoundsException ex) {
+                    errors.add(ex);
+                }
+                try {
+                    msg.getDataIndByte(0);
+                } catch (IndexOutOfBoundsException ex) {
+                    errors.add(ex);
+                }
+                try {
+                    msg.copyPayload(2, new byte[4], 0, 4);
+                } catch (IndexOutOfBoundsException ex) {
+                    errors.add(ex);
+                }
+                // Left to the dispatcher
+                msg.copyDataIndData(new byte[L1CTLMessage.DATA_IND_DATA_LEN], 0);
+            }
+        });
+        Recorder recorder = new Recorder();
+        tap.subscribe(L1CTLMessage.L1CTL_DATA_IND, recorder);
+
+        // Cut off in the middle of l1ctl_info_dl
+        putDataInd();
+        tap.dispatch(buf, FRAME_OFFSET, 4 + 5);
+        assertEquals(3, errors.size());
+        // The listener after the one that threw still got the message
+        assertEquals(Arrays.asList(L1CTLMessage.L1CTL_DATA_IND), recorder.types);
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.osmocom;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.uw.cs.seaglass.app.driver.LoopbackSerialTransport;
+
+import static org.junit.Assert.*;
+
+// A serial thread wired to a simulated phone over an in-memory loopback
+class LoopbackLink {
+    static final int LOOPBACK_CAPACITY = 64 * 1024;
+    static final long TIMEOUT = 10000;
+
+    final FirmwareImage image;
+    final LoopbackSerialTransport hostEnd;
+    final LoopbackSerialTransport phoneEnd;
+    final PhoneSimulator phone;
+    final RecordingOsmoconService service;
+    final OsmoconSerialThread serialThread;
+
+    LoopbackLink(int payloadLength, int phoneBlockSize, boolean keepFrames) throws IOException {
+        image = new FirmwareImage(PhoneType.C123, payload(0, payloadLength),
+                FirmwareImage.DEFAULT_MAX_BLOCK_SIZE);
+        LoopbackSerialTransport[] pair = LoopbackSerialTransport.createPair(LOOPBACK_CAPACITY);
+        hostEnd = pair[0];
+        phoneEnd = pair[1];
+        phone = PhoneSimulator.onLoopback(phoneEnd, hostEnd, phoneBlockSize);
+        service = new RecordingOsmoconService(keepFrames);
+        serialThread = new OsmoconSerialThread(service, hostEnd, image, new SerialLinkStats());
+    }
+
+    // Runs the bootloader and romloader handshake through to the app running
+    void boot() throws InterruptedException {
+        phone.start();
+        serialThread.start();
+        assertTrue("phone never branched into the app", phone.awaitAppRunning(TIMEOUT));
+        assertTrue("osmocon never saw the app running",
+                service.awaitState(PhoneState.APP_RUNNING, TIMEOUT));
+    }
+
+    void shutdown() throws InterruptedException {
+        serialThread.shutdown();
+        serialThread.join(TIMEOUT);
+        phone.join(TIMEOUT);
+        assertFalse(serialThread.isAlive());
+        assertFalse(phone.isAlive());
+        assertNull(phone.getError());
+    }
+
+    // Deterministic bytes that include the HDLC flag, escape and zero bytes now and then
+    static byte[] payload(int seed, int length) {
+        byte[] payload = new byte[length];
+        for (int i = 0; i < length; i++) {
+            payload[i] = (byte)(seed * 13 + i * 7);
+        }
+        return payload;
+    }
+
+    static List<byte[]> payloads(int count, int length) {
+        List<byte[]> payloads = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            payloads.add(payload(i, length));
+        }
+        return payloads;
+    }
+}
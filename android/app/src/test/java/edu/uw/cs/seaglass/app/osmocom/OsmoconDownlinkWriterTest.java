@@ -0,0 +1,157 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.osmocom;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import edu.uw.cs.seaglass.app.Utils;
+import edu.uw.cs.seaglass.app.driver.LoopbackSerialTransport;
+
+import static org.junit.Assert.*;
+
+// The phone's end of the loopback isn't read until the test says so, so the writer's transfers
+// stall the way they do when the phone falls behind
+public class OsmoconDownlinkWriterTest {
+    private static final long TIMEOUT = 10000;
+    private static final int QUEUE_CAPACITY = 4;
+    private static final int FRAME_COUNT = 40;
+    private static final int PAYLOAD_LEN = 40;
+
+    private LoopbackSerialTransport hostEnd;
+    private LoopbackSerialTransport phoneEnd;
+    private OsmoconDownlinkWriter downlinkWriter;
+
+    private void start(int loopbackCapacity) {
+        LoopbackSerialTransport[] pair = LoopbackSerialTransport.createPair(loopbackCapacity);
+        hostEnd = pair[0];
+        phoneEnd = pair[1];
+        OsmoconSerialThread serialThread = new OsmoconSerialThread(
+                new RecordingOsmoconService(false), hostEnd, null, new SerialLinkStats());
+        downlinkWriter = new OsmoconDownlinkWriter(serialThread, QUEUE_CAPACITY, 1);
+        downlinkWriter.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        // Fails any transfer still in progress, so the interrupt finds the writer waiting for
+        // frames
+        hostEnd.close();
+        downlinkWriter.shutdown();
+        downlinkWriter.join(TIMEOUT);
+        assertFalse(downlinkWriter.isAlive());
+    }
+
+    // Enqueues every payload from one reused buffer, at an offset, on its own thread
+    private Thread produce(final List<byte[]> payloads,
+                           final AtomicReference<Throwable> error) {
+        Thread producer = new Thread("producer") {
+            public void run() {
+                byte[] buf = new byte[3 + PAYLOAD_LEN];
+                try {
+                    for (byte[] payload : payloads) {
+                        System.arraycopy(payload, 0, buf, 3, payload.length);
+                        downlinkWriter.sendToPhone(OsmoconService.SC_DLCI_L1A_L23, buf, 3,
+                                payload.length);
+                    }
+                } catch (Throwable ex) {
+                    error.set(ex);
+                }
+            }
+        };
+        producer.start();
+        return producer;
+    }
+
+    @Test
+    public void waitsForThePhoneInsteadOfDropping() throws Exception {
+        start(64);
+        List<byte[]> payloads = LoopbackLink.payloads(FRAME_COUNT, PAYLOAD_LEN);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread producer = produce(payloads, error);
+
+        // One transfer stuck in the loopback, a few frames queued, and the producer waiting
+        producer.join(500);
+        assertTrue(producer.isAlive());
+        assertEquals(QUEUE_CAPACITY, downlinkWriter.getQueueDepth());
+        assertEquals(0, downlinkWriter.getDroppedFrameCount());
+
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        for (byte[] payload : payloads) {
+            byte[] frame = Utils.rawToHDLC(OsmoconService.SC_DLCI_L1A_L23, payload);
+            expected.write(frame, 0, frame.length);
+        }
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        byte[] buf = new byte[256];
+        while (received.size() < expected.size()) {
+            int n = phoneEnd.read(buf, 0, buf.length);
+            assertTrue(n > 0);
+            received.write(buf, 0, n);
+        }
+        producer.join(TIMEOUT);
+        assertFalse(producer.isAlive());
+        assertNull(error.get());
+        assertArrayEquals(expected.toByteArray(), received.toByteArray());
+
+        // The last transfer is only counted once the write returns, which may be after the phone
+        // has read it
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (downlinkWriter.getFrameCount() < FRAME_COUNT &&
+                System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(FRAME_COUNT, downlinkWriter.getFrameCount());
+        assertEquals(0, downlinkWriter.getDroppedFrameCount());
+    }
+
+    @Test
+    public void dropsOnlyFramesWhoseTransferFailed() throws Exception {
+        start(1024);
+        hostEnd.close();
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread producer = produce(LoopbackLink.payloads(FRAME_COUNT, PAYLOAD_LEN), error);
+        producer.join(TIMEOUT);
+        assertFalse(producer.isAlive());
+        assertNull(error.get());
+
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (downlinkWriter.getDroppedFrameCount() < FRAME_COUNT &&
+                System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(FRAME_COUNT, downlinkWriter.getDroppedFrameCount());
+        assertEquals(0, downlinkWriter.getTransferCount());
+    }
+
+    @Test
+    public void producerWaitingForRoomCanBeInterrupted() throws Exception {
+        start(64);
+        AtomicReference<Throwable> error = new AtomicReference<>();
+        Thread producer = produce(LoopbackLink.payloads(FRAME_COUNT, PAYLOAD_LEN), error);
+        producer.join(500);
+        assertTrue(producer.isAlive());
+
+        producer.interrupt();
+        producer.join(TIMEOUT);
+        assertFalse(producer.isAlive());
+        assertTrue(error.get() instanceof InterruptedException);
+    }
+}
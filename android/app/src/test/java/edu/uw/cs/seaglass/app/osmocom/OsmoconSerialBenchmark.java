@@ -0,0 +1,102 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.osmocom;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+
+import edu.uw.cs.seaglass.app.driver.ReplaySerialTransport;
+import edu.uw.cs.seaglass.app.driver.SerialCaptureWriter;
+
+// Frames per second the serial path can take once the layer1 app is running. Scores are per
+// frame: loopback has the phone writing as fast as the loopback lets it; replay feeds a capture
+// of that, chunked the way the serial thread saw it, without a producer.
+@State(Scope.Thread)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class OsmoconSerialBenchmark {
+    // A typical L1CTL data indication
+    private static final int FRAME_PAYLOAD_LEN = 23 + 12;
+    private static final int FRAMES_PER_WRITE = 256;
+    private static final int WRITES = 16;
+    private static final int FRAMES = FRAMES_PER_WRITE * WRITES;
+
+    private LoopbackLink link;
+    private byte[] burst;
+    private long framesSent;
+    private File capture;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        link = new LoopbackLink(2000, FirmwareImage.DEFAULT_MAX_BLOCK_SIZE, false);
+        link.boot();
+        burst = PhoneSimulator.encodeFrames(OsmoconService.SC_DLCI_L1A_L23,
+                LoopbackLink.payloads(FRAMES_PER_WRITE, FRAME_PAYLOAD_LEN));
+
+        // What replay() reads back
+        capture = File.createTempFile("bench", ".sgcap");
+        SerialCaptureWriter captureWriter = new SerialCaptureWriter(capture);
+        link.serialThread.setCaptureWriter(captureWriter);
+        loopback();
+        link.serialThread.setCaptureWriter(null);
+        captureWriter.close();
+        if (captureWriter.getDroppedReads() > 0) {
+            throw new IllegalStateException("Capture dropped reads");
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws InterruptedException {
+        link.shutdown();
+        capture.delete();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long loopback() throws IOException, InterruptedException {
+        for (int i = 0; i < WRITES; i++) {
+            link.phoneEnd.write(burst);
+        }
+        framesSent += FRAMES;
+        if (!link.service.awaitFrames(framesSent, LoopbackLink.TIMEOUT)) {
+            throw new IllegalStateException("Serial thread stopped taking frames");
+        }
+        return framesSent;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(FRAMES)
+    public long replay() {
+        RecordingOsmoconService service = new RecordingOsmoconService(false);
+        OsmoconSerialThread serialThread = new OsmoconSerialThread(service,
+                new ReplaySerialTransport(capture), link.image, new SerialLinkStats());
+        serialThread.run();
+        return service.getFrameCount();
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.osmocom;
+
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import edu.uw.cs.seaglass.app.driver.PtySerialTransport;
+import edu.uw.cs.seaglass.app.driver.ReplaySerialTransport;
+import edu.uw.cs.seaglass.app.driver.SerialCaptureWriter;
+
+import static org.junit.Assert.*;
+
+public class OsmoconSerialThreadTest {
+    private static final long TIMEOUT = LoopbackLink.TIMEOUT;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private static void assertFramesEqual(List<byte[]> expected, List<byte[]> actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertArrayEquals("frame " + i, expected.get(i), actual.get(i));
+        }
+    }
+
+    @Test
+    public void uploadsFirmwareThroughBootloaderAndRomloader() throws Exception {
+        LoopbackLink link = new LoopbackLink(5000, FirmwareImage.DEFAULT_MAX_BLOCK_SIZE, true);
+        link.boot();
+
+        assertArrayEquals(link.image.getChainloaderPayload(), link.phone.getChainloader());
+        assertArrayEquals(LoopbackLink.payload(0, 5000), link.phone.getAppPayload());
+        assertEquals(link.image.getBlockCount(), link.phone.getBlockCount());
+        assertEquals(link.phone.getAppChecksum(), link.image.getAppChecksum());
+        assertEquals((byte)~link.phone.getAppChecksum(), link.phone.getHostChecksum());
+        // The chainloader talks at 19200; the romloader is switched back up before the blocks
+        assertEquals(19200, link.phone.getBaudAtIdent());
+        assertEquals(115200, link.phone.getBaudAtBlocks());
+        assertEquals(Arrays.asList(PhoneState.CHAINLOADER, PhoneState.DOWNLOAD_APP_BLOCKS,
+                PhoneState.APP_CHECKSUM, PhoneState.BRANCH, PhoneState.APP_RUNNING),
+                link.service.getStates());
+
+        link.shutdown();
+    }
+
+    @Test
+    public void rebuildsBlocksForTheRomloaderBlockSize() throws Exception {
+        LoopbackLink link = new LoopbackLink(3000, 0x100, true);
+        link.boot();
+
+        // 0x100 - 10 header bytes = 246 payload bytes per block
+        assertEquals((3000 + 245) / 246, link.phone.getBlockCount());
+        assertArrayEquals(LoopbackLink.payload(0, 3000), link.phone.getAppPayload());
+        assertEquals((byte)~link.phone.getAppChecksum(), link.phone.getHostChecksum());
+
+        link.shutdown();
+    }
+
+    @Test
+    public void deframesUplinkAndFramesDownlink() throws Exception {
+        LoopbackLink link = new LoopbackLink(2000, FirmwareImage.DEFAULT_MAX_BLOCK_SIZE, true);
+        link.boot();
+
+        List<byte[]> l23 = LoopbackLink.payloads(2000, 23);
+        List<byte[]> console = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            console.add(("console line " + i + "\n").getBytes("US-ASCII"));
+        }
+        link.phone.sendFrames(OsmoconService.SC_DLCI_L1A_L23, l23.subList(0, 1000));
+        link.phone.sendFrames(OsmoconService.SC_DLCI_CONSOLE, console);
+        link.phone.sendFrames(OsmoconService.SC_DLCI_L1A_L23, l23.subList(1000, 2000));
+        assertTrue(link.service.awaitFrames(l23.size() + console.size(), TIMEOUT));
+        assertFramesEqual(l23, link.service.getL23Frames());
+        assertFramesEqual(console, link.service.getConsoleFrames());
+
+        OsmoconDownlinkWriter downlinkWriter =
+                new OsmoconDownlinkWriter(link.serialThread, 64, 8);
+        downlinkWriter.start();
+        List<byte[]> downlink = LoopbackLink.payloads(60, 40);
+        for (byte[] payload : downlink) {
+            downlinkWriter.sendToPhone(OsmoconService.SC_DLCI_L1A_L23, payload, 0,
+                    payload.length);
+        }
+        List<byte[]> received = link.phone.awaitDownlinkFrames(downlink.size(), TIMEOUT);
+        assertEquals(downlink.size(), received.size());
+        for (int i = 0; i < downlink.size(); i++) {
+            byte[] frame = received.get(i);
+            assertEquals(OsmoconService.SC_DLCI_L1A_L23, frame[0]);
+            assertArrayEquals(downlink.get(i), Arrays.copyOfRange(frame,
+                    HDLCDeframer.PAYLOAD_OFFSET, frame.length));
+        }
+        downlinkWriter.shutdown();
+        downlinkWriter.join(TIMEOUT);
+
+        link.shutdown();
+    }
+
+    @Test
+    public void replaysACapturedSession() throws Exception {
+        File capture = tmp.newFile("session.sgcap");
+        LoopbackLink link = new LoopbackLink(4000, FirmwareImage.DEFAULT_MAX_BLOCK_SIZE, true);
+        SerialCaptureWriter captureWriter = new SerialCaptureWriter(capture);
+        link.serialThread.setCaptureWriter(captureWriter);
+        link.boot();
+        List<byte[]> l23 = LoopbackLink.payloads(500, 23);
+        link.phone.sendFrames(OsmoconService.SC_DLCI_L1A_L23, l23);
+        assertTrue(link.service.awaitFrames(l23.size(), TIMEOUT));
+        link.serialThread.setCaptureWriter(null);
+        captureWriter.close();
+        link.shutdown();
+
+        // The replay drives the same state machine through the handshake and the frames with
+        // nothing on the other end; whatever osmocon writes back is dropped
+        RecordingOsmoconService service = new RecordingOsmoconService(true);
+        ReplaySerialTransport replay = new ReplaySerialTransport(capture);
+        OsmoconSerialThread serialThread =
+                new OsmoconSerialThread(service, replay, link.image, new SerialLinkStats());
+        serialThread.run();
+
+        assertEquals(link.service.getStates(), service.getStates());
+        assertFramesEqual(l23, service.getL23Frames());
+        assertTrue(replay.getBytesWritten() > link.image.getAppPayloadLength());
+    }
+
+    // Needs socat to make the pty pair; skipped where it isn't installed
+    @Test
+    public void bootsOverAPty() throws Exception {
+        Process socat;
+        try {
+            socat = new ProcessBuilder("socat", "-d", "-d",
+                    "pty,raw,echo=0", "pty,raw,echo=0").redirectErrorStream(true).start();
+        } catch (IOException ex) {
+            Assume.assumeNoException(ex);
+            return;
+        }
+        try {
+            BufferedReader log =
+                    new BufferedReader(new InputStreamReader(socat.getInputStream()));
+            Pattern ptyPattern = Pattern.compile("PTY is (\\S+)");
+            List<String> ptys = new ArrayList<>();
+            String line;
+            while (ptys.size() < 2 && (line = log.readLine()) != null) {
+                Matcher m = ptyPattern.matcher(line);
+                if (m.find()) {
+                    ptys.add(m.group(1));
+                }
+            }
+            assertEquals(2, ptys.size());
+
+            FirmwareImage image = new FirmwareImage(PhoneType.C123,
+                    LoopbackLink.payload(0, 3000), FirmwareImage.DEFAULT_MAX_BLOCK_SIZE);
+            File phoneDevice = new File(ptys.get(1));
+            PhoneSimulator phone = new PhoneSimulator(new FileInputStream(phoneDevice),
+                    new FileOutputStream(phoneDevice), null, FirmwareImage.DEFAULT_MAX_BLOCK_SIZE);
+            RecordingOsmoconService service = new RecordingOsmoconService(true);
+            OsmoconSerialThread serialThread = new OsmoconSerialThread(service,
+                    new PtySerialTransport(new File(ptys.get(0))), image, new SerialLinkStats());
+            phone.start();
+            serialThread.start();
+            assertTrue(phone.awaitAppRunning(TIMEOUT));
+            assertTrue(service.awaitState(PhoneState.APP_RUNNING, TIMEOUT));
+            assertArrayEquals(LoopbackLink.payload(0, 3000), phone.getAppPayload());
+
+            List<byte[]> l23 = LoopbackLink.payloads(200, 23);
+            phone.sendFrames(OsmoconService.SC_DLCI_L1A_L23, l23);
+            assertTrue(service.awaitFrames(l23.size(), TIMEOUT));
+            assertFramesEqual(l23, service.getL23Frames());
+            serialThread.shutdown();
+        } finally {
+            // Closes both ptys, which ends the blocked reads on either side
+            socat.destroy();
+        }
+    }
+}
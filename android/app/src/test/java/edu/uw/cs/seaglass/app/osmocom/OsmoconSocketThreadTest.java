@@ -0,0 +1,309 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.osmocom;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+// Layer 2 clients here are loopback TCP sockets: android.net.LocalSocket needs a device, but
+// the fan-out only sees the streams, and these have the same blocking and close behaviour
+public class OsmoconSocketThreadTest {
+    private static final long TIMEOUT = 10000;
+    private static final int QUEUE_CAPACITY = 256;
+
+    private ServerSocket serverSocket;
+    private RecordingOsmoconService service;
+    private OsmoconSocketThread socketThread;
+    private final List<Socket> sockets = new ArrayList<>();
+
+    @Before
+    public void setUp() throws IOException {
+        serverSocket = new ServerSocket(0, 16, InetAddress.getLoopbackAddress());
+        service = new RecordingOsmoconService(true);
+        socketThread = new OsmoconSocketThread(service, QUEUE_CAPACITY, UplinkOverflowPolicy.DROP);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        socketThread.shutdown();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+        serverSocket.close();
+    }
+
+    // Returns the client's end; the server's end goes to the socket thread with the given
+    // output stream, or its own if that's null
+    private Socket connect(OutputStream outputStream, boolean expectAccepted) throws IOException {
+        Socket client = new Socket(serverSocket.getInetAddress(), serverSocket.getLocalPort());
+        Socket server = serverSocket.accept();
+        sockets.add(client);
+        sockets.add(server);
+        assertEquals(expectAccepted, socketThread.addClient(server.getInputStream(),
+                outputStream != null ? outputStream : server.getOutputStream(), server));
+        return client;
+    }
+
+    private Socket connect() throws IOException {
+        return connect(null, true);
+    }
+
+    private static byte[] readFrame(DataInputStream in) throws IOException {
+        byte[] payload = new byte[in.readUnsignedShort()];
+        in.readFully(payload);
+        return payload;
+    }
+
+    private static void assertClosedByPeer(Socket client) throws IOException {
+        client.setSoTimeout((int)TIMEOUT);
+        assertEquals(-1, client.getInputStream().read());
+    }
+
+    private void awaitClientCount(int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (socketThread.getClientCount() != count && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(count, socketThread.getClientCount());
+    }
+
+    @Test
+    public void fansOutEveryFrameToEveryClient() throws Exception {
+        List<Socket> clients = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            clients.add(connect());
+        }
+        assertEquals(4, socketThread.getClientCount());
+
+        List<byte[]> frames = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            frames.add(LoopbackLink.payload(i, 1 + (i * 37) % 300));
+        }
+        for (byte[] frame : frames) {
+            socketThread.write(frame, 0, frame.length);
+        }
+
+        for (Socket client : clients) {
+            client.setSoTimeout((int)TIMEOUT);
+            DataInputStream in = new DataInputStream(client.getInputStream());
+            for (byte[] frame : frames) {
+                assertArrayEquals(frame, readFrame(in));
+            }
+        }
+        assertEquals(0, socketThread.getDroppedFrameCount());
+    }
+
+    @Test
+    public void forwardsClientFramesToThePhone() throws Exception {
+        Socket client = connect();
+        List<byte[]> frames = new ArrayList<>();
+        OutputStream out = client.getOutputStream();
+        for (int i = 0; i < 50; i++) {
+            // Long enough that the length's high bit and high byte get used
+            byte[] frame = LoopbackLink.payload(i, 100 + i * 7);
+            frames.add(frame);
+            out.write(new byte[] { (byte)(frame.length >> 8), (byte)frame.length });
+            out.write(frame);
+        }
+        out.flush();
+
+        List<byte[]> received = service.awaitDownlinkFrames(frames.size(), TIMEOUT);
+        assertEquals(frames.size(), received.size());
+        for (int i = 0; i < frames.size(); i++) {
+            assertArrayEquals(frames.get(i), received.get(i));
+        }
+    }
+
+    @Test
+    public void dropsFramesForAClientThatFallsBehind() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        OutputStream stalled = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte)b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    throw new IOException(ex);
+                }
+            }
+        };
+        Socket slow = connect(stalled, true);
+        Socket fast = connect();
+        fast.setSoTimeout((int)TIMEOUT);
+        DataInputStream in = new DataInputStream(fast.getInputStream());
+
+        // Rounds small enough for the client that keeps up to drain between them. The stalled
+        // writer gets stuck once its output buffer fills, then its queue fills, and from then on
+        // its frames are dropped.
+        int rounds = 16;
+        int perRound = QUEUE_CAPACITY / 2;
+        byte[] frame = LoopbackLink.payload(0, 23);
+        for (int round = 0; round < rounds; round++) {
+            for (int i = 0; i < perRound; i++) {
+                socketThread.write(frame, 0, frame.length);
+            }
+            for (int i = 0; i < perRound; i++) {
+                assertArrayEquals(frame, readFrame(in));
+            }
+        }
+        assertEquals(QUEUE_CAPACITY, socketThread.getUplinkQueueDepth());
+        long dropped = socketThread.getDroppedFrameCount();
+        assertTrue(dropped >= rounds * perRound / 2);
+        assertTrue(dropped <= rounds * perRound - QUEUE_CAPACITY);
+        release.countDown();
+        assertNotNull(slow);
+    }
+
+    @Test
+    public void removesClientAsSoonAsAWriteFails() throws Exception {
+        OutputStream broken = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("broken pipe");
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                throw new IOException("broken pipe");
+            }
+        };
+        Socket dead = connect(broken, true);
+        Socket live = connect();
+        assertEquals(2, socketThread.getClientCount());
+
+        byte[] frame = LoopbackLink.payload(1, 23);
+        socketThread.write(frame, 0, frame.length);
+        // The failed client is gone from the fan-out even though its reader never saw EOF
+        awaitClientCount(1);
+        assertClosedByPeer(dead);
+
+        live.setSoTimeout((int)TIMEOUT);
+        DataInputStream in = new DataInputStream(live.getInputStream());
+        assertArrayEquals(frame, readFrame(in));
+        for (int round = 0; round < 8; round++) {
+            for (int i = 0; i < QUEUE_CAPACITY / 2; i++) {
+                socketThread.write(frame, 0, frame.length);
+            }
+            for (int i = 0; i < QUEUE_CAPACITY / 2; i++) {
+                assertArrayEquals(frame, readFrame(in));
+            }
+        }
+        assertEquals(0, socketThread.getDroppedFrameCount());
+    }
+
+    @Test
+    public void removesClientThatDisconnects() throws Exception {
+        Socket first = connect();
+        Socket second = connect();
+        first.close();
+        awaitClientCount(1);
+
+        byte[] frame = LoopbackLink.payload(2, 23);
+        socketThread.write(frame, 0, frame.length);
+        second.setSoTimeout((int)TIMEOUT);
+        assertArrayEquals(frame, readFrame(new DataInputStream(second.getInputStream())));
+    }
+
+    @Test
+    public void rejectsClientsBeyondTheLimit() throws Exception {
+        for (int i = 0; i < 8; i++) {
+            connect();
+        }
+        Socket rejected = connect(null, false);
+        assertClosedByPeer(rejected);
+        assertEquals(8, socketThread.getClientCount());
+    }
+
+    @Test
+    public void readerWaitsForThePhoneInsteadOfDropping() throws Exception {
+        service.setDownlinkHeld(true);
+        Socket client = connect();
+        OutputStream out = client.getOutputStream();
+        List<byte[]> frames = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            byte[] frame = LoopbackLink.payload(i, 10 + i);
+            frames.add(frame);
+            out.write(new byte[] { 0, (byte)frame.length });
+            out.write(frame);
+        }
+        out.flush();
+
+        // The reader is stuck on the first frame and the rest wait in the socket
+        assertTrue(service.awaitWaitingSenders(1, TIMEOUT));
+        service.setDownlinkHeld(false);
+        List<byte[]> received = service.awaitDownlinkFrames(frames.size(), TIMEOUT);
+        assertEquals(frames.size(), received.size());
+        for (int i = 0; i < frames.size(); i++) {
+            assertArrayEquals(frames.get(i), received.get(i));
+        }
+    }
+
+    @Test
+    public void shutdownInterruptsAReaderWaitingForThePhone() throws Exception {
+        service.setDownlinkHeld(true);
+        Socket client = connect();
+        byte[] frame = LoopbackLink.payload(3, 23);
+        client.getOutputStream().write(new byte[] { 0, (byte)frame.length });
+        client.getOutputStream().write(frame);
+        assertTrue(service.awaitWaitingSenders(1, TIMEOUT));
+
+        socketThread.shutdown();
+        assertTrue(service.awaitWaitingSenders(0, TIMEOUT));
+        awaitClientCount(0);
+        assertTrue(service.awaitDownlinkFrames(1, 0).isEmpty());
+    }
+
+    @Test
+    public void shutdownClosesEveryClient() throws Exception {
+        List<Socket> clients = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            clients.add(connect());
+        }
+        socketThread.shutdown();
+
+        // Each reader thread was blocked waiting for the client; closing the socket ends it, and
+        // it takes its writer out on the way
+        for (Socket client : clients) {
+            try {
+                assertClosedByPeer(client);
+            } catch (EOFException ex) {
+                // Same thing
+            }
+        }
+        awaitClientCount(0);
+        connect(null, false);
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.osmocom;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import edu.uw.cs.seaglass.app.Utils;
+import edu.uw.cs.seaglass.app.driver.LoopbackSerialTransport;
+
+// Plays the phone's side of the serial link: the Compal bootloader prompts, the Calypso romloader
+// taking the layer1 app block by block, and then the running app's HDLC frames. It checks what
+// osmocon sends along the way and keeps what it received so the test can compare it with the
+// firmware image.
+class PhoneSimulator extends Thread {
+    // Phone to host
+    static final byte[] PROMPT1 = { 0x1b, (byte)0xf6, 0x02, 0x00, 0x41, 0x01, 0x40 };
+    static final byte[] PROMPT2 = { 0x1b, (byte)0xf6, 0x02, 0x00, 0x41, 0x02, 0x43 };
+    static final byte[] ACK = { 0x1b, (byte)0xf6, 0x02, 0x00, 0x41, 0x03, 0x42 };
+    // Host to phone
+    static final byte[] DNLOAD = { 0x1b, (byte)0xf6, 0x02, 0x00, 0x52, 0x01, 0x53 };
+
+    private static final int BLOCK_HEADER_LEN = 10;
+
+    private final InputStream in;
+    private final OutputStream out;
+    private final LoopbackSerialTransport hostEnd;
+    private final int maxBlockSize;
+
+    private final ByteArrayOutputStream appPayload = new ByteArrayOutputStream();
+    private final List<byte[]> downlinkFrames = new ArrayList<>();
+    private final CountDownLatch appRunning = new CountDownLatch(1);
+    private byte[] chainloader;
+    private byte appChecksum;
+    private byte hostChecksum;
+    private int identCount;
+    private int blockCount;
+    private int baudAtIdent;
+    private int baudAtBlocks;
+    private volatile Throwable error;
+
+    // hostEnd is only used to check the rate switches and may be null
+    PhoneSimulator(InputStream in, OutputStream out, LoopbackSerialTransport hostEnd,
+                   int maxBlockSize) {
+        this.in = in;
+        this.out = out;
+        this.hostEnd = hostEnd;
+        this.maxBlockSize = maxBlockSize;
+    }
+
+    static PhoneSimulator onLoopback(final LoopbackSerialTransport phoneEnd,
+                                     LoopbackSerialTransport hostEnd, int maxBlockSize) {
+        InputStream in = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return phoneEnd.read(b, off, len);
+            }
+        };
+        OutputStream out = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                phoneEnd.write(new byte[] { (byte)b });
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                phoneEnd.write(b, off, len);
+            }
+        };
+        return new PhoneSimulator(in, out, hostEnd, maxBlockSize);
+    }
+
+    public void run() {
+        try {
+            bootloader();
+            romloader();
+            appRunning.countDown();
+            receiveDownlink();
+        } catch (EOFException ex) {
+            // The host closed the link
+        } catch (Throwable ex) {
+            error = ex;
+        } finally {
+            appRunning.countDown();
+        }
+    }
+
+    private void bootloader() throws IOException {
+        out.write(PROMPT1);
+        expect(DNLOAD, readFully(DNLOAD.length));
+        out.write(PROMPT2);
+        // C123 framing: u16 length, then the header and chainloader
+        byte[] len = readFully(2);
+        byte[] body = readFully(((len[0] & 0xff) << 8) | (len[1] & 0xff));
+        chainloader = new byte[2 + body.length];
+        System.arraycopy(len, 0, chainloader, 0, 2);
+        System.arraycopy(body, 0, chainloader, 2, body.length);
+        out.write(ACK);
+    }
+
+    private void romloader() throws IOException {
+        for (;;) {
+            byte[] cmd = readFully(2);
+            if (cmd[0] != '<') {
+                throw new IOException("Bad romloader command " + Arrays.toString(cmd));
+            }
+            switch (cmd[1]) {
+                case 'i':
+                    // osmocon beacons until it sees the first reply, so later idents can still
+                    // be in flight; answering those would confuse it
+                    if (identCount++ == 0) {
+                        baudAtIdent = hostEnd == null ? 0 : hostEnd.getBaudRate();
+                        out.write(new byte[] { '>', 'i' });
+                    }
+                    break;
+                case 'p':
+                    readFully(9);
+                    out.write(new byte[] { '>', 'p',
+                            (byte)(maxBlockSize & 0xff), (byte)((maxBlockSize >> 8) & 0xff) });
+                    break;
+                case 'w':
+                    receiveBlock();
+                    out.write(new byte[] { '>', 'w' });
+                    break;
+                case 'c':
+                    hostChecksum = readFully(1)[0];
+                    out.write(new byte[] { '>', 'c', appChecksum });
+                    break;
+                case 'b':
+                    readFully(4);
+                    out.write(new byte[] { '>', 'b' });
+                    return;
+                default:
+                    throw new IOException("Unknown romloader command " + (char)cmd[1]);
+            }
+        }
+    }
+
+    private void receiveBlock() throws IOException {
+        if (blockCount++ == 0) {
+            baudAtBlocks = hostEnd == null ? 0 : hostEnd.getBaudRate();
+        }
+        byte[] header = readFully(BLOCK_HEADER_LEN - 2);
+        int payloadLen = ((header[2] & 0xff) << 8) | (header[3] & 0xff);
+        if (payloadLen + BLOCK_HEADER_LEN > maxBlockSize) {
+            throw new IOException("Block of " + payloadLen + " bytes exceeds " + maxBlockSize);
+        }
+        byte[] payload = readFully(payloadLen);
+        appPayload.write(payload);
+
+        // Same sum the romloader keeps: from the low length byte on, seeded with 5
+        byte blockChecksum = 5;
+        for (int i = 3; i < header.length; i++) {
+            blockChecksum += header[i];
+        }
+        for (byte b : payload) {
+            blockChecksum += b;
+        }
+        appChecksum += (~blockChecksum) & 0xff;
+    }
+
+    // Deframes whatever osmocon sends once the app is running
+    private void receiveDownlink() throws IOException {
+        HDLCDeframer deframer = new HDLCDeframer(64, 4096, new SerialLinkStats());
+        byte[] buf = new byte[4096];
+        boolean inFrame = false;
+        for (;;) {
+            int n = in.read(buf, 0, buf.length);
+            if (n < 0) {
+                return;
+            }
+            int i = 0;
+            while (i < n) {
+                if (!inFrame) {
+                    if (buf[i++] == HDLCDeframer.HDLC_FLAG) {
+                        deframer.reset();
+                        inFrame = true;
+                    }
+                    continue;
+                }
+                int end = deframer.feed(buf, i, n);
+                if (end < 0) {
+                    break;
+                }
+                byte[] frame = Arrays.copyOfRange(deframer.getBuffer(), 0,
+                        HDLCDeframer.PAYLOAD_OFFSET + deframer.getPayloadLength());
+                synchronized (downlinkFrames) {
+                    downlinkFrames.add(frame);
+                    downlinkFrames.notifyAll();
+                }
+                inFrame = false;
+                i = end;
+            }
+        }
+    }
+
+    // Sends frames from the calling thread, encoded back to back the way the layer1 app does
+    void sendFrames(byte dlci, List<byte[]> payloads) throws IOException {
+        out.write(encodeFrames(dlci, payloads));
+    }
+
+    static byte[] encodeFrames(byte dlci, List<byte[]> payloads) {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        for (byte[] payload : payloads) {
+            byte[] frame = Utils.rawToHDLC(dlci, payload);
+            encoded.write(frame, 0, frame.length);
+        }
+        return encoded.toByteArray();
+    }
+
+    boolean awaitAppRunning(long timeoutMillis) throws InterruptedException {
+        return appRunning.await(timeoutMillis, TimeUnit.MILLISECONDS) && error == null &&
+                blockCount > 0;
+    }
+
+    // Each frame is dlci, control, payload
+    List<byte[]> awaitDownlinkFrames(int count, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (downlinkFrames) {
+            long left;
+            while (downlinkFrames.size() < count &&
+                    (left = deadline - System.currentTimeMillis()) > 0) {
+                downlinkFrames.wait(left);
+            }
+            return new ArrayList<>(downlinkFrames);
+        }
+    }
+
+    byte[] getChainloader() {
+        return chainloader;
+    }
+
+    byte[] getAppPayload() {
+        return appPayload.toByteArray();
+    }
+
+    byte getAppChecksum() {
+        return appChecksum;
+    }
+
+    byte getHostChecksum() {
+        return hostChecksum;
+    }
+
+    int getBlockCount() {
+        return blockCount;
+    }
+
+    int getBaudAtIdent() {
+        return baudAtIdent;
+    }
+
+    int getBaudAtBlocks() {
+        return baudAtBlocks;
+    }
+
+    Throwable getError() {
+        return error;
+    }
+
+    private byte[] readFully(int length) throws IOException {
+        byte[] buf = new byte[length];
+        int n = 0;
+        while (n < length) {
+            int ret = in.read(buf, n, length - n);
+            if (ret < 0) {
+                throw new EOFException();
+            }
+            n += ret;
+        }
+        return buf;
+    }
+
+    private static void expect(byte[] expected, byte[] actual) throws IOException {
+        if (!Arrays.equals(expected, actual)) {
+            throw new IOException("Expected " + Arrays.toString(expected) + " but got " +
+                    Arrays.toString(actual));
+        }
+    }
+}
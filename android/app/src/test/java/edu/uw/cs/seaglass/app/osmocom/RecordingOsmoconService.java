@@ -0,0 +1,153 @@
+/*
+ * Copyright (C) 2018 - 2019 University of Washington
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package edu.uw.cs.seaglass.app.osmocom;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// Stands in for the service around a serial or socket thread under test: remembers the phone
+// states it was told about and the frames going each way, instead of broadcasting them, fanning
+// them out or writing them to the phone
+class RecordingOsmoconService implements SerialThreadListener, DownlinkSender {
+    private final boolean keepFrames;
+    private final List<PhoneState> states = new ArrayList<>();
+    private final List<byte[]> l23Frames = new ArrayList<>();
+    private final List<byte[]> consoleFrames = new ArrayList<>();
+    private final List<byte[]> downlinkFrames = new ArrayList<>();
+    private long frameCount;
+    private boolean downlinkHeld;
+    private int waitingSenders;
+
+    // With keepFrames false only the count is kept, which is what the benchmarks want
+    RecordingOsmoconService(boolean keepFrames) {
+        this.keepFrames = keepFrames;
+    }
+
+    @Override
+    public void serialLinkStatsUpdated(long now) {
+    }
+
+    @Override
+    public void firmwareUploadCompleted(long uploadTime) {
+    }
+
+    @Override
+    public synchronized void serialThreadStatusUpdated(PhoneState phoneState,
+                                                       int payloadBytesSent,
+                                                       int payloadTotalSize) {
+        if (states.isEmpty() || states.get(states.size() - 1) != phoneState) {
+            states.add(phoneState);
+        }
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void recvFromPhone(byte dlci, byte[] buf, int offset, int length) {
+        if (keepFrames) {
+            byte[] payload = Arrays.copyOfRange(buf, offset, offset + length);
+            if (dlci == OsmoconService.SC_DLCI_L1A_L23) {
+                l23Frames.add(payload);
+            } else if (dlci == OsmoconService.SC_DLCI_CONSOLE) {
+                consoleFrames.add(payload);
+            }
+        }
+        frameCount++;
+        notifyAll();
+    }
+
+    // Copies the frame, as the downlink writer does. While the downlink is held, waits the way
+    // the writer does when its queue is full.
+    @Override
+    public synchronized void sendToPhone(byte dlci, byte[] buf, int offset, int length)
+            throws InterruptedException {
+        waitingSenders++;
+        notifyAll();
+        try {
+            while (downlinkHeld) {
+                wait();
+            }
+        } finally {
+            waitingSenders--;
+        }
+        downlinkFrames.add(Arrays.copyOfRange(buf, offset, offset + length));
+        notifyAll();
+    }
+
+    synchronized void setDownlinkHeld(boolean downlinkHeld) {
+        this.downlinkHeld = downlinkHeld;
+        notifyAll();
+    }
+
+    synchronized boolean awaitWaitingSenders(int count, long timeoutMillis)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long left;
+        while (waitingSenders != count && (left = deadline - System.currentTimeMillis()) > 0) {
+            wait(left);
+        }
+        return waitingSenders == count;
+    }
+
+    synchronized boolean awaitState(PhoneState phoneState, long timeoutMillis)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long left;
+        while (!states.contains(phoneState) &&
+                (left = deadline - System.currentTimeMillis()) > 0) {
+            wait(left);
+        }
+        return states.contains(phoneState);
+    }
+
+    synchronized boolean awaitFrames(long count, long timeoutMillis)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long left;
+        while (frameCount < count && (left = deadline - System.currentTimeMillis()) > 0) {
+            wait(left);
+        }
+        return frameCount >= count;
+    }
+
+    synchronized List<byte[]> awaitDownlinkFrames(int count, long timeoutMillis)
+            throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        long left;
+        while (downlinkFrames.size() < count &&
+                (left = deadline - System.currentTimeMillis()) > 0) {
+            wait(left);
+        }
+        return new ArrayList<>(downlinkFrames);
+    }
+
+    synchronized List<PhoneState> getStates() {
+        return new ArrayList<>(states);
+    }
+
+    synchronized List<byte[]> getL23Frames() {
+        return new ArrayList<>(l23Frames);
+    }
+
+    synchronized List<byte[]> getConsoleFrames() {
+        return new ArrayList<>(consoleFrames);
+    }
+
+    synchronized long getFrameCount() {
+        return frameCount;
+    }
+}
@@ -70,9 +70,10 @@ foreach ($data['cellObservations'] as $cellObservation) {
 
 $stmt->close();
 
-$stmt = $db->prepare("INSERT INTO GSMPacket VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
-$stmt->bind_param("siiiiisiiii", $data['uuid'], $id, $type, $subtype,
-    $timeslot, $frameNumber, $payload, $timestamp, $band, $arfcn, $dBm);
+// repeatCount and lastSeen are the last two columns; a repeated broadcast frame is one row
+$stmt = $db->prepare("INSERT INTO GSMPacket VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?)");
+$stmt->bind_param("siiiiisiiiiii", $data['uuid'], $id, $type, $subtype,
+    $timeslot, $frameNumber, $payload, $timestamp, $band, $arfcn, $dBm, $repeatCount, $lastSeen);
 
 foreach ($data['gsmPackets'] as $gsmPacket) {
     $id = $gsmPacket['id'];
@@ -85,6 +86,9 @@ foreach ($data['gsmPackets'] as $gsmPacket) {
     $band = $gsmPacket['measurementHeader']['band'];
     $arfcn = $gsmPacket['measurementHeader']['arfcn'];
     $dBm = $gsmPacket['measurementHeader']['dBm'];
+    // Uploads from before repeats were counted have neither
+    $repeatCount = isset($gsmPacket['repeatCount']) ? $gsmPacket['repeatCount'] : 1;
+    $lastSeen = isset($gsmPacket['lastSeen']) ? $gsmPacket['lastSeen'] : $timestamp;
     $stmt->execute();
 }
 
@@ -102,6 +106,23 @@ foreach ($data['spectrumMeasurements'] as $spectrumMeasurement) {
     $stmt->execute();
 }
 
+$stmt->close();
+
+// One row per cell_log power line; dBm holds the signed reading for startArfcn + i at byte i
+$stmt = $db->prepare("INSERT INTO SpectrumSweep VALUES(?, ?, ?, ?, ?, ?)");
+$stmt->bind_param("siiiis", $data['uuid'], $id, $timestamp, $band, $startArfcn, $dBm);
+
+foreach ($data['spectrumSweeps'] as $spectrumSweep) {
+    $id = $spectrumSweep['id'];
+    $timestamp = $spectrumSweep['timestamp'];
+    $band = $spectrumSweep['band'];
+    $startArfcn = $spectrumSweep['startArfcn'];
+    $dBm = base64_decode($spectrumSweep['dBm']);
+    $stmt->execute();
+}
+
+$stmt->close();
+
 $stmt = $db->prepare("INSERT INTO LocationMeasurement VALUES(?, ?, ?, ?, ?, ?, ?, ?, ?)");
 $stmt->bind_param("siidddddd", $data['uuid'], $id, $timestamp, $latitude, $longitude,
     $altitude, $bearing, $speed, $horizontalAccuracy);